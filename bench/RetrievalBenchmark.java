@@ -0,0 +1,356 @@
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the hot paths of the retrieval on real indices: loading an index with weka, from its compiled form and
+ * while streaming it, the distance kernels, the top-k collection and the statistics of the report. Every benchmark is
+ * run for each combination of index, k and number of queries: a number of warmup iterations, then the measured
+ * iterations, each repeating the operation for at least the iteration time. The mean time per operation is printed
+ * with the half-width of its 99.9% confidence interval, like JMH does.
+ */
+public class RetrievalBenchmark {
+    @Option(name = "-i", aliases = {"--index"}, multiValued = true, required = false,
+            usage = "the ARFF or compiled indices to run on (default the ARFF indices in arff/)")
+    private List<String> indexNames;
+    @Option(name = "-k", multiValued = true, required = false, usage = "the values of k (default 10)")
+    private List<Integer> ks;
+    @Option(name = "-n", aliases = {"--queries"}, multiValued = true, required = false,
+            usage = "the numbers of query documents (default 10)")
+    private List<Integer> queryCounts;
+    @Option(name = "-d", aliases = {"--depth"}, required = false,
+            usage = "the number of documents kept per query and index (default 5 * k, 0 keeps all)")
+    private int depth = -1;
+    @Option(name = "-b", aliases = {"--benchmark"}, required = false,
+            usage = "a regular expression selecting the benchmarks to run (default all)")
+    private String benchmarkPattern = ".*";
+    @Option(name = "-w", aliases = {"--warmup"}, required = false, usage = "the number of warmup iterations")
+    private int warmupIterations = 3;
+    @Option(name = "-r", aliases = {"--iterations"}, required = false, usage = "the number of measured iterations")
+    private int iterations = 5;
+    @Option(name = "-t", aliases = {"--time"}, required = false, usage = "the minimum time of an iteration in ms")
+    private int iterationTime = 1000;
+
+    // keeps the results of the operations alive, so they cannot be optimized away
+    private static volatile Object sink;
+
+    /**
+     * An operation to measure with one combination of parameters.
+     */
+    private abstract static class Benchmark {
+        private final String name;
+
+        protected Benchmark(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public abstract Object run() throws Exception;
+    }
+
+    public void run() throws Exception {
+        List<File> indexFiles = Lists.newArrayList();
+
+        if (indexNames == null) {
+            File[] files = new File("arff").listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(".arff")) indexFiles.add(file);
+                }
+            }
+        } else {
+            for (String indexName : indexNames) indexFiles.add(new File(indexName));
+        }
+
+        if (indexFiles.isEmpty()) {
+            System.err.println("No indices to run on");
+            System.exit(1);
+        }
+
+        if (ks == null) ks = Lists.newArrayList(10);
+        if (queryCounts == null) queryCounts = Lists.newArrayList(10);
+
+        Pattern pattern = Pattern.compile(benchmarkPattern);
+
+        System.out.println(String.format("%-18s %-42s %5s %9s %4s %14s   %12s %s", "Benchmark", "(index)", "(k)",
+                "(queries)", "Cnt", "Score", "Error", "Units"));
+
+        for (File indexFile : indexFiles) {
+            SparseIndex index = Retrieval.loadIndex(indexFile);
+
+            for (int queryCount : queryCounts) {
+                for (int k : ks) {
+                    for (Benchmark benchmark : createBenchmarks(indexFile, index, k, queryCount)) {
+                        if (pattern.matcher(benchmark.getName()).matches())
+                            measure(benchmark, index.getName(), k, queryCount);
+                    }
+                }
+            }
+        }
+
+        if (!pattern.matcher("statistics").matches()) return;
+
+        for (int queryCount : queryCounts) {
+            for (int k : ks) measure(createStatisticsBenchmark(indexFiles, k, queryCount), "(all)", k, queryCount);
+        }
+    }
+
+    private List<Benchmark> createBenchmarks(final File indexFile, final SparseIndex index, final int k,
+                                             int queryCount) throws Exception {
+        final int depth = getDepth(k);
+        final int[] queries = selectQueries(index, queryCount);
+        final boolean compiled = indexFile.getName().endsWith(IndexFile.EXTENSION);
+        final File compiledFile = compiled ? indexFile : File.createTempFile("benchmark", IndexFile.EXTENSION);
+
+        if (!compiled) {
+            compiledFile.deleteOnExit();
+            IndexFile.write(Retrieval.readArff(indexFile), compiledFile);
+        }
+
+        final Set<String> queryNames = Sets.newHashSet();
+        for (int query : queries) queryNames.add(index.getDocument(query));
+
+        // the distances of each query to all documents, as input of the top-k benchmark
+        final double[][] distances = new double[queries.length][index.size()];
+        for (int q = 0; q < queries.length; q++) {
+            SparseVector query = index.vector(queries[q]);
+            for (int document = 0; document < index.size(); document++)
+                distances[q][document] = SimilarityMeasure.L1.distance(query, index, document);
+        }
+
+        List<Benchmark> benchmarks = Lists.newArrayList();
+
+        if (!compiled) {
+            benchmarks.add(new Benchmark("load.weka") {
+                @Override
+                public Object run() throws Exception {
+                    return Retrieval.readArff(indexFile).build();
+                }
+            });
+
+            benchmarks.add(new Benchmark("load.stream") {
+                @Override
+                public Object run() throws Exception {
+                    return new StreamingRetrieval(indexFile, indexFile.getName(), new DocumentDictionary(),
+                            new SimilarityMeasure[]{SimilarityMeasure.L1}, depth).retrieve(queryNames);
+                }
+            });
+        }
+
+        benchmarks.add(new Benchmark("load.compiled") {
+            @Override
+            public Object run() throws Exception {
+                return IndexFile.read(compiledFile, index.getName()).build();
+            }
+        });
+
+        for (final SimilarityMeasure similarityMeasure : SimilarityMeasure.values()) {
+            benchmarks.add(new Benchmark("distance." + similarityMeasure) {
+                @Override
+                public Object run() {
+                    double sum = 0;
+
+                    for (int query : queries) {
+                        SparseVector vector = index.vector(query);
+                        for (int document = 0; document < index.size(); document++)
+                            sum += similarityMeasure.distance(vector, index, document);
+                    }
+
+                    return sum;
+                }
+            });
+        }
+
+        // the queries compared to the documents in one block, against the distances above one query at a time
+        final SparseVector[] queryVectors = new SparseVector[queries.length];
+        final int[] queryIds = new int[queries.length];
+
+        for (int q = 0; q < queries.length; q++) {
+            queryVectors[q] = index.vector(queries[q]);
+            queryIds[q] = index.getDocumentId(queries[q]);
+        }
+
+        for (final SimilarityMeasure similarityMeasure : SimilarityMeasure.values()) {
+            final BatchedScan batchedScan = new BatchedScan(index, new SimilarityMeasure[]{similarityMeasure});
+
+            benchmarks.add(new Benchmark("batch." + similarityMeasure) {
+                @Override
+                public Object run() {
+                    TopK[][] topKs = new TopK[queries.length][1];
+                    for (TopK[] queryTopKs : topKs) queryTopKs[0] = new TopK(Math.min(depth, index.size()));
+
+                    batchedScan.search(queryVectors, queryIds, 0, index.size(), topKs);
+                    return topKs;
+                }
+            });
+        }
+
+        benchmarks.add(new Benchmark("topk") {
+            @Override
+            public Object run() {
+                List<List<DocumentSimilarity>> rankings = Lists.newArrayList();
+
+                for (double[] queryDistances : distances) {
+                    TopK topK = new TopK(Math.min(depth, queryDistances.length));
+                    for (int document = 0; document < queryDistances.length; document++)
+                        topK.offer(document, queryDistances[document]);
+
+                    rankings.add(topK.toSimilarities(index));
+                }
+
+                return rankings;
+            }
+        });
+
+        return benchmarks;
+    }
+
+    /**
+     * The statistics of the report over the rankings of all indices.
+     */
+    private Benchmark createStatisticsBenchmark(List<File> indexFiles, int k, int queryCount) throws Exception {
+        List<String> arguments = Lists.newArrayList();
+        for (File indexFile : indexFiles) arguments.addAll(Lists.newArrayList("-i", indexFile.getPath()));
+        arguments.addAll(Lists.newArrayList("-k", String.valueOf(k)));
+        if (depth >= 0) arguments.addAll(Lists.newArrayList("-d", String.valueOf(depth)));
+        arguments.add("query");
+
+        final Retrieval retrieval = new Retrieval();
+        new CmdLineParser(retrieval).parseArgument(arguments.toArray(new String[arguments.size()]));
+        retrieval.setupIndices();
+
+        // the rankings of the queries of the first index in every index containing them, the indices sharing the
+        // dictionary of the retrieval
+        List<SparseIndex> indices = Lists.newArrayList();
+        for (File indexFile : indexFiles)
+            indices.add(Retrieval.loadIndex(indexFile, retrieval.getDictionary(), new Metrics()));
+
+        final List<Map<String, List<DocumentSimilarity>>> queryResults = Lists.newArrayList();
+
+        for (int query : selectQueries(indices.get(0), queryCount)) {
+            String queryName = indices.get(0).getDocument(query);
+            Map<String, List<DocumentSimilarity>> indexResults = Maps.newHashMap();
+
+            for (SparseIndex index : indices) {
+                for (int document = 0; document < index.size(); document++) {
+                    if (!index.getDocument(document).equals(queryName)) continue;
+
+                    TopK topK = new TopK(Math.min(getDepth(k), index.size()));
+                    new LinearScan(index, new SimilarityMeasure[]{SimilarityMeasure.L1})
+                            .search(index.vector(document), index.getDocumentId(document), 0, index.size(),
+                                    new TopK[]{topK});
+                    indexResults.put(index.getName(), topK.toSimilarities(index));
+                    break;
+                }
+            }
+
+            queryResults.add(indexResults);
+        }
+
+        return new Benchmark("statistics") {
+            @Override
+            public Object run() {
+                List<List<DocumentStatistics>> statistics = Lists.newArrayList();
+                for (Map<String, List<DocumentSimilarity>> indexResults : queryResults)
+                    statistics.add(retrieval.getStatistics(indexResults));
+
+                return statistics;
+            }
+        };
+    }
+
+    /**
+     * @return the number of documents kept per query and index for k, like the depth of {@link Retrieval}
+     */
+    private int getDepth(int k) {
+        if (depth < 0) return Math.max(k, k * 5);
+        if (depth == 0) return Integer.MAX_VALUE;
+
+        return Math.max(k, depth);
+    }
+
+    /**
+     * @return up to the given number of documents spread evenly over the index
+     */
+    private static int[] selectQueries(SparseIndex index, int queryCount) {
+        int[] queries = new int[Math.min(queryCount, index.size())];
+        for (int q = 0; q < queries.length; q++) queries[q] = (int) ((long) q * index.size() / queries.length);
+        return queries;
+    }
+
+    private void measure(Benchmark benchmark, String index, int k, int queryCount) throws Exception {
+        for (int iteration = 0; iteration < warmupIterations; iteration++) iterate(benchmark);
+
+        double[] scores = new double[iterations];
+        for (int iteration = 0; iteration < iterations; iteration++) scores[iteration] = iterate(benchmark);
+
+        double mean = 0;
+        for (double score : scores) mean += score;
+        mean /= iterations;
+
+        double variance = 0;
+        for (double score : scores) variance += (score - mean) * (score - mean);
+        variance /= Math.max(1, iterations - 1);
+
+        double error = iterations < 2 ? Double.NaN : studentT(iterations - 1) * Math.sqrt(variance / iterations);
+
+        System.out.println(String.format("%-18s %-42s %5d %9d %4d %14.3f \u00b1 %12.3f ms/op", benchmark.getName(),
+                index, k, queryCount, iterations, mean, error));
+    }
+
+    /**
+     * @return the mean time of an operation in ms over one iteration
+     */
+    private double iterate(Benchmark benchmark) throws Exception {
+        long start = System.nanoTime();
+        long end = start + iterationTime * 1000000L;
+        long operations = 0;
+        long now;
+
+        do {
+            sink = benchmark.run();
+            operations++;
+        } while ((now = System.nanoTime()) < end);
+
+        return (now - start) / 1e6 / operations;
+    }
+
+    /**
+     * @return the 0.9995 quantile of the t distribution, for a two-sided 99.9% confidence interval
+     */
+    private static double studentT(int degreesOfFreedom) {
+        double[] quantiles = {636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587, 4.437,
+                4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850};
+        return degreesOfFreedom <= quantiles.length ? quantiles[degreesOfFreedom - 1] : 3.291;
+    }
+
+    public static void main(String[] args) throws Exception {
+        RetrievalBenchmark benchmark = new RetrievalBenchmark();
+        CmdLineParser parser = new CmdLineParser(benchmark);
+        parser.setUsageWidth(80);
+
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            System.err.println("java RetrievalBenchmark [options...]");
+            parser.printUsage(System.err);
+            System.err.println();
+            System.exit(1);
+        }
+
+        benchmark.run();
+    }
+}
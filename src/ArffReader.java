@@ -0,0 +1,462 @@
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.*;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads an ARFF file row by row without building weka instances. The header is read on construction, afterwards
+ * {@link #readRow(int[], double[])} returns the values of one (sparse or dense) row at a time in the row format of
+ * {@link SparseIndex.Builder}.
+ */
+public class ArffReader {
+    public static final int NUMERIC = 0;
+    public static final int NOMINAL = 1;
+    public static final int STRING = 2;
+    public static final int DATE = 3;
+
+    private final BufferedReader reader;
+    private String relation;
+    private String[] attributeNames;
+    private int[] types;
+    private String[][] nominalLabels;
+    private List<Map<String, Integer>> nominalIndices;
+    private int[] nonNumericAttributes;
+    private String[] rowStrings;
+    private double[] rowNominals;
+
+    private String line;
+    private int position;
+    private boolean quoted;
+    private int lineNumber;
+
+    public ArffReader(Reader reader) throws IOException {
+        this.reader = new BufferedReader(reader, 1 << 16);
+        readHeader();
+    }
+
+    /**
+     * @param file an ARFF file, gzip compressed if its name ends with ".gz"
+     * @return a reader positioned at the first row, the file is read and decompressed ahead on a background thread
+     * @throws IOException if the file cannot be opened or its header cannot be read
+     */
+    public static ArffReader open(File file) throws IOException {
+        InputStream input = PrefetchingInputStream.open(file);
+
+        try {
+            return new ArffReader(new InputStreamReader(input, "UTF-8"));
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    public String getRelation() {
+        return relation;
+    }
+
+    public int numAttributes() {
+        return attributeNames.length;
+    }
+
+    public String[] getAttributeNames() {
+        return attributeNames;
+    }
+
+    public int getType(int attribute) {
+        return types[attribute];
+    }
+
+    /**
+     * @return the first attribute containing class/Class that is of type string or nominal, -1 if there is none
+     */
+    public int findClassAttribute() {
+        for (int attribute = 0; attribute < types.length; attribute++) {
+            if (attributeNames[attribute].matches(".*[Cc]lass.*") &&
+                    (types[attribute] == STRING || types[attribute] == NOMINAL))
+                return attribute;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the first attribute containing document/Document that is of type string, -1 if there is none
+     */
+    public int findDocumentAttribute() {
+        for (int attribute = 0; attribute < types.length; attribute++) {
+            if (attributeNames[attribute].matches(".*[Dd]ocument.*") && types[attribute] == STRING)
+                return attribute;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param name the name of the index
+     * @return an empty builder for the attributes of the file
+     */
+    public SparseIndex.Builder createBuilder(String name) {
+        byte[] kinds = new byte[types.length];
+        List<String[]> labels = Lists.newArrayList();
+
+        for (int attribute = 0; attribute < types.length; attribute++) {
+            if (types[attribute] == NUMERIC) {
+                kinds[attribute] = SparseIndex.NUMERIC;
+            } else if (types[attribute] == NOMINAL) {
+                kinds[attribute] = SparseIndex.NOMINAL;
+                labels.add(nominalLabels[attribute]);
+            } else {
+                kinds[attribute] = SparseIndex.IGNORED;
+            }
+        }
+
+        return new SparseIndex.Builder(name, attributeNames, kinds, labels.toArray(new String[labels.size()][]));
+    }
+
+    /**
+     * Reads the next row.
+     *
+     * @param rowAttributes receives the attributes of the values in ascending order, at least
+     *                      {@link #numAttributes()} long
+     * @param rowValues     receives the values, nominal values as their index and missing values as NaN
+     * @return the number of values of the row, -1 if there are no more rows
+     * @throws IOException if the row cannot be read
+     */
+    public int readRow(int[] rowAttributes, double[] rowValues) throws IOException {
+        if (!nextLine()) return -1;
+
+        for (int attribute : nonNumericAttributes) {
+            rowStrings[attribute] = null;
+            rowNominals[attribute] = 0;
+        }
+
+        int size = 0;
+        skipWhitespace();
+
+        if (position < line.length() && line.charAt(position) == '{') {
+            position++;
+
+            while (true) {
+                skipWhitespace();
+                if (position >= line.length()) throw error("unterminated sparse row");
+                if (line.charAt(position) == '}') break;
+
+                int attribute;
+                try {
+                    attribute = Integer.parseInt(nextToken(","));
+                } catch (NumberFormatException e) {
+                    throw error("invalid attribute index");
+                }
+
+                if (attribute < 0 || attribute >= types.length) throw error("invalid attribute index " + attribute);
+
+                rowAttributes[size] = attribute;
+                rowValues[size] = parseValue(attribute, nextToken(",}"));
+                size++;
+
+                skipWhitespace();
+                if (position < line.length() && line.charAt(position) == ',') position++;
+            }
+        } else {
+            for (int attribute = 0; attribute < types.length; attribute++) {
+                if (attribute > 0) {
+                    skipWhitespace();
+                    if (position >= line.length() || line.charAt(position) != ',') throw error("missing value");
+                    position++;
+                }
+
+                rowAttributes[size] = attribute;
+                rowValues[size] = parseValue(attribute, nextToken(","));
+                size++;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @param attribute a nominal or string attribute
+     * @return the value of the attribute in the last row read, quoted like weka's {@code Instance.toString}
+     */
+    public String getString(int attribute) {
+        String value;
+
+        if (types[attribute] == NOMINAL) {
+            if (Double.isNaN(rowNominals[attribute])) return "?";
+            value = nominalLabels[attribute][(int) rowNominals[attribute]];
+        } else {
+            value = rowStrings[attribute];
+            if (value == null) return "?";
+        }
+
+        return quote(value);
+    }
+
+    /**
+     * @param classAttribute    the class attribute
+     * @param documentAttribute the document attribute
+     * @return the name of the document in the last row read
+     */
+    public String getDocumentName(int classAttribute, int documentAttribute) {
+        return getString(classAttribute) + "/" + getString(documentAttribute);
+    }
+
+    /**
+     * Reads the remaining rows.
+     *
+     * @param name the name of the index
+     * @return a builder of the attributes of the file holding the rows
+     * @throws IOException if a row cannot be read or the file has no class or document attribute
+     */
+    public SparseIndex.Builder readRows(String name) throws IOException {
+        int classAttribute = findClassAttribute();
+        int documentAttribute = findDocumentAttribute();
+
+        if (classAttribute < 0) throw new IOException("No class attribute found for index " + name);
+        if (documentAttribute < 0) throw new IOException("No document attribute found for index " + name);
+
+        SparseIndex.Builder builder = createBuilder(name);
+        int[] rowAttributes = new int[numAttributes()];
+        double[] rowValues = new double[numAttributes()];
+        int size;
+
+        while ((size = readRow(rowAttributes, rowValues)) >= 0)
+            builder.addDocument(getDocumentName(classAttribute, documentAttribute), rowAttributes, rowValues, size);
+
+        return builder;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void readHeader() throws IOException {
+        List<String> names = Lists.newArrayList();
+        List<Integer> attributeTypes = Lists.newArrayList();
+        List<String[]> labels = Lists.newArrayList();
+
+        while (true) {
+            if (!nextLine()) throw error("no @data section");
+
+            String keyword = nextToken("").toLowerCase();
+
+            if (keyword.equals("@relation")) {
+                relation = nextToken("");
+            } else if (keyword.equals("@attribute")) {
+                names.add(nextToken("{"));
+                skipWhitespace();
+
+                if (position < line.length() && line.charAt(position) == '{') {
+                    position++;
+                    List<String> nominalValues = Lists.newArrayList();
+
+                    while (true) {
+                        skipWhitespace();
+                        if (position >= line.length()) throw error("unterminated nominal specification");
+                        if (line.charAt(position) == '}') break;
+
+                        nominalValues.add(nextToken(",}"));
+                        skipWhitespace();
+                        if (position < line.length() && line.charAt(position) == ',') position++;
+                    }
+
+                    attributeTypes.add(NOMINAL);
+                    labels.add(nominalValues.toArray(new String[nominalValues.size()]));
+                    continue;
+                }
+
+                String type = nextToken("").toLowerCase();
+                labels.add(null);
+
+                if (type.equals("numeric") || type.equals("real") || type.equals("integer")) {
+                    attributeTypes.add(NUMERIC);
+                } else if (type.equals("string")) {
+                    attributeTypes.add(STRING);
+                } else if (type.equals("date")) {
+                    attributeTypes.add(DATE);
+                } else {
+                    throw error("unsupported attribute type " + type);
+                }
+            } else if (keyword.equals("@data")) {
+                break;
+            } else {
+                throw error("unexpected " + keyword);
+            }
+        }
+
+        attributeNames = names.toArray(new String[names.size()]);
+        types = new int[attributeNames.length];
+        nominalLabels = labels.toArray(new String[labels.size()][]);
+        nominalIndices = Lists.newArrayList();
+        List<Integer> nonNumeric = Lists.newArrayList();
+
+        for (int attribute = 0; attribute < types.length; attribute++) {
+            types[attribute] = attributeTypes.get(attribute);
+            Map<String, Integer> indices = null;
+
+            if (types[attribute] == NOMINAL) {
+                indices = Maps.newHashMap();
+                for (int i = 0; i < nominalLabels[attribute].length; i++) indices.put(nominalLabels[attribute][i], i);
+            }
+
+            if (types[attribute] != NUMERIC) nonNumeric.add(attribute);
+            nominalIndices.add(indices);
+        }
+
+        nonNumericAttributes = new int[nonNumeric.size()];
+        for (int i = 0; i < nonNumericAttributes.length; i++) nonNumericAttributes[i] = nonNumeric.get(i);
+
+        rowStrings = new String[types.length];
+        rowNominals = new double[types.length];
+    }
+
+    private double parseValue(int attribute, String token) throws IOException {
+        boolean missing = !quoted && token.equals("?");
+
+        switch (types[attribute]) {
+            case NUMERIC:
+                if (missing) return Double.NaN;
+
+                try {
+                    return Double.parseDouble(token);
+                } catch (NumberFormatException e) {
+                    throw error("invalid number " + token);
+                }
+            case NOMINAL:
+                if (missing) {
+                    rowNominals[attribute] = Double.NaN;
+                    return Double.NaN;
+                }
+
+                Integer index = nominalIndices.get(attribute).get(token);
+                if (index == null) throw error("undeclared nominal value " + token);
+
+                rowNominals[attribute] = index;
+                return index;
+            case STRING:
+                rowStrings[attribute] = missing ? null : token;
+                return missing ? Double.NaN : 0;
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * Moves to the next line that is neither empty nor a comment.
+     */
+    private boolean nextLine() throws IOException {
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            position = 0;
+            skipWhitespace();
+
+            if (position < line.length() && line.charAt(position) != '%') return true;
+        }
+
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (position < line.length() && Character.isWhitespace(line.charAt(position))) position++;
+    }
+
+    /**
+     * Reads a token that is either quoted or ends at whitespace or one of the delimiters.
+     */
+    private String nextToken(String delimiters) throws IOException {
+        skipWhitespace();
+        if (position >= line.length()) throw error("unexpected end of line");
+
+        char quote = line.charAt(position);
+        quoted = quote == '\'' || quote == '"';
+
+        if (!quoted) {
+            int start = position;
+
+            while (position < line.length()) {
+                char c = line.charAt(position);
+                if (Character.isWhitespace(c) || delimiters.indexOf(c) >= 0) break;
+                position++;
+            }
+
+            if (position == start) throw error("missing token");
+            return line.substring(start, position);
+        }
+
+        StringBuilder token = new StringBuilder();
+        position++;
+
+        while (true) {
+            if (position >= line.length()) throw error("unterminated string");
+
+            char c = line.charAt(position++);
+            if (c == quote) break;
+
+            if (c == '\\' && position < line.length()) {
+                c = line.charAt(position++);
+
+                switch (c) {
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                }
+            }
+
+            token.append(c);
+        }
+
+        return token.toString();
+    }
+
+    private IOException error(String message) {
+        return new IOException("line " + lineNumber + ": " + message);
+    }
+
+    /**
+     * Quotes a value the way weka's {@code Utils.quote} does.
+     */
+    private static String quote(String value) {
+        boolean needsQuotes = value.length() == 0 || value.equals("?");
+
+        for (int i = 0; i < value.length() && !needsQuotes; i++)
+            needsQuotes = " \t\n\r'\"\\%,{}".indexOf(value.charAt(i)) >= 0;
+
+        if (!needsQuotes) return value;
+
+        StringBuilder quoted = new StringBuilder("'");
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                case '\'':
+                case '"':
+                case '\\':
+                case '%':
+                    quoted.append('\\').append(c);
+                    break;
+                default:
+                    quoted.append(c);
+            }
+        }
+
+        return quoted.append('\'').toString();
+    }
+}
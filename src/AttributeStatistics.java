@@ -0,0 +1,130 @@
+import java.util.Arrays;
+
+/**
+ * Collects the value range of the numeric attributes of an index row by row, as needed for the normalization of
+ * {@link SparseIndex}, along with the number of documents each attribute is non-zero in. Values a sparse row does not
+ * store count as 0.
+ */
+public class AttributeStatistics {
+    private final byte[] kinds;
+    private final double[] min;
+    private final double[] max;
+    private final int[] counts;
+    private int numDocuments;
+
+    /**
+     * @param kinds the kind of each attribute, see {@link SparseIndex#NUMERIC}
+     */
+    public AttributeStatistics(byte[] kinds) {
+        this.kinds = kinds;
+        min = new double[kinds.length];
+        max = new double[kinds.length];
+        counts = new int[kinds.length];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Continues statistics collected before, see the getters.
+     */
+    public AttributeStatistics(byte[] kinds, double[] min, double[] max, int[] documentFrequencies,
+                               int numDocuments) {
+        this.kinds = kinds;
+        this.min = min;
+        this.max = max;
+        this.counts = documentFrequencies;
+        this.numDocuments = numDocuments;
+    }
+
+    /**
+     * Adds the values of a row.
+     *
+     * @param rowAttributes the attributes of the values
+     * @param rowValues     the raw values
+     * @param size          the number of values
+     */
+    public void addRow(int[] rowAttributes, double[] rowValues, int size) {
+        addValues(rowAttributes, rowValues, 0, size);
+        numDocuments++;
+    }
+
+    /**
+     * Adds the values of a number of documents.
+     *
+     * @param rowAttributes the attributes of the values
+     * @param rowValues     the raw values
+     * @param from          the first value
+     * @param to            the end of the values (exclusive)
+     * @param documents     the number of documents the values belong to
+     */
+    public void addRows(int[] rowAttributes, double[] rowValues, int from, int to, int documents) {
+        addValues(rowAttributes, rowValues, from, to);
+        numDocuments += documents;
+    }
+
+    private void addValues(int[] rowAttributes, double[] rowValues, int from, int to) {
+        for (int p = from; p < to; p++) {
+            int attribute = rowAttributes[p];
+            double value = rowValues[p];
+
+            if (kinds[attribute] != SparseIndex.NUMERIC || value == 0 || Double.isNaN(value)) continue;
+
+            if (value < min[attribute]) min[attribute] = value;
+            if (value > max[attribute]) max[attribute] = value;
+            counts[attribute]++;
+        }
+    }
+
+    public int getNumDocuments() {
+        return numDocuments;
+    }
+
+    public int getNumAttributes() {
+        return kinds.length;
+    }
+
+    /**
+     * @return the smallest non-zero value of each numeric attribute, positive infinity if there is none
+     */
+    public double[] getMin() {
+        return min;
+    }
+
+    /**
+     * @return the largest non-zero value of each numeric attribute, negative infinity if there is none
+     */
+    public double[] getMax() {
+        return max;
+    }
+
+    /**
+     * @return the number of documents each numeric attribute has a non-zero value in, which is also the number of
+     *         non-zero values of the attribute
+     */
+    public int[] getDocumentFrequencies() {
+        return counts;
+    }
+
+    /**
+     * @return the range of each attribute, 0 for attributes that are not numeric or never set
+     */
+    public double[] getRanges() {
+        double[] ranges = new double[kinds.length];
+
+        for (int attribute = 0; attribute < kinds.length; attribute++) {
+            if (counts[attribute] == 0) continue;
+
+            double attributeMin = min[attribute];
+            double attributeMax = max[attribute];
+
+            if (counts[attribute] < numDocuments) {
+                attributeMin = Math.min(attributeMin, 0);
+                attributeMax = Math.max(attributeMax, 0);
+            }
+
+            ranges[attribute] = attributeMax - attributeMin;
+        }
+
+        return ranges;
+    }
+}
@@ -0,0 +1,269 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares a block of queries to every document of the index at once. The values of the queries are copied into a
+ * dense block with one row per attribute any of them contains and one column per query, so each value of a document
+ * is read once and combined with the values of all queries in the same row, an inner loop without branches that the
+ * JIT compiler can vectorize.
+ * <p/>
+ * A distance is split into the norms of query and document plus a correction for the attributes of the document, as
+ * in {@link InvertedIndex}: the attributes only the query contains are covered by the norm of the query, so a
+ * document costs one pass over its own values for all queries. As the scores are formed in a different order than by
+ * the merge kernel, the documents that can be among the best are scored again exactly, which gives the ranking of a
+ * {@link LinearScan}.
+ */
+public class BatchedScan implements NeighbourSearch {
+    private final SparseIndex index;
+    private final SimilarityMeasure[] similarityMeasures;
+    private final double[][] norms;
+    private final double[] maxNorms;
+    // which sums over the attributes of a document the measures need
+    private final boolean absoluteCorrections;
+    private final boolean dotProducts;
+    private final LinearScan linearScan;
+    private final AtomicLong comparisons = new AtomicLong();
+    private final AtomicLong evaluations = new AtomicLong();
+
+    public BatchedScan(SparseIndex index, SimilarityMeasure[] similarityMeasures) {
+        this.index = index;
+        this.similarityMeasures = similarityMeasures;
+
+        norms = new double[similarityMeasures.length][];
+        maxNorms = new double[similarityMeasures.length];
+
+        for (int m = 0; m < similarityMeasures.length; m++) {
+            norms[m] = index.getNorms(similarityMeasures[m]);
+            for (double norm : norms[m]) maxNorms[m] = Math.max(maxNorms[m], norm);
+        }
+
+        absoluteCorrections = Arrays.asList(similarityMeasures).contains(SimilarityMeasure.L1);
+        dotProducts = Arrays.asList(similarityMeasures).contains(SimilarityMeasure.L2) ||
+                Arrays.asList(similarityMeasures).contains(SimilarityMeasure.COSINE);
+        linearScan = new LinearScan(index, similarityMeasures);
+    }
+
+    @Override
+    public SparseIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * A single query is merged with every document like {@link LinearScan} does.
+     */
+    @Override
+    public void search(SparseVector query, int queryId, int from, int to, TopK[] topKs) {
+        linearScan.search(query, queryId, from, to, topKs);
+    }
+
+    /**
+     * Offers the documents of a range of the index that are closest to each query of a block to its collectors.
+     *
+     * @param queries  the vectors of the queries, normalized by the ranges of the index
+     * @param queryIds the ids of the names of the queries in the dictionary of the index, -1 for none
+     * @param from     the first document of the range
+     * @param to       the end of the range (exclusive)
+     * @param topKs    receive the documents, by query one collector per measure of the search in the same order
+     * @see #search(SparseVector, int, int, int, TopK[])
+     */
+    public void search(SparseVector[] queries, int[] queryIds, int from, int to, TopK[][] topKs) {
+        int numQueries = queries.length;
+        int numMeasures = similarityMeasures.length;
+        int[] attributes = index.getAttributes();
+        double[] values = index.getValues();
+        int[] offsets = index.getOffsets();
+
+        // row 0 of the block is left zero for the attributes none of the queries contains
+        int[] rows = new int[index.getNumAttributes()];
+        int numRows = 1;
+
+        for (SparseVector query : queries) {
+            for (int attribute : query.getAttributes()) {
+                if (rows[attribute] == 0) rows[attribute] = numRows++;
+            }
+        }
+
+        double[] block = new double[numRows * numQueries];
+        double[][] queryNorms = new double[numQueries][numMeasures];
+        double[][] slacks = new double[numQueries][numMeasures];
+        Candidates[][] candidates = new Candidates[numQueries][numMeasures];
+
+        for (int q = 0; q < numQueries; q++) {
+            int[] queryAttributes = queries[q].getAttributes();
+            double[] queryValues = queries[q].getValues();
+
+            for (int p = 0; p < queryAttributes.length; p++)
+                block[rows[queryAttributes[p]] * numQueries + q] = queryValues[p];
+
+            for (int m = 0; m < numMeasures; m++) {
+                for (double value : queryValues) queryNorms[q][m] += similarityMeasures[m].contribution(value);
+
+                slacks[q][m] = 1e-9 * (queryNorms[q][m] + maxNorms[m]);
+                candidates[q][m] = new Candidates(topKs[q][m].capacity());
+            }
+        }
+
+        double[] absolutes = new double[numQueries];
+        double[] products = new double[numQueries];
+        long compared = 0;
+
+        for (int document = from; document < to; document++) {
+            Arrays.fill(absolutes, 0);
+            Arrays.fill(products, 0);
+
+            for (int p = offsets[document]; p < offsets[document + 1]; p++) {
+                int row = rows[attributes[p]] * numQueries;
+
+                if (absoluteCorrections) addAbsoluteCorrections(block, row, values[p], absolutes);
+                if (dotProducts) addProducts(block, row, values[p], products);
+            }
+
+            for (int q = 0; q < numQueries; q++) {
+                // skip same document
+                if (index.getDocumentId(document) == queryIds[q]) continue;
+
+                int mismatches = index.nominalMismatches(queries[q], document);
+                compared++;
+
+                for (int m = 0; m < numMeasures; m++) {
+                    SimilarityMeasure similarityMeasure = similarityMeasures[m];
+                    double correction = similarityMeasure == SimilarityMeasure.L1 ? absolutes[q] :
+                            similarityMeasure == SimilarityMeasure.L2 ? -2 * products[q] : products[q];
+
+                    candidates[q][m].offer(document, similarityMeasure.score(queryNorms[q][m], norms[m][document],
+                            correction, mismatches), slacks[q][m]);
+                }
+            }
+        }
+
+        // the candidates of all measures of a query are scored exactly by all measures in one merge, which keeps
+        // every collector exact as the candidates of a measure include its closest documents
+        boolean[] scored = new boolean[to - from];
+        double[] distances = new double[numMeasures];
+        long evaluated = 0;
+
+        for (int q = 0; q < numQueries; q++) {
+            Arrays.fill(scored, false);
+
+            for (int m = 0; m < numMeasures; m++) {
+                Candidates measureCandidates = candidates[q][m];
+                measureCandidates.prune(slacks[q][m]);
+
+                for (int i = 0; i < measureCandidates.size; i++) {
+                    int document = measureCandidates.documents[i];
+                    if (scored[document - from]) continue;
+
+                    scored[document - from] = true;
+                    SimilarityMeasure.distances(similarityMeasures, queries[q], index, document, distances);
+                    evaluated++;
+
+                    for (int n = 0; n < numMeasures; n++) topKs[q][n].offer(document, distances[n]);
+                }
+            }
+        }
+
+        comparisons.addAndGet(compared * numMeasures);
+        evaluations.addAndGet(evaluated * numMeasures);
+    }
+
+    /**
+     * Adds {@code |q - d| - |q| - |d|} of an attribute of a document to the sums of all queries, the L1 correction.
+     *
+     * @param block  the values of the queries by attribute row and query
+     * @param row    the position of the row of the attribute in the block
+     * @param value  the value of the document
+     * @param sums   the sums by query
+     */
+    private static void addAbsoluteCorrections(double[] block, int row, double value, double[] sums) {
+        double absolute = Math.abs(value);
+
+        for (int q = 0; q < sums.length; q++) {
+            double queryValue = block[row + q];
+            sums[q] += Math.abs(queryValue - value) - Math.abs(queryValue) - absolute;
+        }
+    }
+
+    /**
+     * Adds the product of the values of an attribute of a document and all queries to their dot products.
+     *
+     * @see #addAbsoluteCorrections(double[], int, double, double[])
+     */
+    private static void addProducts(double[] block, int row, double value, double[] sums) {
+        for (int q = 0; q < sums.length; q++) sums[q] += block[row + q] * value;
+    }
+
+    /**
+     * @return the number of distances computed exactly, the scores of the blocks of queries are not counted
+     */
+    @Override
+    public long getEvaluations() {
+        return evaluations.get() + linearScan.getEvaluations();
+    }
+
+    /**
+     * @return the number of distances scored, by blocks of queries or one by one
+     */
+    public long getComparisons() {
+        return comparisons.get() + linearScan.getEvaluations();
+    }
+
+    /**
+     * The documents of a query and measure whose score is within the rounding error of the best ones so far.
+     */
+    private static class Candidates {
+        private final TopK scores;
+        private int[] documents;
+        private double[] documentScores;
+        private int size;
+
+        Candidates(int capacity) {
+            scores = new TopK(capacity);
+            documents = new int[Math.max(16, 2 * capacity)];
+            documentScores = new double[documents.length];
+        }
+
+        void offer(int document, double score, double slack) {
+            scores.offer(document, score);
+            if (!(score <= limit(slack))) return;
+
+            if (size == documents.length) {
+                prune(slack);
+
+                if (size > documents.length / 2) {
+                    documents = Arrays.copyOf(documents, 2 * documents.length);
+                    documentScores = Arrays.copyOf(documentScores, documents.length);
+                }
+            }
+
+            documents[size] = document;
+            documentScores[size++] = score;
+        }
+
+        /**
+         * Removes the candidates that can no longer be among the best.
+         */
+        void prune(double slack) {
+            double limit = limit(slack);
+            int kept = 0;
+
+            for (int i = 0; i < size; i++) {
+                if (!(documentScores[i] <= limit)) continue;
+
+                documents[kept] = documents[i];
+                documentScores[kept++] = documentScores[i];
+            }
+
+            size = kept;
+        }
+
+        /**
+         * @return the score a document has to be within to possibly be among the best, see {@link InvertedIndex}
+         */
+        private double limit(double slack) {
+            if (scores.capacity() == 0) return Double.NEGATIVE_INFINITY;
+
+            double threshold = scores.threshold();
+            return threshold + slack + 1e-9 * (1 + Math.abs(threshold));
+        }
+    }
+}
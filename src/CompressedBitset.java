@@ -0,0 +1,321 @@
+import java.util.Arrays;
+
+/**
+ * An immutable set of non-negative ints compressed like a Roaring bitmap: the values are split into chunks by their
+ * upper 16 bits, and a chunk stores its lower 16 bits as a sorted array while it holds at most {@link #MAX_ARRAY}
+ * values (two bytes each) and as a bitmap of 65536 bits otherwise (at most one bit each). Intersection, union and
+ * symmetric difference work chunk by chunk, only on the chunks present, so they take time by the sizes of the sets and
+ * not by the range of the values.
+ */
+public class CompressedBitset {
+    public static final CompressedBitset EMPTY = new CompressedBitset(0);
+
+    // a chunk with more values is stored as a bitmap
+    private static final int MAX_ARRAY = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    // the upper 16 bits of each chunk in ascending order
+    private char[] keys;
+    // the lower 16 bits of the values of each chunk, either sorted or as a bitmap
+    private char[][] arrays;
+    private long[][] bitmaps;
+    private int[] cardinalities;
+    private int numChunks;
+    private int cardinality;
+
+    private CompressedBitset(int capacity) {
+        keys = new char[capacity];
+        arrays = new char[capacity][];
+        bitmaps = new long[capacity][];
+        cardinalities = new int[capacity];
+    }
+
+    /**
+     * @param values the values in ascending order without duplicates
+     * @param from   the first value
+     * @param to     the end of the values
+     * @return the set of the values
+     */
+    public static CompressedBitset of(int[] values, int from, int to) {
+        CompressedBitset bitset = new CompressedBitset(4);
+
+        for (int start = from, end; start < to; start = end) {
+            int key = values[start] >>> 16;
+            for (end = start + 1; end < to && values[end] >>> 16 == key; ) end++;
+
+            char[] array = new char[end - start];
+            for (int i = start; i < end; i++) array[i - start] = (char) values[i];
+            bitset.append((char) key, array, null, array.length);
+        }
+
+        return bitset;
+    }
+
+    /**
+     * @return the number of values
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * @param value a value
+     * @return whether the set contains the value
+     */
+    public boolean contains(int value) {
+        int chunk = Arrays.binarySearch(keys, 0, numChunks, (char) (value >>> 16));
+        if (value < 0 || chunk < 0) return false;
+
+        if (arrays[chunk] != null) return Arrays.binarySearch(arrays[chunk], (char) value) >= 0;
+        return (bitmaps[chunk][(char) value >>> 6] & (1L << value)) != 0;
+    }
+
+    /**
+     * @return the values in ascending order
+     */
+    public int[] toArray() {
+        int[] values = new int[cardinality];
+        int size = 0;
+
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            int high = keys[chunk] << 16;
+
+            if (arrays[chunk] != null) {
+                for (char low : arrays[chunk]) values[size++] = high | low;
+                continue;
+            }
+
+            long[] bitmap = bitmaps[chunk];
+
+            for (int word = 0; word < BITMAP_WORDS; word++) {
+                for (long bits = bitmap[word]; bits != 0; bits &= bits - 1)
+                    values[size++] = high | word << 6 | Long.numberOfTrailingZeros(bits);
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * @return the bytes the arrays and bitmaps of the chunks take
+     */
+    public long getBytes() {
+        long bytes = 0;
+
+        for (int chunk = 0; chunk < numChunks; chunk++)
+            bytes += arrays[chunk] != null ? 2L * arrays[chunk].length : 8L * BITMAP_WORDS;
+
+        return bytes;
+    }
+
+    /**
+     * @param other another set
+     * @return the values in both sets
+     */
+    public CompressedBitset and(CompressedBitset other) {
+        CompressedBitset result = new CompressedBitset(Math.min(numChunks, other.numChunks));
+
+        for (int i = 0, j = 0; i < numChunks && j < other.numChunks; ) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                char[] array = arrays[i], otherArray = other.arrays[j];
+
+                if (array != null && otherArray != null) {
+                    result.appendArray(keys[i], intersect(array, otherArray));
+                } else if (array != null || otherArray != null) {
+                    result.appendArray(keys[i], filter(array != null ? array : otherArray,
+                            array != null ? other.bitmaps[j] : bitmaps[i]));
+                } else {
+                    long[] bitmap = new long[BITMAP_WORDS];
+                    for (int word = 0; word < BITMAP_WORDS; word++)
+                        bitmap[word] = bitmaps[i][word] & other.bitmaps[j][word];
+                    result.appendBitmap(keys[i], bitmap);
+                }
+
+                i++;
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param other another set
+     * @return the values in either set
+     */
+    public CompressedBitset or(CompressedBitset other) {
+        return combine(other, false);
+    }
+
+    /**
+     * @param other another set
+     * @return the values in exactly one of the sets
+     */
+    public CompressedBitset xor(CompressedBitset other) {
+        return combine(other, true);
+    }
+
+    /**
+     * Unites the chunks of the sets, or forms their symmetric difference.
+     */
+    private CompressedBitset combine(CompressedBitset other, boolean exclusive) {
+        CompressedBitset result = new CompressedBitset(numChunks + other.numChunks);
+        int i = 0, j = 0;
+
+        while (i < numChunks || j < other.numChunks) {
+            if (j == other.numChunks || (i < numChunks && keys[i] < other.keys[j])) {
+                result.append(keys[i], arrays[i], bitmaps[i], cardinalities[i]);
+                i++;
+            } else if (i == numChunks || keys[i] > other.keys[j]) {
+                result.append(other.keys[j], other.arrays[j], other.bitmaps[j], other.cardinalities[j]);
+                j++;
+            } else {
+                if (arrays[i] != null && other.arrays[j] != null &&
+                        arrays[i].length + other.arrays[j].length <= MAX_ARRAY) {
+                    result.appendArray(keys[i], merge(arrays[i], other.arrays[j], exclusive));
+                } else {
+                    long[] bitmap = toBitmap(arrays[i], bitmaps[i]);
+                    long[] otherBitmap = other.bitmaps[j] != null ? other.bitmaps[j] :
+                            toBitmap(other.arrays[j], null);
+
+                    for (int word = 0; word < BITMAP_WORDS; word++)
+                        bitmap[word] = exclusive ? bitmap[word] ^ otherBitmap[word] : bitmap[word] | otherBitmap[word];
+                    result.appendBitmap(keys[i], bitmap);
+                }
+
+                i++;
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Appends a chunk, which must have a larger key than the chunks so far. Empty chunks are left out.
+     */
+    private void append(char key, char[] array, long[] bitmap, int chunkCardinality) {
+        if (chunkCardinality == 0) return;
+
+        if (numChunks == keys.length) {
+            int capacity = Math.max(4, 2 * numChunks);
+            keys = Arrays.copyOf(keys, capacity);
+            arrays = Arrays.copyOf(arrays, capacity);
+            bitmaps = Arrays.copyOf(bitmaps, capacity);
+            cardinalities = Arrays.copyOf(cardinalities, capacity);
+        }
+
+        if (array != null && array.length > MAX_ARRAY) {
+            bitmap = toBitmap(array, null);
+            array = null;
+        }
+
+        keys[numChunks] = key;
+        arrays[numChunks] = array;
+        bitmaps[numChunks] = bitmap;
+        cardinalities[numChunks] = chunkCardinality;
+        numChunks++;
+        cardinality += chunkCardinality;
+    }
+
+    private void appendArray(char key, char[] array) {
+        append(key, array, null, array.length);
+    }
+
+    /**
+     * Appends a bitmap chunk, as an array if it holds few enough values.
+     */
+    private void appendBitmap(char key, long[] bitmap) {
+        int chunkCardinality = 0;
+        for (long bits : bitmap) chunkCardinality += Long.bitCount(bits);
+
+        if (chunkCardinality > MAX_ARRAY) {
+            append(key, null, bitmap, chunkCardinality);
+            return;
+        }
+
+        char[] array = new char[chunkCardinality];
+        int size = 0;
+
+        for (int word = 0; word < BITMAP_WORDS; word++) {
+            for (long bits = bitmap[word]; bits != 0; bits &= bits - 1)
+                array[size++] = (char) (word << 6 | Long.numberOfTrailingZeros(bits));
+        }
+
+        appendArray(key, array);
+    }
+
+    /**
+     * @return a new bitmap of an array chunk, or a copy of a bitmap chunk
+     */
+    private static long[] toBitmap(char[] array, long[] bitmap) {
+        if (bitmap != null) return Arrays.copyOf(bitmap, BITMAP_WORDS);
+
+        long[] result = new long[BITMAP_WORDS];
+        for (char low : array) result[low >>> 6] |= 1L << low;
+        return result;
+    }
+
+    private static char[] intersect(char[] first, char[] second) {
+        char[] result = new char[Math.min(first.length, second.length)];
+        int size = 0;
+
+        for (int i = 0, j = 0; i < first.length && j < second.length; ) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                result[size++] = first[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * @return the values of the array set in the bitmap
+     */
+    private static char[] filter(char[] array, long[] bitmap) {
+        char[] result = new char[array.length];
+        int size = 0;
+
+        for (char low : array) {
+            if ((bitmap[low >>> 6] & (1L << low)) != 0) result[size++] = low;
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * @return the union of the arrays, or their symmetric difference if exclusive
+     */
+    private static char[] merge(char[] first, char[] second, boolean exclusive) {
+        char[] result = new char[first.length + second.length];
+        int size = 0, i = 0, j = 0;
+
+        while (i < first.length || j < second.length) {
+            if (j == second.length || (i < first.length && first[i] < second[j])) {
+                result[size++] = first[i++];
+            } else if (i == first.length || first[i] > second[j]) {
+                result[size++] = second[j++];
+            } else {
+                if (!exclusive) result[size++] = first[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+}
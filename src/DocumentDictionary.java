@@ -0,0 +1,67 @@
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns every document name (class/document) a dense integer id the first time it is seen. The indices of a run
+ * share one dictionary, so a document has the same id in all of them: the search, ranking and aggregation work on the
+ * ids, and the names are only looked up to print the results.
+ * <p/>
+ * Indices are loaded in parallel, so the dictionary is thread-safe.
+ */
+public class DocumentDictionary {
+    private final Map<String, Integer> ids = Maps.newHashMap();
+    private final List<String> names = Lists.newArrayList();
+
+    /**
+     * @param name the name of a document
+     * @return the id of the name, assigned if the name is new
+     */
+    public synchronized int getId(String name) {
+        Integer id = ids.get(name);
+
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+
+        return id;
+    }
+
+    /**
+     * @param names the names of documents
+     * @return the ids of the names, assigned to the new ones
+     */
+    public synchronized int[] getIds(List<String> names) {
+        int[] nameIds = new int[names.size()];
+        for (int i = 0; i < nameIds.length; i++) nameIds[i] = getId(names.get(i));
+        return nameIds;
+    }
+
+    /**
+     * @param name the name of a document
+     * @return the id of the name, -1 if it has none
+     */
+    public synchronized int find(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id the id of a document
+     * @return the name of the document
+     */
+    public synchronized String getName(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * @return the number of names, all ids are smaller
+     */
+    public synchronized int size() {
+        return names.size();
+    }
+}
@@ -6,10 +6,11 @@ import com.google.common.base.Objects;
 public class DocumentSimilarity implements Comparable<DocumentSimilarity> {
     private double distance;
     private int rank;
-    private String targetDocument;
+    // the id of the document in the dictionary of the index
+    private int targetDocument;
     private String index;
 
-    public DocumentSimilarity(double distance, String targetDocument, String index) {
+    public DocumentSimilarity(double distance, int targetDocument, String index) {
         this.distance = distance;
         this.targetDocument = targetDocument;
         this.index = index;
@@ -27,7 +28,10 @@ public class DocumentSimilarity implements Comparable<DocumentSimilarity> {
         return distance;
     }
 
-    public String getTargetDocument() {
+    /**
+     * @return the id of the document, see {@link DocumentDictionary#getName(int)}
+     */
+    public int getTargetDocument() {
         return targetDocument;
     }
 
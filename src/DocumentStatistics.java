@@ -1,62 +1,48 @@
-import com.google.common.collect.Lists;
-
-import java.util.List;
-
 /**
 * @author patrick
 */
 public class DocumentStatistics implements Comparable<DocumentStatistics> {
-    private String document;
+    // the id of the document in the dictionary of the indices
+    private int document;
     private int numberOfOccurrences;
-    private List<Integer> ranks;
-    private List<Double> distances;
-    private double averageRank = -1.0;
-    private double averageDistance = -1.0;
+    private long rankSum;
+    private double distanceSum;
 
-    public DocumentStatistics(String document)
+    public DocumentStatistics(int document)
     {
         this.document = document;
         numberOfOccurrences = 0;
-        ranks = Lists.newArrayList();
-        distances = Lists.newArrayList();
     }
 
-    public String getDocument() {
+    /**
+     * @param document            the id of the document
+     * @param numberOfOccurrences the number of rankings the document occurs in
+     * @param rankSum             the sum of its ranks
+     * @param distanceSum         the sum of its distances
+     */
+    public DocumentStatistics(int document, int numberOfOccurrences, long rankSum, double distanceSum) {
+        this.document = document;
+        this.numberOfOccurrences = numberOfOccurrences;
+        this.rankSum = rankSum;
+        this.distanceSum = distanceSum;
+    }
+
+    public int getDocument() {
         return document;
     }
 
     public void addState(int rank, double distance) {
         numberOfOccurrences++;
-        ranks.add(rank);
-        distances.add(distance);
+        rankSum += rank;
+        distanceSum += distance;
     }
 
     public double getAverageRank() {
-        if (averageRank > -1) return averageRank;
-
-        averageRank = 0;
-
-        for (Integer rank : ranks)
-            averageRank += rank;
-
-        averageRank /= ranks.size();
-        ranks = null;
-
-        return averageRank;
+        return (double) rankSum / numberOfOccurrences;
     }
 
     public double getAverageDistance() {
-        if (averageDistance > -1) return averageDistance;
-
-        averageDistance = 0;
-
-        for (Double distance : distances)
-            averageDistance += distance;
-
-        averageDistance /= distances.size();
-        distances = null;
-
-        return averageDistance;
+        return distanceSum / numberOfOccurrences;
     }
 
     public int getNumberOfOccurrences() {
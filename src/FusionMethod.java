@@ -0,0 +1,106 @@
+/**
+ * The ways the rankings of several indices are combined into one, each a sum over the indices of a grade that grows
+ * with the distance or rank of a document, the documents with the smallest sum coming first.
+ */
+public enum FusionMethod {
+    /**
+     * the average distance of a document over the indices, documents missing from an index are left out
+     */
+    DISTANCE("avg distance") {
+        @Override
+        public double grade(int rank, double distance) {
+            return distance;
+        }
+
+        @Override
+        public double missingGrade(int size) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        public double score(double sum, int numIndices) {
+            return sum / numIndices;
+        }
+    },
+    /**
+     * the average rank of a document over the indices, a document missing from an index counts as ranked last
+     */
+    RANK("avg rank") {
+        @Override
+        public double grade(int rank, double distance) {
+            return rank;
+        }
+
+        @Override
+        public double missingGrade(int size) {
+            return size + 1;
+        }
+
+        @Override
+        public double score(double sum, int numIndices) {
+            return sum / numIndices;
+        }
+    },
+    /**
+     * reciprocal rank fusion, the sum of {@code 1 / (60 + rank)} over the indices, which is the larger the better
+     */
+    RRF("rrf score") {
+        @Override
+        public double grade(int rank, double distance) {
+            return -1.0 / (RRF_CONSTANT + rank);
+        }
+
+        @Override
+        public double missingGrade(int size) {
+            return 0;
+        }
+
+        @Override
+        public double score(double sum, int numIndices) {
+            return -sum;
+        }
+    };
+
+    private static final int RRF_CONSTANT = 60;
+
+    private final String scoreName;
+
+    FusionMethod(String scoreName) {
+        this.scoreName = scoreName;
+    }
+
+    /**
+     * @return the name of the score in reports
+     */
+    public String getScoreName() {
+        return scoreName;
+    }
+
+    /**
+     * @param rank     the rank of a document in an index, starting at 1
+     * @param distance the distance of the document in the index
+     * @return the grade of the document in the index, not decreasing with rank and distance
+     */
+    public abstract double grade(int rank, double distance);
+
+    /**
+     * @param size the number of documents of an index
+     * @return the grade of a document missing from the index, not smaller than any other grade
+     */
+    public abstract double missingGrade(int size);
+
+    /**
+     * @param sum        the sum of the grades of a document
+     * @param numIndices the number of indices
+     * @return the score reported for the document
+     */
+    public abstract double score(double sum, int numIndices);
+
+    /**
+     * @return if the grade of a document in an index can be looked up without ranking the index, which lets the
+     *         threshold algorithm complete the grades of every document as soon as it is seen
+     */
+    public boolean hasRandomAccess() {
+        return this == DISTANCE;
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The compiled form of an index: a binary file holding the attribute dictionary, the document names and the raw
+ * sparse rows of an index, which is memory-mapped on load instead of being parsed.
+ * <p/>
+ * Layout (big-endian): the magic number and version, the attributes (kind, name and for nominal attributes the value
+ * labels), the number of documents, values and nominal attributes, the attribute ranges, the document names, and
+ * finally the offsets, attributes, raw values and nominal values of the rows. Strings are stored as their length
+ * followed by their UTF-8 bytes.
+ */
+public class IndexFile {
+    public static final String EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x53494458;
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private IndexFile() {
+    }
+
+    /**
+     * @param indexFile an ARFF index
+     * @return the file the compiled form of the index is written to
+     */
+    public static File getCompiledFile(File indexFile) {
+        return new File(indexFile.getPath() + EXTENSION);
+    }
+
+    /**
+     * @param indexFile an ARFF index
+     * @return if a compiled form of the index exists that is not older than the index
+     */
+    public static boolean isCompiled(File indexFile) {
+        File compiledFile = getCompiledFile(indexFile);
+        return compiledFile.isFile() && compiledFile.lastModified() >= indexFile.lastModified();
+    }
+
+    /**
+     * @param compiledFile a compiled index
+     * @return the ARFF index the file was compiled from
+     */
+    public static File getSourceFile(File compiledFile) {
+        String path = compiledFile.getPath();
+        return new File(path.endsWith(EXTENSION) ? path.substring(0, path.length() - EXTENSION.length()) : path);
+    }
+
+    /**
+     * @param compiledFile a compiled index
+     * @return the name of the index the file was compiled from
+     */
+    public static String getIndexName(File compiledFile) {
+        return getSourceFile(compiledFile).getName();
+    }
+
+    /**
+     * Writes the rows of the builder without normalizing them.
+     *
+     * @param builder      the rows of the index
+     * @param compiledFile the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(SparseIndex.Builder builder, File compiledFile) throws IOException {
+        DataOutputStream output =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compiledFile), 1 << 16));
+
+        try {
+            byte[] kinds = builder.getKinds();
+            String[] attributeNames = builder.getAttributeNames();
+            String[][] nominalLabels = builder.getNominalLabels();
+            int numDocuments = builder.size();
+            int numNominal = 0;
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(kinds.length);
+
+            for (int attribute = 0; attribute < kinds.length; attribute++) {
+                output.writeByte(kinds[attribute]);
+                writeString(output, attributeNames[attribute]);
+
+                if (kinds[attribute] != SparseIndex.NOMINAL) continue;
+
+                String[] labels = nominalLabels[numNominal++];
+                output.writeInt(labels.length);
+                for (String label : labels) writeString(output, label);
+            }
+
+            output.writeInt(numDocuments);
+            output.writeInt(builder.getNumValues());
+            output.writeInt(numNominal);
+
+            for (double range : builder.getRanges()) output.writeDouble(range);
+            for (String document : builder.getDocuments()) writeString(output, document);
+
+            int[] offsets = builder.getOffsets();
+            for (int i = 0; i <= numDocuments; i++) output.writeInt(offsets[i]);
+
+            int[] attributes = builder.getAttributes();
+            for (int i = 0; i < builder.getNumValues(); i++) output.writeInt(attributes[i]);
+
+            double[] values = builder.getValues();
+            for (int i = 0; i < builder.getNumValues(); i++) output.writeDouble(values[i]);
+
+            int[] nominals = builder.getNominals();
+            for (int i = 0; i < numDocuments * numNominal; i++) output.writeInt(nominals[i]);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Maps a compiled index into memory and reads its rows.
+     *
+     * @param compiledFile the compiled index
+     * @param name         the name of the index
+     * @return the rows of the index, with the ranges stored in the file
+     * @throws IOException if the file cannot be read or is no compiled index
+     */
+    public static SparseIndex.Builder read(File compiledFile, String name) throws IOException {
+        return read(compiledFile, name, 0, 1);
+    }
+
+    /**
+     * Maps a compiled index into memory and reads the rows of one shard, only the values of its rows are copied.
+     *
+     * @param compiledFile the compiled index
+     * @param name         the name of the index
+     * @param shard        the shard, see {@link ShardWorker#getFirstDocument(int, int, int)}
+     * @param numShards    the number of shards
+     * @return the rows of the shard, with the ranges of the whole index stored in the file
+     * @throws IOException if the file cannot be read or is no compiled index
+     */
+    public static SparseIndex.Builder read(File compiledFile, String name, int shard, int numShards)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(compiledFile, "r");
+
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                throw new IOException(compiledFile + " is no compiled index of version " + VERSION);
+
+            int numAttributes = buffer.getInt();
+            byte[] kinds = new byte[numAttributes];
+            String[] attributeNames = new String[numAttributes];
+            String[][] nominalLabels = new String[numAttributes][];
+            int numNominal = 0;
+
+            for (int attribute = 0; attribute < numAttributes; attribute++) {
+                kinds[attribute] = buffer.get();
+                attributeNames[attribute] = readString(buffer);
+
+                if (kinds[attribute] != SparseIndex.NOMINAL) continue;
+
+                String[] labels = new String[buffer.getInt()];
+                for (int i = 0; i < labels.length; i++) labels[i] = readString(buffer);
+                nominalLabels[numNominal++] = labels;
+            }
+
+            int numDocuments = buffer.getInt();
+            int numValues = buffer.getInt();
+            if (buffer.getInt() != numNominal) throw new IOException(compiledFile + " is corrupt");
+
+            double[] ranges = new double[numAttributes];
+            buffer.asDoubleBuffer().get(ranges);
+            buffer.position(buffer.position() + 8 * numAttributes);
+
+            int first = ShardWorker.getFirstDocument(numDocuments, shard, numShards);
+            int end = ShardWorker.getFirstDocument(numDocuments, shard + 1, numShards);
+
+            String[] documents = new String[end - first];
+
+            for (int i = 0; i < numDocuments; i++) {
+                String document = readString(buffer);
+                if (i >= first && i < end) documents[i - first] = document;
+            }
+
+            int[] allOffsets = new int[numDocuments + 1];
+            buffer.asIntBuffer().get(allOffsets);
+            buffer.position(buffer.position() + 4 * allOffsets.length);
+
+            int[] offsets = new int[end - first + 1];
+            for (int i = 0; i < offsets.length; i++) offsets[i] = allOffsets[first + i] - allOffsets[first];
+
+            int valuesFrom = allOffsets[first];
+            int valuesTo = allOffsets[end];
+            int position = buffer.position();
+
+            int[] attributes = new int[valuesTo - valuesFrom];
+            buffer.position(position + 4 * valuesFrom);
+            buffer.asIntBuffer().get(attributes);
+            position += 4 * numValues;
+
+            double[] values = new double[valuesTo - valuesFrom];
+            buffer.position(position + 8 * valuesFrom);
+            buffer.asDoubleBuffer().get(values);
+            position += 8 * numValues;
+
+            int[] nominals = new int[(end - first) * numNominal];
+            buffer.position(position + 4 * first * numNominal);
+            buffer.asIntBuffer().get(nominals);
+
+            String[][] labels = new String[numNominal][];
+            System.arraycopy(nominalLabels, 0, labels, 0, numNominal);
+
+            return new SparseIndex.Builder(name, attributeNames, kinds, labels)
+                    .setRows(offsets, attributes, values, nominals, documents)
+                    .setRanges(ranges);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Maps a compiled index into memory and reads only the offsets of its rows, so its values are read from the file
+     * as they are needed.
+     *
+     * @param compiledFile the compiled index
+     * @return the values of the rows of the index
+     * @throws IOException if the file cannot be read or is no compiled index
+     */
+    public static MappedValues mapValues(File compiledFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(compiledFile, "r");
+
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                throw new IOException(compiledFile + " is no compiled index of version " + VERSION);
+
+            int numAttributes = buffer.getInt();
+
+            for (int attribute = 0; attribute < numAttributes; attribute++) {
+                byte kind = buffer.get();
+                readString(buffer);
+
+                if (kind != SparseIndex.NOMINAL) continue;
+
+                for (int i = buffer.getInt(); i > 0; i--) readString(buffer);
+            }
+
+            int numDocuments = buffer.getInt();
+            int numValues = buffer.getInt();
+            buffer.getInt();
+
+            double[] ranges = new double[numAttributes];
+            buffer.asDoubleBuffer().get(ranges);
+            buffer.position(buffer.position() + 8 * numAttributes);
+
+            for (int i = 0; i < numDocuments; i++) readString(buffer);
+
+            int[] offsets = new int[numDocuments + 1];
+            buffer.asIntBuffer().get(offsets);
+            buffer.position(buffer.position() + 4 * offsets.length);
+
+            IntBuffer attributes = buffer.asIntBuffer();
+            buffer.position(buffer.position() + 4 * numValues);
+            DoubleBuffer values = buffer.asDoubleBuffer();
+
+            return new MappedValues(offsets, attributes, values, ranges);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
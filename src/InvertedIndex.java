@@ -0,0 +1,171 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers exact queries from per-attribute posting lists instead of merging the query with every document. A
+ * distance is split into the norms of query and document plus a correction for the attributes both contain (for L1
+ * {@code |q - d| - |q| - |d|}, for L2 {@code -2qd}, for COSINE the dot product), so only the postings of the
+ * attributes of the query are visited.
+ * <p/>
+ * As the scores are formed in a different order than by {@link SimilarityMeasure#distance}, the documents that can
+ * be among the best are scored again with the merge kernel, which gives exactly the ranking of a {@link LinearScan}.
+ * The corrections of all measures are collected in the same pass over the postings.
+ */
+public class InvertedIndex implements NeighbourSearch {
+    private final SparseIndex index;
+    private final SimilarityMeasure[] similarityMeasures;
+    private final double[][] norms;
+    private final double[] maxNorms;
+    private final int[] postingOffsets;
+    private final int[] postingDocuments;
+    private final double[] postingValues;
+    private final AtomicLong evaluations = new AtomicLong();
+
+    public InvertedIndex(SparseIndex index, SimilarityMeasure[] similarityMeasures) {
+        this.index = index;
+        this.similarityMeasures = similarityMeasures;
+
+        norms = new double[similarityMeasures.length][];
+        maxNorms = new double[similarityMeasures.length];
+
+        for (int m = 0; m < similarityMeasures.length; m++) {
+            norms[m] = index.getNorms(similarityMeasures[m]);
+            for (double norm : norms[m]) maxNorms[m] = Math.max(maxNorms[m], norm);
+        }
+
+        int[] offsets = index.getOffsets();
+        int[] attributes = index.getAttributes();
+        double[] values = index.getValues();
+
+        postingOffsets = new int[index.getNumAttributes() + 1];
+        postingDocuments = new int[attributes.length];
+        postingValues = new double[attributes.length];
+
+        for (int attribute : attributes) postingOffsets[attribute + 1]++;
+        for (int attribute = 0; attribute < index.getNumAttributes(); attribute++)
+            postingOffsets[attribute + 1] += postingOffsets[attribute];
+
+        int[] positions = Arrays.copyOf(postingOffsets, index.getNumAttributes());
+
+        for (int document = 0; document < index.size(); document++) {
+            for (int p = offsets[document]; p < offsets[document + 1]; p++) {
+                int position = positions[attributes[p]]++;
+                postingDocuments[position] = document;
+                postingValues[position] = values[p];
+            }
+        }
+    }
+
+    @Override
+    public SparseIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public void search(SparseVector query, int queryId, int from, int to, TopK[] topKs) {
+        int[] queryAttributes = query.getAttributes();
+        double[] queryValues = query.getValues();
+        int numMeasures = similarityMeasures.length;
+        double[] queryNorms = new double[numMeasures];
+        double[][] corrections = new double[numMeasures][to - from];
+        int[] mismatches = new int[to - from];
+        long evaluated = 0;
+
+        for (int m = 0; m < numMeasures; m++) {
+            for (double value : queryValues) queryNorms[m] += similarityMeasures[m].contribution(value);
+        }
+
+        for (int document = from; document < to; document++) {
+            // skip same document
+            mismatches[document - from] = index.getDocumentId(document) == queryId ? -1 :
+                    index.nominalMismatches(query, document);
+        }
+
+        for (int p = 0; p < queryAttributes.length; p++) {
+            double queryValue = queryValues[p];
+            int end = postingOffsets[queryAttributes[p] + 1];
+
+            for (int i = firstPosting(queryAttributes[p], from); i < end && postingDocuments[i] < to; i++) {
+                double value = postingValues[i];
+                int document = postingDocuments[i] - from;
+
+                for (int m = 0; m < numMeasures; m++)
+                    corrections[m][document] += similarityMeasures[m].correction(queryValue, value);
+            }
+        }
+
+        for (int m = 0; m < numMeasures; m++) {
+            SimilarityMeasure similarityMeasure = similarityMeasures[m];
+            double[] scores = corrections[m];
+
+            for (int document = from; document < to; document++) {
+                int documentMismatches = mismatches[document - from];
+
+                scores[document - from] = documentMismatches < 0 ? Double.POSITIVE_INFINITY :
+                        similarityMeasure.score(queryNorms[m], norms[m][document], scores[document - from],
+                                documentMismatches);
+            }
+
+            evaluated += rerank(query, from, to, scores, 1e-9 * (queryNorms[m] + maxNorms[m]), similarityMeasure,
+                    topKs[m]);
+        }
+
+        evaluations.addAndGet(evaluated);
+    }
+
+    /**
+     * @return the number of distances computed when scoring the candidates exactly, the approximate scores of all
+     *         documents sharing an attribute with the query are not counted
+     */
+    @Override
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+
+    /**
+     * Scores the documents that can be among the best by their approximate scores exactly.
+     *
+     * @return the number of documents scored
+     */
+    private long rerank(SparseVector query, int from, int to, double[] scores, double slack,
+                        SimilarityMeasure similarityMeasure, TopK topK) {
+        // everything within the rounding error of the worst score collected can still be among the best documents
+        TopK candidates = new TopK(Math.min(topK.capacity(), scores.length));
+        for (int document = from; document < to; document++) candidates.offer(document, scores[document - from]);
+
+        double threshold = candidates.threshold();
+        double limit = threshold + slack + 1e-9 * (1 + Math.abs(threshold));
+        long evaluated = 0;
+
+        for (int document = from; document < to; document++) {
+            double score = scores[document - from];
+
+            if (score <= limit && score != Double.POSITIVE_INFINITY) {
+                topK.offer(document, similarityMeasure.distance(query, index, document));
+                evaluated++;
+            }
+        }
+
+        return evaluated;
+    }
+
+    /**
+     * @return the position of the first posting of the attribute with a document not before the given one
+     */
+    private int firstPosting(int attribute, int document) {
+        int low = postingOffsets[attribute];
+        int high = postingOffsets[attribute + 1];
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (postingDocuments[middle] < document) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+}
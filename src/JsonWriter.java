@@ -0,0 +1,136 @@
+import java.util.BitSet;
+
+/**
+ * Writes a JSON document into a string, adding the commas and escapes as values are appended.
+ */
+public class JsonWriter {
+    private final StringBuilder json = new StringBuilder();
+    // if the object or array at each depth already holds an element
+    private final BitSet hasElements = new BitSet();
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter beginObject() {
+        return begin('{');
+    }
+
+    public JsonWriter endObject() {
+        return end('}');
+    }
+
+    public JsonWriter beginArray() {
+        return begin('[');
+    }
+
+    public JsonWriter endArray() {
+        return end(']');
+    }
+
+    /**
+     * @param name the name of the next member of the current object
+     * @return this writer
+     */
+    public JsonWriter name(String name) {
+        separate();
+        quote(name);
+        json.append(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        separate();
+
+        if (value == null) {
+            json.append("null");
+        } else {
+            quote(value);
+        }
+
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        separate();
+        json.append(value);
+        return this;
+    }
+
+    /**
+     * @param value a number, written as null if it is not finite
+     * @return this writer
+     */
+    public JsonWriter value(double value) {
+        separate();
+        json.append(Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        separate();
+        json.append(value);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return json.toString();
+    }
+
+    private JsonWriter begin(char bracket) {
+        separate();
+        json.append(bracket);
+        hasElements.clear(++depth);
+        return this;
+    }
+
+    private JsonWriter end(char bracket) {
+        json.append(bracket);
+        depth--;
+        return this;
+    }
+
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+
+        if (hasElements.get(depth)) json.append(',');
+        hasElements.set(depth);
+    }
+
+    private void quote(String value) {
+        json.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+
+        json.append('"');
+    }
+}
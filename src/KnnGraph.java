@@ -0,0 +1,206 @@
+import com.google.common.collect.Lists;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The k nearest neighbours of every document of an index. The documents are split into tiles of consecutive
+ * documents that fit into the cache together, and every pair of documents is compared once: as the distances are
+ * symmetric, the distance of a pair is offered to the neighbours of both documents. The tile pairs are scored in
+ * rounds in which no two tile pairs share a tile, so the neighbours of a document are only ever updated by one thread
+ * and the graph does not depend on the number of threads. Only the k neighbours per document and measure are kept.
+ * <p/>
+ * A graph is written per measure as a binary edge list (big-endian): the magic number and version, the measure, k,
+ * the number of documents and their names, the number of edges and then for each document its neighbours by rank as
+ * the document, the neighbour, the distance and the rank (starting at 1). Strings are stored as their length followed
+ * by their UTF-8 bytes.
+ */
+public class KnnGraph {
+    public static final String EXTENSION = ".knn";
+
+    private static final int MAGIC = 0x534B4E4E;
+    private static final int VERSION = 1;
+    private static final int TILE_SIZE = 128;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final SparseIndex index;
+    private final SimilarityMeasure[] similarityMeasures;
+    private final int k;
+    // by measure and document
+    private final TopK[][] neighbours;
+    private final AtomicLong evaluations = new AtomicLong();
+
+    /**
+     * @param index              the index
+     * @param similarityMeasures the measures to rank the neighbours by
+     * @param k                  the number of neighbours per document
+     */
+    public KnnGraph(SparseIndex index, SimilarityMeasure[] similarityMeasures, int k) {
+        this.index = index;
+        this.similarityMeasures = similarityMeasures;
+        this.k = k;
+
+        neighbours = new TopK[similarityMeasures.length][index.size()];
+        for (TopK[] measureNeighbours : neighbours) {
+            for (int document = 0; document < index.size(); document++)
+                measureNeighbours[document] = new TopK(Math.min(k, index.size()));
+        }
+    }
+
+    /**
+     * Compares all pairs of documents.
+     *
+     * @param executor the executor to score the tile pairs with
+     * @throws Exception if the scoring failed
+     */
+    public void compute(ExecutorService executor) throws Exception {
+        int numTiles = (index.size() + TILE_SIZE - 1) / TILE_SIZE;
+
+        // the pairs of a tile with itself, then the other pairs by the circle method, where every round pairs each
+        // tile with another one (or none if the number of tiles is odd)
+        List<Callable<Object>> tasks = Lists.newArrayList();
+        for (int tile = 0; tile < numTiles; tile++) tasks.add(createTask(tile, tile));
+        runRound(executor, tasks);
+
+        int numPositions = numTiles + numTiles % 2;
+        int[] positions = new int[numPositions];
+        for (int i = 0; i < numPositions; i++) positions[i] = i;
+
+        for (int round = 0; round < numPositions - 1; round++) {
+            tasks.clear();
+
+            for (int i = 0; i < numPositions / 2; i++) {
+                int first = positions[i];
+                int second = positions[numPositions - 1 - i];
+                if (first < numTiles && second < numTiles) tasks.add(createTask(first, second));
+            }
+
+            runRound(executor, tasks);
+
+            // keep the first position, rotate the others
+            int last = positions[numPositions - 1];
+            System.arraycopy(positions, 1, positions, 2, numPositions - 2);
+            if (numPositions > 1) positions[1] = last;
+        }
+    }
+
+    /**
+     * @param m        the measure
+     * @param document the document
+     * @return the neighbours of the document
+     */
+    public TopK getNeighbours(int m, int document) {
+        return neighbours[m][document];
+    }
+
+    /**
+     * @return the number of distances computed by {@link #compute(ExecutorService)}
+     */
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+
+    /**
+     * Writes the edge list of a measure.
+     *
+     * @param m    the measure
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(int m, File file) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            writeString(output, similarityMeasures[m].name());
+            output.writeInt(k);
+            output.writeInt(index.size());
+
+            long numEdges = 0;
+
+            for (int document = 0; document < index.size(); document++) {
+                writeString(output, index.getDocument(document));
+                numEdges += neighbours[m][document].size();
+            }
+
+            output.writeLong(numEdges);
+
+            for (int document = 0; document < index.size(); document++) {
+                TopK topK = neighbours[m][document];
+
+                for (int rank = 0; rank < topK.size(); rank++) {
+                    output.writeInt(document);
+                    output.writeInt(topK.getDocument(rank));
+                    output.writeDouble(topK.getDistance(rank));
+                    output.writeInt(rank + 1);
+                }
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void runRound(ExecutorService executor, List<Callable<Object>> tasks) throws Exception {
+        for (Future<Object> result : executor.invokeAll(tasks)) Retrieval.getResult(result);
+    }
+
+    private Callable<Object> createTask(final int firstTile, final int secondTile) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() {
+                compare(firstTile, secondTile);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Compares the documents of two tiles, or the documents of a tile with each other.
+     */
+    private void compare(int firstTile, int secondTile) {
+        int[] offsets = index.getOffsets();
+        int[] attributes = index.getAttributes();
+        double[] values = index.getValues();
+        int[] nominals = index.getNominals();
+        int numNominal = index.getNominalAttributes().length;
+        int numMeasures = similarityMeasures.length;
+        double[] distances = new double[numMeasures];
+        long evaluated = 0;
+
+        int firstEnd = Math.min((firstTile + 1) * TILE_SIZE, index.size());
+        int secondEnd = Math.min((secondTile + 1) * TILE_SIZE, index.size());
+
+        for (int first = firstTile * TILE_SIZE; first < firstEnd; first++) {
+            int secondStart = firstTile == secondTile ? first + 1 : secondTile * TILE_SIZE;
+
+            for (int second = secondStart; second < secondEnd; second++) {
+                if (index.getDocumentId(first) == index.getDocumentId(second)) continue;
+
+                SimilarityMeasure.distances(similarityMeasures, attributes, values, offsets[first],
+                        offsets[first + 1], attributes, values, offsets[second], offsets[second + 1],
+                        SparseIndex.nominalMismatches(nominals, first * numNominal, nominals, second * numNominal,
+                                numNominal), distances);
+                evaluated += numMeasures;
+
+                for (int m = 0; m < numMeasures; m++) {
+                    neighbours[m][first].offer(second, distances[m]);
+                    neighbours[m][second].offer(first, distances[m]);
+                }
+            }
+        }
+
+        evaluations.addAndGet(evaluated);
+    }
+
+    private static void writeString(DataOutputStream output, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the query to every document of the index, computing the distances of all measures in one merge.
+ */
+public class LinearScan implements NeighbourSearch {
+    private final SparseIndex index;
+    private final SimilarityMeasure[] similarityMeasures;
+    private final AtomicLong evaluations = new AtomicLong();
+
+    public LinearScan(SparseIndex index, SimilarityMeasure[] similarityMeasures) {
+        this.index = index;
+        this.similarityMeasures = similarityMeasures;
+    }
+
+    @Override
+    public SparseIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public void search(SparseVector query, int queryId, int from, int to, TopK[] topKs) {
+        double[] distances = new double[similarityMeasures.length];
+        long evaluated = 0;
+
+        for (int document = from; document < to; document++) {
+            // skip same document
+            if (index.getDocumentId(document) == queryId)
+                continue;
+
+            SimilarityMeasure.distances(similarityMeasures, query, index, document, distances);
+            evaluated++;
+
+            for (int i = 0; i < topKs.length; i++) topKs[i].offer(document, distances[i]);
+        }
+
+        evaluations.addAndGet(evaluated * similarityMeasures.length);
+    }
+
+    @Override
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+}
@@ -0,0 +1,257 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers approximate nearest neighbour queries from hash tables in which close documents are likely to share a
+ * bucket. Every table hashes a vector with a number of random projections: p-stable ones for L1 (Cauchy) and L2
+ * (Gaussian), cut into buckets of a fixed width, and the signs of Gaussian projections (SimHash) for COSINE. The
+ * documents sharing a bucket with the query in any table are the candidates, which are ranked by their exact
+ * distance; documents that are no candidate are missed.
+ * <p/>
+ * Only the numeric attributes are hashed, nominal mismatches are only part of the exact distance of the candidates.
+ */
+public class LocalitySensitiveHash implements NeighbourSearch {
+    public static final int DEFAULT_TABLES = 40;
+    public static final int DEFAULT_HASHES = 6;
+    public static final double DEFAULT_WIDTH = 2;
+
+    private static final int SAMPLE_SIZE = 256;
+
+    private final SparseIndex index;
+    private final SimilarityMeasure[] similarityMeasures;
+    private final int numTables;
+    private final int numHashes;
+    // by measure: the coefficients of the projections by attribute and projection, their offsets and the bucket
+    // width, 0 for sign hashes
+    private final double[][] projections;
+    private final double[][] projectionOffsets;
+    private final double[] widths;
+    // by measure and table: the bucket keys of all documents in ascending order and the documents in the same order
+    private final long[][][] keys;
+    private final int[][][] documents;
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong comparisons = new AtomicLong();
+
+    /**
+     * @param index              the index
+     * @param similarityMeasures the measures to rank by
+     * @param numTables          the number of hash tables, more tables find more of the closest documents
+     * @param numHashes          the number of hashes combined per table, more hashes give smaller buckets
+     * @param width              the bucket width of the L1 and L2 hashes relative to the median distance between the
+     *                           documents of the index
+     */
+    public LocalitySensitiveHash(SparseIndex index, SimilarityMeasure[] similarityMeasures, int numTables,
+                                 int numHashes, double width) {
+        if (numTables < 1 || numHashes < 1 || !(width > 0))
+            throw new IllegalArgumentException("the number of tables and hashes and the width must be positive");
+
+        this.index = index;
+        this.similarityMeasures = similarityMeasures;
+        this.numTables = numTables;
+        this.numHashes = numHashes;
+
+        int numMeasures = similarityMeasures.length;
+        int numProjections = numTables * numHashes;
+        int numDocuments = index.size();
+        int[] offsets = index.getOffsets();
+
+        projections = new double[numMeasures][index.getNumAttributes() * numProjections];
+        projectionOffsets = new double[numMeasures][numProjections];
+        widths = new double[numMeasures];
+        keys = new long[numMeasures][numTables][numDocuments];
+        documents = new int[numMeasures][numTables][];
+
+        for (int m = 0; m < numMeasures; m++) {
+            SimilarityMeasure similarityMeasure = similarityMeasures[m];
+            Random random = new Random(similarityMeasure.ordinal());
+
+            for (int i = 0; i < projections[m].length; i++) {
+                projections[m][i] = similarityMeasure == SimilarityMeasure.L1 ?
+                        Math.tan(Math.PI * (random.nextDouble() - 0.5)) : random.nextGaussian();
+            }
+
+            if (similarityMeasure != SimilarityMeasure.COSINE) {
+                widths[m] = width * medianDistance(similarityMeasure, random);
+                if (widths[m] == 0) widths[m] = width;
+
+                for (int i = 0; i < numProjections; i++) projectionOffsets[m][i] = random.nextDouble() * widths[m];
+            }
+
+            double[] projected = new double[numProjections];
+            long[] documentKeys = new long[numTables];
+
+            for (int document = 0; document < numDocuments; document++) {
+                hash(m, index.getAttributes(), index.getValues(), offsets[document], offsets[document + 1],
+                        projected, documentKeys);
+                for (int table = 0; table < numTables; table++) keys[m][table][document] = documentKeys[table];
+            }
+
+            for (int table = 0; table < numTables; table++) documents[m][table] = sortByKey(keys[m][table]);
+        }
+    }
+
+    @Override
+    public SparseIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public void search(SparseVector query, int queryId, int from, int to, TopK[] topKs) {
+        double[] projected = new double[numTables * numHashes];
+        long[] queryKeys = new long[numTables];
+        long evaluated = 0;
+
+        for (int m = 0; m < similarityMeasures.length; m++) {
+            hash(m, query.getAttributes(), query.getValues(), 0, query.size(), projected, queryKeys);
+
+            int[] candidates = new int[16];
+            int numCandidates = 0;
+
+            for (int table = 0; table < numTables; table++) {
+                long[] tableKeys = keys[m][table];
+                int[] tableDocuments = documents[m][table];
+
+                for (int i = firstKey(tableKeys, queryKeys[table]); i < tableKeys.length &&
+                        tableKeys[i] == queryKeys[table]; i++) {
+                    int document = tableDocuments[i];
+                    if (document < from || document >= to) continue;
+
+                    if (numCandidates == candidates.length) candidates = Arrays.copyOf(candidates, 2 * numCandidates);
+                    candidates[numCandidates++] = document;
+                }
+            }
+
+            // a document in several buckets of the query is ranked once, the documents in ascending order like a scan
+            Arrays.sort(candidates, 0, numCandidates);
+
+            for (int i = 0; i < numCandidates; i++) {
+                int document = candidates[i];
+                if ((i > 0 && document == candidates[i - 1]) || index.getDocumentId(document) == queryId)
+                    continue;
+
+                topKs[m].offer(document, similarityMeasures[m].distance(query, index, document));
+                evaluated++;
+            }
+        }
+
+        evaluations.addAndGet(evaluated);
+        comparisons.addAndGet((long) (to - from) * similarityMeasures.length);
+    }
+
+    @Override
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+
+    /**
+     * @return the number of distances a scan would have computed for the same searches
+     */
+    public long getComparisons() {
+        return comparisons.get();
+    }
+
+    /**
+     * Computes the bucket key of a vector in every table of a measure.
+     *
+     * @param projected receives the projections of the vector
+     * @param tableKeys receives the keys
+     */
+    private void hash(int m, int[] attributes, double[] values, int from, int to, double[] projected,
+                      long[] tableKeys) {
+        double[] coefficients = projections[m];
+        int numProjections = projected.length;
+
+        Arrays.fill(projected, 0);
+
+        for (int p = from; p < to; p++) {
+            int start = attributes[p] * numProjections;
+            double value = values[p];
+
+            for (int i = 0; i < numProjections; i++) projected[i] += value * coefficients[start + i];
+        }
+
+        for (int table = 0; table < numTables; table++) {
+            long key = 0;
+
+            for (int i = table * numHashes; i < (table + 1) * numHashes; i++) {
+                long bucket = widths[m] == 0 ? (projected[i] >= 0 ? 1 : 0) :
+                        (long) Math.floor((projected[i] + projectionOffsets[m][i]) / widths[m]);
+                key = 31 * key + bucket;
+            }
+
+            tableKeys[table] = key;
+        }
+    }
+
+    /**
+     * @return the median distance between pairs of documents drawn from the index
+     */
+    private double medianDistance(SimilarityMeasure similarityMeasure, Random random) {
+        if (index.size() < 2) return 0;
+
+        double[] distances = new double[SAMPLE_SIZE];
+
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            int first = random.nextInt(index.size());
+            int second = random.nextInt(index.size() - 1);
+            if (second >= first) second++;
+
+            distances[i] = similarityMeasure.distance(index.vector(first), index, second);
+        }
+
+        Arrays.sort(distances);
+        return distances[SAMPLE_SIZE / 2];
+    }
+
+    /**
+     * Sorts the keys of a table in place.
+     *
+     * @param tableKeys the key of each document
+     * @return the documents in the order of their keys
+     */
+    private static int[] sortByKey(final long[] tableKeys) {
+        Integer[] order = new Integer[tableKeys.length];
+        for (int document = 0; document < order.length; document++) order[document] = document;
+
+        // stable, so the documents of a bucket stay in ascending order
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.valueOf(tableKeys[o1]).compareTo(tableKeys[o2]);
+            }
+        });
+
+        long[] sortedKeys = new long[tableKeys.length];
+        int[] tableDocuments = new int[tableKeys.length];
+
+        for (int i = 0; i < order.length; i++) {
+            sortedKeys[i] = tableKeys[order[i]];
+            tableDocuments[i] = order[i];
+        }
+
+        System.arraycopy(sortedKeys, 0, tableKeys, 0, sortedKeys.length);
+        return tableDocuments;
+    }
+
+    /**
+     * @return the position of the first key not smaller than the given one
+     */
+    private static int firstKey(long[] tableKeys, long key) {
+        int low = 0;
+        int high = tableKeys.length;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (tableKeys[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,40 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * The values of the rows of an index read from the memory-mapped file of its compiled form, so they do not have to be
+ * held on the heap. A row is normalized like the rows of a {@link SparseIndex}: its values are divided by the ranges
+ * of their attributes, and the values of attributes without range are left out.
+ */
+public class MappedValues {
+    // the first value of each document in the file
+    private final int[] offsets;
+    private final IntBuffer attributes;
+    private final DoubleBuffer values;
+    private final double[] ranges;
+
+    MappedValues(int[] offsets, IntBuffer attributes, DoubleBuffer values, double[] ranges) {
+        this.offsets = offsets;
+        this.attributes = attributes;
+        this.values = values;
+        this.ranges = ranges;
+    }
+
+    /**
+     * @param document a document
+     * @param size     the number of values the index holds for the document
+     * @return the normalized values of the document
+     */
+    public double[] read(int document, int size) {
+        double[] row = new double[size];
+        int position = 0;
+
+        // only absolute reads, so the buffers are shared by the threads of a search
+        for (int p = offsets[document]; p < offsets[document + 1]; p++) {
+            double range = ranges[attributes.get(p)];
+            if (range != 0) row[position++] = values.get(p) / range;
+        }
+
+        return row;
+    }
+}
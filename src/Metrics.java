@@ -0,0 +1,215 @@
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.*;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * Collects the time and allocated bytes of the phases of a run and counters such as the number of distances computed,
+ * per index, and writes them as JSON with the heap and garbage collection figures of the JVM. Recording a phase only
+ * reads the clock and the allocation counter of the current thread, so the metrics are cheap enough to always collect.
+ * <p/>
+ * The time and allocated bytes of a phase are summed over the threads running it, so phases running in parallel (the
+ * indices loaded with -t or the chunks of a search) can add up to more than the time of the whole run. The bytes
+ * allocated are only known on JVMs that measure them per thread, they are -1 otherwise.
+ */
+public class Metrics {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final Method ALLOCATED_BYTES = findAllocatedBytes();
+
+    private final long start = System.nanoTime();
+    // by index, "" for the run, and phase in the order recorded
+    private final Map<String, Map<String, long[]>> phases = Maps.newLinkedHashMap();
+    private final Map<String, Map<String, Long>> counters = Maps.newLinkedHashMap();
+
+    /**
+     * A phase being recorded on the current thread.
+     */
+    public class Phase {
+        private final String name;
+        private final String index;
+        private final long start = System.nanoTime();
+        private final long allocatedBytes = getAllocatedBytes();
+
+        private Phase(String name, String index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        /**
+         * Adds the time and the bytes allocated since the phase started to the phase.
+         */
+        public void stop() {
+            long allocated = allocatedBytes < 0 ? -1 : getAllocatedBytes() - allocatedBytes;
+            add(index, name, System.nanoTime() - start, allocated);
+        }
+    }
+
+    /**
+     * @param name  the name of the phase
+     * @param index the name of the index, "" for phases of the whole run
+     * @return the phase, to be stopped on the same thread
+     */
+    public Phase start(String name, String index) {
+        return new Phase(name, index);
+    }
+
+    /**
+     * Adds to a counter of an index.
+     *
+     * @param name  the name of the counter
+     * @param index the name of the index, "" for counters of the whole run
+     * @param value the value to add
+     */
+    public synchronized void count(String name, String index, long value) {
+        Map<String, Long> indexCounters = counters.get(index);
+        if (indexCounters == null) counters.put(index, indexCounters = Maps.newLinkedHashMap());
+
+        Long count = indexCounters.get(name);
+        indexCounters.put(name, count == null ? value : count + value);
+    }
+
+    /**
+     * @return the metrics recorded so far as a JSON object
+     */
+    public synchronized String toJson() {
+        JsonWriter json = new JsonWriter().beginObject();
+
+        json.name("timeMs").value((System.nanoTime() - start) / 1e6);
+        writeIndex(json, "");
+
+        json.name("indices").beginArray();
+
+        for (String index : Sets.union(phases.keySet(), counters.keySet())) {
+            if (index.length() == 0) continue;
+
+            json.beginObject().name("index").value(index);
+            writeIndex(json, index);
+            json.endObject();
+        }
+
+        json.endArray();
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long collections = 0, collectionTime = 0;
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionTime += Math.max(0, collector.getCollectionTime());
+        }
+
+        // the peaks of the pools since the start of the JVM are summed, which is an upper bound of the peak of the
+        // whole heap
+        json.name("heap").beginObject()
+                .name("peakBytes").value(peakHeap)
+                .name("usedBytes").value(heap.getUsed())
+                .name("maxBytes").value(heap.getMax())
+                .endObject();
+        json.name("gc").beginObject()
+                .name("collections").value(collections)
+                .name("timeMs").value(collectionTime)
+                .endObject();
+
+        return json.endObject().toString();
+    }
+
+    /**
+     * Writes the metrics to a file, or to stdout if the file is "-".
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        if (file.getPath().equals("-")) {
+            System.out.println(toJson());
+            return;
+        }
+
+        Writer output = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+        try {
+            output.write(toJson());
+            output.write('\n');
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, -1 if the JVM does not measure them
+     */
+    public static long getAllocatedBytes() {
+        if (ALLOCATED_BYTES == null) return -1;
+
+        try {
+            return (Long) ALLOCATED_BYTES.invoke(THREADS, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private synchronized void add(String index, String name, long nanos, long allocatedBytes) {
+        Map<String, long[]> indexPhases = phases.get(index);
+        if (indexPhases == null) phases.put(index, indexPhases = Maps.newLinkedHashMap());
+
+        // count, time and allocated bytes
+        long[] phase = indexPhases.get(name);
+        if (phase == null) indexPhases.put(name, phase = new long[3]);
+
+        phase[0]++;
+        phase[1] += nanos;
+        phase[2] = phase[2] < 0 || allocatedBytes < 0 ? -1 : phase[2] + allocatedBytes;
+    }
+
+    private void writeIndex(JsonWriter json, String index) {
+        json.name("phases").beginObject();
+
+        if (phases.containsKey(index)) {
+            for (Map.Entry<String, long[]> phase : phases.get(index).entrySet()) {
+                json.name(phase.getKey()).beginObject()
+                        .name("count").value(phase.getValue()[0])
+                        .name("timeMs").value(phase.getValue()[1] / 1e6)
+                        .name("allocatedBytes").value(phase.getValue()[2])
+                        .endObject();
+            }
+        }
+
+        json.endObject().name("counters").beginObject();
+
+        if (counters.containsKey(index)) {
+            for (Map.Entry<String, Long> counter : counters.get(index).entrySet())
+                json.name(counter.getKey()).value(counter.getValue());
+        }
+
+        json.endObject();
+    }
+
+    /**
+     * The HotSpot extension of the thread bean measures the bytes allocated per thread. It is looked up by reflection,
+     * as it is not part of the standard API.
+     */
+    private static Method findAllocatedBytes() {
+        try {
+            Class<?> threadBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (!threadBean.isInstance(THREADS)) return null;
+
+            if (!(Boolean) threadBean.getMethod("isThreadAllocatedMemorySupported").invoke(THREADS)) return null;
+            if (!(Boolean) threadBean.getMethod("isThreadAllocatedMemoryEnabled").invoke(THREADS)) return null;
+
+            return threadBean.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
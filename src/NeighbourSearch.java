@@ -0,0 +1,26 @@
+/**
+ * Answers nearest neighbour queries on one index, ranking by one or more similarity measures at once.
+ */
+public interface NeighbourSearch {
+    /**
+     * @return the index searched
+     */
+    SparseIndex getIndex();
+
+    /**
+     * Offers the documents of a range of the index that are closest to the query to the collectors.
+     *
+     * @param query     the vector of the query, normalized by the ranges of the index
+     * @param queryId   the id of the name of the query in the dictionary of the index, documents with the same id
+     *                  are skipped, -1 for none
+     * @param from      the first document of the range
+     * @param to        the end of the range (exclusive)
+     * @param topKs     receive the documents, one collector per measure of the search in the same order
+     */
+    void search(SparseVector query, int queryId, int from, int to, TopK[] topKs);
+
+    /**
+     * @return the number of distances computed by the searches so far
+     */
+    long getEvaluations();
+}
@@ -0,0 +1,157 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a stream ahead on a background thread. The thread reads (and for gzip compressed files decompresses) the
+ * stream in large blocks into a bounded queue, from which the stream is read, so reading and decompressing the file
+ * overlap with parsing it.
+ * <p/>
+ * An error of the background thread is thrown by the read that reaches it.
+ */
+public class PrefetchingInputStream extends InputStream {
+    public static final int BLOCK_SIZE = 1 << 20;
+    public static final int BLOCKS = 4;
+
+    // marks the end of the stream in the queue
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> blocks;
+    private final Thread thread;
+    private volatile IOException error;
+    private byte[] block;
+    private int position;
+    private int size;
+    private boolean closed;
+
+    /**
+     * Starts reading the source, which is closed by the background thread at its end.
+     *
+     * @param source    the stream to read ahead
+     * @param name      the name of the background thread
+     * @param blockSize the number of bytes read at a time
+     * @param numBlocks the number of blocks read ahead at most
+     */
+    public PrefetchingInputStream(final InputStream source, String name, final int blockSize, int numBlocks) {
+        blocks = new ArrayBlockingQueue<byte[]>(numBlocks);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        byte[] read = new byte[blockSize];
+                        int length = 0, count;
+
+                        while (length < read.length && (count = source.read(read, length, read.length - length)) >= 0)
+                            length += count;
+
+                        if (length > 0) blocks.put(length == read.length ? read : Arrays.copyOf(read, length));
+                        if (length < read.length) break;
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (InterruptedException e) {
+                    // closed before the end was read
+                    return;
+                } finally {
+                    try {
+                        source.close();
+                    } catch (IOException e) {
+                        if (error == null) error = e;
+                    }
+                }
+
+                try {
+                    blocks.put(END);
+                } catch (InterruptedException e) {
+                    // closed while the queue was full
+                }
+            }
+        }, name);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param file a file, gzip compressed if its name ends with ".gz"
+     * @return a stream of the (decompressed) content of the file, read ahead in blocks of {@link #BLOCK_SIZE}
+     * @throws IOException if the file cannot be opened
+     */
+    public static PrefetchingInputStream open(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+
+        try {
+            if (file.getName().endsWith(".gz")) input = new GZIPInputStream(input, 1 << 16);
+            return new PrefetchingInputStream(input, "read " + file.getName(), BLOCK_SIZE, BLOCKS);
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) return -1;
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        if (!nextBlock()) return -1;
+
+        int count = Math.min(length, size - position);
+        System.arraycopy(block, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return block == null ? 0 : size - position;
+    }
+
+    /**
+     * Stops the background thread, which closes the source.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+
+        closed = true;
+        thread.interrupt();
+        blocks.clear();
+    }
+
+    /**
+     * Takes the next block from the queue once the current one is read.
+     *
+     * @return if there are bytes left
+     * @throws IOException if the stream is closed, or the background thread failed or was interrupted
+     */
+    private boolean nextBlock() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (block == END) return false;
+        if (block != null && position < size) return true;
+
+        try {
+            block = blocks.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while reading ahead");
+        }
+
+        position = 0;
+        size = block.length;
+
+        if (block == END) {
+            if (error != null) throw error;
+            return false;
+        }
+
+        return true;
+    }
+}
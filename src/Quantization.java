@@ -0,0 +1,13 @@
+/**
+ * The precisions a {@link QuantizedScan} can store the values of an index with.
+ */
+public enum Quantization {
+    /**
+     * 4 bytes per value, a float each
+     */
+    FLOAT,
+    /**
+     * 1 byte per value, on a linear scale between the smallest and the largest value of the attribute
+     */
+    BYTE
+}
@@ -0,0 +1,323 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the query to every document like {@link LinearScan}, but on a quantized copy of the values of the index,
+ * and ranks only the documents that may be among the closest ones again by their exact distance.
+ * <p/>
+ * The distance of the query to the quantized vector of a document differs from its exact distance by at most the
+ * distance between the exact and the quantized vector of the document (the triangle inequality; for COSINE the
+ * distance between the two unit vectors, which bounds the difference of the cosines). This error is computed per
+ * document and measure when the search is built. A document is ranked exactly unless its quantized distance minus
+ * the error exceeds the quantized distance plus the error of the k-th closest document, so the ranking is the same as
+ * that of a scan.
+ * <p/>
+ * The scan itself only reads the quantized values. The exact ones are needed to rank the candidates again and to
+ * build the search, after which the index may read them from its compiled file instead of the heap (see
+ * {@link SparseIndex#mapValues(MappedValues)}). The errors are kept as floats rounded up.
+ */
+public class QuantizedScan implements NeighbourSearch {
+    // the bounds are widened by this share of the distance, as they are subject to rounding errors themselves
+    private static final double SLACK = 1e-9;
+    private static final int BYTE_LEVELS = 255;
+
+    private final SparseIndex index;
+    private final SimilarityMeasure[] similarityMeasures;
+    private final Quantization quantization;
+    // in the order of the values of the index, only the one of the quantization is set
+    private final float[] floatValues;
+    private final byte[] byteValues;
+    // by attribute, the value of byte 0 and the step between two bytes
+    private final double[] minimums;
+    private final double[] scales;
+    // by measure and document, the largest difference between the quantized and the exact distance
+    private final float[][] errors;
+    private final AtomicLong comparisons = new AtomicLong();
+    private final AtomicLong evaluations = new AtomicLong();
+
+    /**
+     * @param index              the index
+     * @param similarityMeasures the measures to rank by
+     * @param quantization       the precision of the copy of the values that is scanned
+     */
+    public QuantizedScan(SparseIndex index, SimilarityMeasure[] similarityMeasures, Quantization quantization) {
+        this.index = index;
+        this.similarityMeasures = similarityMeasures;
+        this.quantization = quantization;
+
+        int[] attributes = index.getAttributes();
+        double[] values = index.getValues();
+
+        if (quantization == Quantization.FLOAT) {
+            floatValues = new float[values.length];
+            for (int p = 0; p < values.length; p++) floatValues[p] = (float) values[p];
+
+            byteValues = null;
+            minimums = null;
+            scales = null;
+        } else {
+            minimums = new double[index.getNumAttributes()];
+            double[] maximums = new double[index.getNumAttributes()];
+            Arrays.fill(minimums, Double.POSITIVE_INFINITY);
+            Arrays.fill(maximums, Double.NEGATIVE_INFINITY);
+
+            for (int p = 0; p < values.length; p++) {
+                minimums[attributes[p]] = Math.min(minimums[attributes[p]], values[p]);
+                maximums[attributes[p]] = Math.max(maximums[attributes[p]], values[p]);
+            }
+
+            scales = new double[minimums.length];
+            for (int attribute = 0; attribute < scales.length; attribute++) {
+                if (minimums[attribute] < maximums[attribute])
+                    scales[attribute] = (maximums[attribute] - minimums[attribute]) / BYTE_LEVELS;
+            }
+
+            byteValues = new byte[values.length];
+            for (int p = 0; p < values.length; p++) {
+                int attribute = attributes[p];
+                if (scales[attribute] > 0)
+                    byteValues[p] = (byte) Math.round((values[p] - minimums[attribute]) / scales[attribute]);
+            }
+
+            floatValues = null;
+        }
+
+        errors = computeErrors();
+    }
+
+    @Override
+    public SparseIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public void search(SparseVector query, int queryId, int from, int to, TopK[] topKs) {
+        int numMeasures = similarityMeasures.length;
+        double[] distances = new double[numMeasures];
+        long compared = 0;
+
+        // by measure: the best upper bounds, and the documents with a lower bound within the worst of them
+        TopK[] upperBounds = new TopK[numMeasures];
+        int[][] candidates = new int[numMeasures][];
+        double[][] lowerBounds = new double[numMeasures][];
+        int[] numCandidates = new int[numMeasures];
+
+        for (int m = 0; m < numMeasures; m++) {
+            upperBounds[m] = new TopK(topKs[m].capacity());
+            candidates[m] = new int[Math.max(16, 2 * topKs[m].capacity())];
+            lowerBounds[m] = new double[candidates[m].length];
+        }
+
+        for (int document = from; document < to; document++) {
+            // skip same document
+            if (index.getDocumentId(document) == queryId)
+                continue;
+
+            approximate(query, document, distances);
+            compared++;
+
+            for (int m = 0; m < numMeasures; m++) {
+                double error = errors[m][document] + SLACK * (1 + Math.abs(distances[m]));
+                double lowerBound = distances[m] - error;
+
+                upperBounds[m].offer(document, distances[m] + error);
+                if (!(lowerBound <= threshold(upperBounds[m]))) continue;
+
+                if (numCandidates[m] == candidates[m].length) {
+                    numCandidates[m] = prune(candidates[m], lowerBounds[m], numCandidates[m],
+                            threshold(upperBounds[m]));
+
+                    if (numCandidates[m] > candidates[m].length / 2) {
+                        candidates[m] = Arrays.copyOf(candidates[m], 2 * candidates[m].length);
+                        lowerBounds[m] = Arrays.copyOf(lowerBounds[m], candidates[m].length);
+                    }
+                }
+
+                candidates[m][numCandidates[m]] = document;
+                lowerBounds[m][numCandidates[m]++] = lowerBound;
+            }
+        }
+
+        // the candidates of all measures are ranked exactly by all measures in one merge, which keeps every
+        // collector exact as the candidates of a measure include its closest documents
+        boolean[] ranked = new boolean[to - from];
+        long evaluated = 0;
+
+        for (int m = 0; m < numMeasures; m++) {
+            int count = prune(candidates[m], lowerBounds[m], numCandidates[m], threshold(upperBounds[m]));
+
+            for (int i = 0; i < count; i++) {
+                int document = candidates[m][i];
+                if (ranked[document - from]) continue;
+
+                ranked[document - from] = true;
+                SimilarityMeasure.distances(similarityMeasures, query, index, document, distances);
+                evaluated++;
+
+                for (int n = 0; n < numMeasures; n++) topKs[n].offer(document, distances[n]);
+            }
+        }
+
+        comparisons.addAndGet(compared * numMeasures);
+        evaluations.addAndGet(evaluated * numMeasures);
+    }
+
+    /**
+     * @return the number of exact distances computed to rank the candidates again
+     */
+    @Override
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+
+    /**
+     * @return the number of quantized distances computed
+     */
+    public long getComparisons() {
+        return comparisons.get();
+    }
+
+    public Quantization getQuantization() {
+        return quantization;
+    }
+
+    /**
+     * @return the bytes taken by the quantized values, the scales of the attributes and the errors
+     */
+    public long getBytes() {
+        long bytes = floatValues != null ? 4L * floatValues.length : byteValues.length + 16L * minimums.length;
+        return bytes + 4L * similarityMeasures.length * index.size();
+    }
+
+    /**
+     * Computes the distances of all measures between the query and the quantized vector of a document in one merge,
+     * like {@link SimilarityMeasure#distances(SimilarityMeasure[], SparseVector, SparseIndex, int, double[])}.
+     */
+    private void approximate(SparseVector query, int document, double[] distances) {
+        int[] queryAttributes = query.getAttributes();
+        double[] queryValues = query.getValues();
+        int[] attributes = index.getAttributes();
+        int[] offsets = index.getOffsets();
+        int p = 0, q = offsets[document];
+        int pTo = query.size(), qTo = offsets[document + 1];
+        int mismatches = index.nominalMismatches(query, document);
+        double absoluteSum = mismatches;
+        double squaredSum = mismatches;
+        double dotProduct = 0;
+        double secondSquares = 0;
+        double difference;
+
+        while (p < pTo || q < qTo) {
+            if (q >= qTo || (p < pTo && queryAttributes[p] < attributes[q])) {
+                difference = queryValues[p++];
+            } else {
+                int attribute = attributes[q];
+                double value = floatValues != null ? floatValues[q] :
+                        minimums[attribute] + (byteValues[q] & 0xFF) * scales[attribute];
+                q++;
+
+                secondSquares += value * value;
+
+                if (p < pTo && queryAttributes[p] == attribute) {
+                    double queryValue = queryValues[p++];
+                    difference = queryValue - value;
+                    dotProduct += queryValue * value;
+                } else {
+                    difference = value;
+                }
+            }
+
+            absoluteSum += Math.abs(difference);
+            squaredSum += difference * difference;
+        }
+
+        for (int m = 0; m < distances.length; m++)
+            distances[m] = similarityMeasures[m].distance(absoluteSum, squaredSum, dotProduct,
+                    query.getSquaredNorm(), secondSquares);
+    }
+
+    /**
+     * @return by measure and document, the distance between the exact and the quantized vector of the document
+     */
+    private float[][] computeErrors() {
+        int[] attributes = index.getAttributes();
+        int[] offsets = index.getOffsets();
+        double[] values = index.getValues();
+        double[] quantized = new double[values.length];
+
+        for (int p = 0; p < values.length; p++) {
+            quantized[p] = floatValues != null ? floatValues[p] :
+                    minimums[attributes[p]] + (byteValues[p] & 0xFF) * scales[attributes[p]];
+        }
+
+        float[][] measureErrors = new float[similarityMeasures.length][index.size()];
+        double[] distances = new double[similarityMeasures.length];
+
+        for (int document = 0; document < index.size(); document++) {
+            int from = offsets[document], to = offsets[document + 1];
+            SimilarityMeasure.distances(similarityMeasures, attributes, values, from, to, attributes, quantized, from,
+                    to, 0, distances);
+
+            for (int m = 0; m < similarityMeasures.length; m++) {
+                double error = similarityMeasures[m] == SimilarityMeasure.COSINE ?
+                        unitDistance(values, quantized, from, to) : distances[m];
+                measureErrors[m][document] = Math.nextUp((float) error);
+            }
+        }
+
+        return measureErrors;
+    }
+
+    /**
+     * The distance of the unit vectors is summed directly, as one minus the cosine of two almost parallel vectors
+     * (half their squared distance) is lost to rounding.
+     *
+     * @return the distance between the unit vectors of two vectors with the same attributes, 1 if one of them is
+     *         empty, as the cosine distance is 1 then
+     */
+    private static double unitDistance(double[] first, double[] second, int from, int to) {
+        double firstSquares = 0, secondSquares = 0;
+
+        for (int p = from; p < to; p++) {
+            firstSquares += first[p] * first[p];
+            secondSquares += second[p] * second[p];
+        }
+
+        if (firstSquares == 0 || secondSquares == 0) return firstSquares == secondSquares ? 0 : 1;
+
+        double firstNorm = Math.sqrt(firstSquares), secondNorm = Math.sqrt(secondSquares);
+        double squaredSum = 0;
+
+        for (int p = from; p < to; p++) {
+            double difference = first[p] / firstNorm - second[p] / secondNorm;
+            squaredSum += difference * difference;
+        }
+
+        return Math.sqrt(squaredSum);
+    }
+
+    /**
+     * @return the bound a document has to be within to possibly be collected
+     */
+    private static double threshold(TopK upperBounds) {
+        return upperBounds.capacity() == 0 ? Double.NEGATIVE_INFINITY : upperBounds.threshold();
+    }
+
+    /**
+     * Removes the candidates whose lower bound exceeds the threshold.
+     *
+     * @return the number of candidates left
+     */
+    private static int prune(int[] candidates, double[] lowerBounds, int count, double threshold) {
+        int kept = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (!(lowerBounds[i] <= threshold)) continue;
+
+            candidates[kept] = candidates[i];
+            lowerBounds[kept++] = lowerBounds[i];
+        }
+
+        return kept;
+    }
+}
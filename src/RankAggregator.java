@@ -0,0 +1,208 @@
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sums up the rankings of several indices for one query document in a single pass. Every document gets a slot the
+ * first time it is ranked; the number of occurrences and the sums of ranks and distances are kept in arrays by slot,
+ * and the slot of a document is found by its id in the dictionary the indices share, so adding a ranking does not
+ * hash any names. The aggregator is cleared and reused for the next query, keeping its arrays.
+ * <p/>
+ * The statistics are ordered by average rank, then average distance, then descending number of occurrences, and
+ * finally by document name, so documents that tie in everything else always come out in the same order.
+ */
+public class RankAggregator {
+    private final DocumentDictionary dictionary;
+    // the slot of each document by dictionary id, -1 for documents not ranked since the last clear
+    private int[] slots = new int[0];
+    // by slot
+    private int[] documents = new int[64];
+    private int[] occurrences = new int[64];
+    private long[] rankSums = new long[64];
+    private double[] distanceSums = new double[64];
+    private double[] averageRanks = new double[64];
+    private double[] averageDistances = new double[64];
+    private boolean[] reported = new boolean[64];
+    // the slots to order and the ordered slots
+    private int[] candidates = new int[64];
+    private int[] order = new int[64];
+    private int size;
+
+    /**
+     * @param dictionary the dictionary of the indices whose rankings are added
+     */
+    public RankAggregator(DocumentDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Forgets all rankings added so far.
+     */
+    public void clear() {
+        for (int slot = 0; slot < size; slot++) slots[documents[slot]] = -1;
+        size = 0;
+    }
+
+    /**
+     * @param similarities the ranking of one index
+     */
+    public void add(List<DocumentSimilarity> similarities) {
+        for (DocumentSimilarity similarity : similarities) {
+            int document = similarity.getTargetDocument();
+
+            // the indices may still be loading, which adds ids to the dictionary
+            if (document >= slots.length) {
+                int length = slots.length;
+                slots = Arrays.copyOf(slots, Math.max(document + 1, dictionary.size()));
+                Arrays.fill(slots, length, slots.length, -1);
+            }
+
+            int slot = slots[document];
+
+            if (slot < 0) {
+                if (size == documents.length) grow();
+
+                slot = size++;
+                slots[document] = slot;
+                documents[slot] = document;
+                occurrences[slot] = 0;
+                rankSums[slot] = 0;
+                distanceSums[slot] = 0;
+            }
+
+            occurrences[slot]++;
+            rankSums[slot] += similarity.getRank();
+            distanceSums[slot] += similarity.getDistance();
+        }
+    }
+
+    /**
+     * Orders the documents only as far as needed: the best ones are selected with a bounded heap, and of the others
+     * only the ones ranked by fewer than {@code numIndices} indices are sorted.
+     *
+     * @param numReported the number of best documents that are reported in any case
+     * @param numIndices  the documents after the best ones are reported if they occur fewer times than this
+     * @return the statistics of the reported documents in order
+     */
+    public List<DocumentStatistics> getStatistics(int numReported, int numIndices) {
+        for (int slot = 0; slot < size; slot++) {
+            averageRanks[slot] = (double) rankSums[slot] / occurrences[slot];
+            averageDistances[slot] = distanceSums[slot] / occurrences[slot];
+            reported[slot] = false;
+            candidates[slot] = slot;
+        }
+
+        List<DocumentStatistics> statistics = Lists.newArrayList();
+        int numBest = select(candidates, size, Math.min(numReported, size));
+
+        for (int i = 0; i < numBest; i++) {
+            reported[order[i]] = true;
+            statistics.add(toStatistics(order[i]));
+        }
+
+        int numOthers = 0;
+
+        for (int slot = 0; slot < size; slot++) {
+            if (!reported[slot] && occurrences[slot] < numIndices) candidates[numOthers++] = slot;
+        }
+
+        numOthers = select(candidates, numOthers, numOthers);
+        for (int i = 0; i < numOthers; i++) statistics.add(toStatistics(order[i]));
+
+        return statistics;
+    }
+
+    private DocumentStatistics toStatistics(int slot) {
+        return new DocumentStatistics(documents[slot], occurrences[slot], rankSums[slot], distanceSums[slot]);
+    }
+
+    /**
+     * Puts the best {@code limit} of the first {@code count} candidates into {@link #order} in ascending order, using a
+     * heap with the worst selected document on top that is sorted in place at the end.
+     *
+     * @return the number of documents selected
+     */
+    private int select(int[] slots, int count, int limit) {
+        int selected = 0;
+
+        for (int i = 0; i < count && limit > 0; i++) {
+            int slot = slots[i];
+
+            if (selected < limit) {
+                order[selected] = slot;
+                siftUp(selected++);
+            } else if (compare(slot, order[0]) < 0) {
+                order[0] = slot;
+                siftDown(0, selected);
+            }
+        }
+
+        for (int end = selected - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+
+        return selected;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (compare(order[parent], order[position]) >= 0) return;
+
+            swap(parent, position);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position, int end) {
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= end) return;
+
+            if (child + 1 < end && compare(order[child + 1], order[child]) > 0) child++;
+            if (compare(order[position], order[child]) >= 0) return;
+
+            swap(position, child);
+            position = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int slot = order[i];
+        order[i] = order[j];
+        order[j] = slot;
+    }
+
+    /**
+     * @return a negative number if the first document is reported before the second one
+     */
+    private int compare(int slot1, int slot2) {
+        int result = Double.compare(averageRanks[slot1], averageRanks[slot2]);
+        if (result != 0) return result;
+
+        result = Double.compare(averageDistances[slot1], averageDistances[slot2]);
+        if (result != 0) return result;
+
+        result = occurrences[slot2] - occurrences[slot1];
+        if (result != 0) return result;
+
+        // the ids depend on the order the indices were loaded in, the names do not
+        return dictionary.getName(documents[slot1]).compareTo(dictionary.getName(documents[slot2]));
+    }
+
+    private void grow() {
+        int capacity = 2 * documents.length;
+
+        documents = Arrays.copyOf(documents, capacity);
+        occurrences = Arrays.copyOf(occurrences, capacity);
+        rankSums = Arrays.copyOf(rankSums, capacity);
+        distanceSums = Arrays.copyOf(distanceSums, capacity);
+        averageRanks = new double[capacity];
+        averageDistances = new double[capacity];
+        reported = new boolean[capacity];
+        candidates = new int[capacity];
+        order = new int[capacity];
+    }
+}
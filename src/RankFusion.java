@@ -0,0 +1,455 @@
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines the rankings of a query document in several indices into one top k without ranking the indices
+ * completely. Each index is read as a stream of its documents by ascending distance: the index is searched for its
+ * first documents, and if these run out, all its documents are ranked from the distances the search computed and the
+ * distances of the documents it skipped, so no distance is computed twice. The streams are read one document at a time
+ * each until the fused top k is settled:
+ * <ul>
+ * <li>with {@link FusionMethod#DISTANCE} by Fagin's threshold algorithm: the distances of a document in the other
+ * indices are computed as soon as it is read, and the streams stop once the k-th best average distance is below the
+ * average of the distances read last, which no document not read yet can beat;</li>
+ * <li>with {@link FusionMethod#RANK} and {@link FusionMethod#RRF} by the no-random-access algorithm, as the rank of a
+ * document cannot be looked up without ranking the index: every document read has a best and a worst case sum of
+ * grades, and the streams stop once the k documents with the best worst cases cannot be beaten by the best case of any
+ * other document. The streams are then read on until the grades of these k documents are known.</li>
+ * </ul>
+ * Documents with the same sum are ordered by name, so the result is the top k of ranking all indices completely.
+ */
+public class RankFusion {
+    private static final int MIN_DEPTH = 32;
+    private static final Comparator<Candidate> BY_UPPER_BOUND = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate o1, Candidate o2) {
+            int result = Double.compare(o1.upperBound, o2.upperBound);
+            return result != 0 ? result : o1.name.compareTo(o2.name);
+        }
+    };
+
+    private final FusionMethod method;
+    private final SimilarityMeasure similarityMeasure;
+    private final List<NeighbourSearch> searchers;
+    private final int k;
+    // by index: the first document of each dictionary id and the next document with the same id, -1 for none
+    private final List<int[]> firstDocuments = Lists.newArrayList();
+    private final List<int[]> nextDocuments = Lists.newArrayList();
+
+    /**
+     * The fused ranking of a query document.
+     */
+    public static class Result {
+        private final List<DocumentSimilarity> documents;
+        private final int[] depths;
+        private final int[] sizes;
+        private final long[] evaluations;
+
+        private Result(List<DocumentSimilarity> documents, int[] depths, int[] sizes, long[] evaluations) {
+            this.documents = documents;
+            this.depths = depths;
+            this.sizes = sizes;
+            this.evaluations = evaluations;
+        }
+
+        /**
+         * @return the fused top k in order, with the score of {@link FusionMethod#score(double, int)} as distance
+         */
+        public List<DocumentSimilarity> getDocuments() {
+            return documents;
+        }
+
+        /**
+         * @return the number of documents read from each index, -1 for indices not containing the query document
+         */
+        public int[] getDepths() {
+            return depths;
+        }
+
+        /**
+         * @return the number of documents of each index
+         */
+        public int[] getSizes() {
+            return sizes;
+        }
+
+        /**
+         * @return the number of distances computed in each index: by its search, to rank it further and to look up
+         *         the documents read from the other indices
+         */
+        public long[] getEvaluations() {
+            return evaluations;
+        }
+    }
+
+    /**
+     * A document read but not yet known in every index.
+     */
+    private static class Candidate {
+        private final int id;
+        // looked up once, as candidates with the same sum are ordered by name
+        private final String name;
+        private final double[] grades;
+        private final boolean[] known;
+        private double lowerBound;
+        private double upperBound;
+
+        private Candidate(int id, String name, int numIndices) {
+            this.id = id;
+            this.name = name;
+            grades = new double[numIndices];
+            known = new boolean[numIndices];
+        }
+
+        private void setGrade(int index, double grade) {
+            if (known[index]) return;
+
+            grades[index] = grade;
+            known[index] = true;
+        }
+    }
+
+    /**
+     * Collects the closest documents like a {@link TopK} and keeps every document offered with its distance. The
+     * searchers offer each exact distance they compute, so these are the distances the search computed.
+     */
+    private static class ScoredTopK extends TopK {
+        private int[] scoredDocuments = new int[MIN_DEPTH];
+        private double[] scoredDistances = new double[MIN_DEPTH];
+        private int numScored;
+
+        private ScoredTopK(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(int document, double distance) {
+            if (numScored == scoredDocuments.length) {
+                scoredDocuments = Arrays.copyOf(scoredDocuments, 2 * numScored);
+                scoredDistances = Arrays.copyOf(scoredDistances, 2 * numScored);
+            }
+
+            scoredDocuments[numScored] = document;
+            scoredDistances[numScored] = distance;
+            numScored++;
+
+            return super.offer(document, distance);
+        }
+    }
+
+    /**
+     * The documents of an index by ascending distance to the query, in the order of a {@link TopK}.
+     */
+    private static class RankedStream {
+        private final NeighbourSearch searcher;
+        private final SimilarityMeasure similarityMeasure;
+        private final SparseVector query;
+        private final int queryId;
+        private ScoredTopK search;
+        private TopK topK;
+        private int position;
+        // whether topK holds every document the stream can return
+        private boolean complete;
+        private long evaluations;
+
+        private RankedStream(NeighbourSearch searcher, SimilarityMeasure similarityMeasure, SparseVector query,
+                             int queryId, int depth) {
+            this.searcher = searcher;
+            this.similarityMeasure = similarityMeasure;
+            this.query = query;
+            this.queryId = queryId;
+
+            int size = searcher.getIndex().size();
+            search = new ScoredTopK(Math.min(depth, size));
+            searcher.search(query, queryId, 0, size, new TopK[]{search});
+            search.sort();
+
+            topK = search;
+            evaluations = search.numScored;
+            // a search collecting fewer documents than it could found all it can find, an approximate one as well
+            complete = search.size() < search.capacity() || search.capacity() == size;
+        }
+
+        private boolean hasNext() {
+            if (position < topK.size()) return true;
+            if (complete) return false;
+
+            rankAll();
+            return position < topK.size();
+        }
+
+        /**
+         * Ranks all documents of the index, taking the distances the search computed and computing the others. The
+         * documents of a ranking are in a fixed order, so the ones read before keep their positions.
+         */
+        private void rankAll() {
+            SparseIndex index = searcher.getIndex();
+            boolean[] scored = new boolean[index.size()];
+            TopK all = new TopK(index.size());
+
+            for (int i = 0; i < search.numScored; i++) {
+                int document = search.scoredDocuments[i];
+                if (scored[document]) continue;
+
+                scored[document] = true;
+                all.offer(document, search.scoredDistances[i]);
+            }
+
+            for (int document = 0; document < index.size(); document++) {
+                if (scored[document] || index.getDocumentId(document) == queryId) continue;
+
+                all.offer(document, similarityMeasure.distance(query, index, document));
+                evaluations++;
+            }
+
+            all.sort();
+            topK = all;
+            search = null;
+            complete = true;
+        }
+
+        /**
+         * @return the position of the next document, its rank minus 1
+         */
+        private int next() {
+            return position++;
+        }
+    }
+
+    /**
+     * @param method            how the rankings are combined
+     * @param similarityMeasure the measure the searchers rank by
+     * @param searchers         the search structure of each index, ranking by the measure only, all indices
+     *                          loaded with the same dictionary
+     * @param k                 the number of documents of the fused ranking
+     */
+    public RankFusion(FusionMethod method, SimilarityMeasure similarityMeasure, List<NeighbourSearch> searchers,
+                      int k) {
+        this.method = method;
+        this.similarityMeasure = similarityMeasure;
+        this.searchers = searchers;
+        this.k = k;
+
+        for (NeighbourSearch searcher : searchers) {
+            SparseIndex index = searcher.getIndex();
+            int[] first = new int[index.getDictionary().size()];
+            int[] next = new int[index.size()];
+            Arrays.fill(first, -1);
+
+            for (int document = index.size() - 1; document >= 0; document--) {
+                next[document] = first[index.getDocumentId(document)];
+                first[index.getDocumentId(document)] = document;
+            }
+
+            firstDocuments.add(first);
+            nextDocuments.add(next);
+        }
+    }
+
+    /**
+     * @param queryId the dictionary id of the query document
+     * @param queries the vector of the query in each index, null if the index does not contain it
+     * @return the fused ranking over the indices containing the query
+     */
+    public Result fuse(int queryId, SparseVector[] queries) {
+        int[] depths = new int[searchers.size()];
+        List<Integer> indices = Lists.newArrayList();
+
+        for (int i = 0; i < searchers.size(); i++) {
+            depths[i] = -1;
+            if (queries[i] != null) indices.add(i);
+        }
+
+        int numIndices = indices.size();
+        RankedStream[] streams = new RankedStream[numIndices];
+        // the distances computed to look up the documents read from the other indices
+        long[] lookups = new long[numIndices];
+        double[] missingGrades = new double[numIndices];
+        double[] nextGrades = new double[numIndices];
+        boolean[] exhausted = new boolean[numIndices];
+
+        for (int l = 0; l < numIndices; l++) {
+            NeighbourSearch searcher = searchers.get(indices.get(l));
+            streams[l] = new RankedStream(searcher, similarityMeasure, queries[indices.get(l)], queryId,
+                    Math.max(2 * k, MIN_DEPTH));
+            missingGrades[l] = method.missingGrade(searcher.getIndex().size());
+            nextGrades[l] = method.grade(1, 0);
+        }
+
+        Map<Integer, Candidate> candidates = Maps.newHashMap();
+        List<Candidate> best = null;
+        int rounds = 0, nextCheck = 1;
+
+        while (best == null && !allExhausted(exhausted)) {
+            for (int l = 0; l < numIndices; l++) {
+                if (!exhausted[l] && !streams[l].hasNext()) exhausted[l] = true;
+                if (!exhausted[l]) read(l, streams, indices, queries, candidates, nextGrades, lookups);
+            }
+
+            // checking costs a pass over all candidates, so it is done after a fixed share of the rounds so far
+            if (++rounds < nextCheck && !allExhausted(exhausted)) continue;
+            nextCheck = rounds + Math.max(1, rounds / 8);
+
+            best = settle(candidates, nextGrades, missingGrades, exhausted);
+        }
+
+        if (best == null) best = settle(candidates, nextGrades, missingGrades, exhausted);
+
+        // the worst cases of the top k are settled, their grades still unknown are read from the streams
+        for (int l = 0; l < numIndices; l++) {
+            while (!exhausted[l] && !allKnown(best, l)) {
+                if (streams[l].hasNext()) {
+                    read(l, streams, indices, queries, candidates, nextGrades, lookups);
+                } else {
+                    exhausted[l] = true;
+                }
+            }
+
+            for (Candidate candidate : best) {
+                if (!candidate.known[l]) candidate.setGrade(l, missingGrades[l]);
+            }
+        }
+
+        for (Candidate candidate : best) bound(candidate, nextGrades, missingGrades, exhausted);
+        Collections.sort(best, BY_UPPER_BOUND);
+
+        List<DocumentSimilarity> documents = Lists.newArrayList();
+
+        for (Candidate candidate : best) {
+            if (Double.isInfinite(candidate.upperBound)) break;
+
+            DocumentSimilarity similarity = new DocumentSimilarity(method.score(candidate.upperBound, numIndices),
+                    candidate.id, method.toString());
+            similarity.setRank(documents.size() + 1);
+            documents.add(similarity);
+        }
+
+        int[] sizes = new int[searchers.size()];
+        for (int i = 0; i < sizes.length; i++) sizes[i] = searchers.get(i).getIndex().size();
+        long[] evaluations = new long[searchers.size()];
+
+        for (int l = 0; l < numIndices; l++) {
+            depths[indices.get(l)] = streams[l].position;
+            evaluations[indices.get(l)] = streams[l].evaluations + lookups[l];
+        }
+
+        return new Result(documents, depths, sizes, evaluations);
+    }
+
+    /**
+     * Reads the next document of a stream, looking up its grades in the other indices if the method allows it.
+     */
+    private void read(int l, RankedStream[] streams, List<Integer> indices, SparseVector[] queries,
+                      Map<Integer, Candidate> candidates, double[] nextGrades, long[] lookups) {
+        RankedStream stream = streams[l];
+        int position = stream.next();
+        int document = stream.topK.getDocument(position);
+        double distance = stream.topK.getDistance(position);
+        SparseIndex index = stream.searcher.getIndex();
+        int id = index.getDocumentId(document);
+
+        nextGrades[l] = method.grade(position + 2, distance);
+
+        Candidate candidate = candidates.get(id);
+
+        if (candidate == null) {
+            candidates.put(id, candidate = new Candidate(id, index.getDocument(document), streams.length));
+
+            if (method.hasRandomAccess()) {
+                for (int other = 0; other < streams.length; other++) {
+                    if (other != l) candidate.setGrade(other, method.grade(0,
+                            distance(indices.get(other), queries[indices.get(other)], id, lookups, other)));
+                }
+            }
+        }
+
+        candidate.setGrade(l, method.grade(position + 1, distance));
+    }
+
+    /**
+     * @return the smallest distance of a document with the id in an index, infinite if there is none
+     */
+    private double distance(int i, SparseVector query, int id, long[] lookups, int l) {
+        int[] first = firstDocuments.get(i);
+        double distance = Double.POSITIVE_INFINITY;
+
+        for (int d = id < first.length ? first[id] : -1; d >= 0; d = nextDocuments.get(i)[d]) {
+            distance = Math.min(distance, similarityMeasure.distance(query, searchers.get(i).getIndex(), d));
+            lookups[l]++;
+        }
+
+        return distance;
+    }
+
+    /**
+     * @return the k candidates with the best worst cases if no other document can beat them, null otherwise
+     */
+    private List<Candidate> settle(Map<Integer, Candidate> candidates, double[] nextGrades, double[] missingGrades,
+                                   boolean[] exhausted) {
+        List<Candidate> ordered = Lists.newArrayList(candidates.values());
+        for (Candidate candidate : ordered) bound(candidate, nextGrades, missingGrades, exhausted);
+
+        Collections.sort(ordered, BY_UPPER_BOUND);
+
+        List<Candidate> best = Lists.newArrayList(ordered.subList(0, Math.min(k, ordered.size())));
+        if (allExhausted(exhausted)) return best;
+        if (best.size() < k) return null;
+
+        double limit = best.get(best.size() - 1).upperBound;
+
+        // a document not read yet has at least the next grade of every stream
+        double threshold = 0;
+        for (int l = 0; l < nextGrades.length; l++) threshold += exhausted[l] ? missingGrades[l] : nextGrades[l];
+        if (!(threshold > limit)) return null;
+
+        // a document with the same sum as the k-th one is only known to come after it if both are known exactly
+        for (Candidate candidate : ordered.subList(best.size(), ordered.size())) {
+            if (!(candidate.lowerBound > limit || (candidate.lowerBound == limit && candidate.upperBound == limit)))
+                return null;
+        }
+
+        return best;
+    }
+
+    /**
+     * Computes the best and worst case sums of grades of a candidate.
+     */
+    private static void bound(Candidate candidate, double[] nextGrades, double[] missingGrades, boolean[] exhausted) {
+        double lowerBound = 0, upperBound = 0;
+
+        for (int l = 0; l < candidate.grades.length; l++) {
+            if (candidate.known[l]) {
+                lowerBound += candidate.grades[l];
+                upperBound += candidate.grades[l];
+            } else {
+                lowerBound += exhausted[l] ? missingGrades[l] : nextGrades[l];
+                upperBound += missingGrades[l];
+            }
+        }
+
+        candidate.lowerBound = lowerBound;
+        candidate.upperBound = upperBound;
+    }
+
+    private static boolean allKnown(List<Candidate> candidates, int l) {
+        for (Candidate candidate : candidates) {
+            if (!candidate.known[l]) return false;
+        }
+
+        return true;
+    }
+
+    private static boolean allExhausted(boolean[] exhausted) {
+        for (boolean streamExhausted : exhausted) {
+            if (!streamExhausted) return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,320 @@
+import com.google.common.collect.Lists;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the rankings of query documents, so a query asked again is not scored again. A ranking is keyed by the
+ * fingerprint of the content of its index (see {@link #fingerprint(File)}), the options of the search the ranking
+ * depends on, the measure and the name of the query document, so a changed index is never answered from the cache.
+ * The ranking of an index without the query document is kept as well, as an empty one.
+ * <p/>
+ * A ranking is kept with the depth it was collected with: it answers any smaller depth with its first documents, and
+ * any depth at all if it holds fewer documents than its depth, as it then holds every document of the index. The
+ * least recently used rankings are dropped once the cache holds more than its capacity of documents, each ranking
+ * counting one more.
+ * <p/>
+ * The cache can be read from and written to a file. Layout (big-endian): the magic number and version, the number of
+ * rankings, and for each from the least to the most recently used its key, depth and number of documents followed by
+ * the name and distance of each document. Strings are written with {@link DataOutput#writeUTF(String)}.
+ */
+public class ResultCache {
+    public static final int DEFAULT_CAPACITY = 1000000;
+
+    private static final int MAGIC = 0x53524553;
+    private static final int VERSION = 1;
+
+    private final int capacity;
+    // the rankings by key, in the order they were used
+    private final LinkedHashMap<List<String>, Ranking> rankings =
+            new LinkedHashMap<List<String>, Ranking>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity the number of documents of the rankings kept
+     */
+    public ResultCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param fingerprint the fingerprint of the index
+     * @param options     the options of the search the ranking depends on
+     * @param measure     the measure
+     * @param query       the name of the query document
+     * @return the key of the ranking
+     */
+    public static List<String> getKey(String fingerprint, String options, SimilarityMeasure measure, String query) {
+        return Lists.newArrayList(fingerprint, options, measure.name(), query);
+    }
+
+    /**
+     * Looks up the rankings of a query document, one per measure. They are used only if all are cached, otherwise
+     * the query document is scored again and each of them counts as a miss.
+     *
+     * @param keys  the keys of the rankings
+     * @param depth the number of documents wanted
+     * @return the names and distances of the best documents up to the depth by key, null if one of them is not
+     *         cached
+     */
+    public synchronized Ranking[] get(List<List<String>> keys, int depth) {
+        Ranking[] result = new Ranking[keys.size()];
+
+        for (int i = 0; i < result.length; i++) {
+            Ranking ranking = rankings.get(keys.get(i));
+
+            if (ranking == null || (ranking.depth < depth && ranking.size() >= ranking.depth)) {
+                misses += result.length;
+                return null;
+            }
+
+            result[i] = ranking.size() <= depth ? ranking : ranking.head(depth);
+        }
+
+        hits += result.length;
+        return result;
+    }
+
+    /**
+     * @param key     the key of a ranking
+     * @param ranking the best documents, collected with their depth
+     */
+    public synchronized void put(List<String> key, Ranking ranking) {
+        Ranking previous = rankings.put(key, ranking);
+        if (previous != null) size -= previous.weight();
+        size += ranking.weight();
+
+        for (Iterator<Ranking> eldest = rankings.values().iterator(); size > capacity && eldest.hasNext(); ) {
+            size -= eldest.next().weight();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return the number of rankings used from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of rankings scored again, as they or another ranking of the same query document were not
+     *         cached
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of rankings kept
+     */
+    public synchronized int size() {
+        return rankings.size();
+    }
+
+    /**
+     * @return the number of documents of the rankings kept
+     */
+    public synchronized long getDocuments() {
+        return size - rankings.size();
+    }
+
+    /**
+     * Adds the rankings of a file, as if they were used in their order. A file that cannot be read is ignored with a
+     * warning.
+     *
+     * @param file a cache file written by {@link #write(File)}, ignored if it does not exist
+     */
+    public void read(File file) {
+        if (!file.isFile()) return;
+
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+
+            try {
+                if (input.readInt() != MAGIC) throw new IOException("no result cache");
+                if (input.readInt() != VERSION) throw new IOException("unsupported version");
+
+                for (int i = input.readInt(); i > 0; i--) {
+                    List<String> key = Lists.newArrayList(input.readUTF(), input.readUTF(), input.readUTF(),
+                            input.readUTF());
+                    int depth = input.readInt();
+                    String[] documents = new String[input.readInt()];
+                    double[] distances = new double[documents.length];
+
+                    for (int d = 0; d < documents.length; d++) {
+                        documents[d] = input.readUTF();
+                        distances[d] = input.readDouble();
+                    }
+
+                    put(key, new Ranking(depth, documents, distances));
+                }
+            } finally {
+                input.close();
+            }
+        } catch (EOFException e) {
+            System.err.println("Ignoring the rest of result cache " + file + ": it is truncated");
+        } catch (IOException e) {
+            System.err.println("Ignoring the rest of result cache " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the rankings to a file, through a temporary file so it is never read partially. The rankings are still
+     * kept in memory if the file cannot be written.
+     *
+     * @param file the cache file
+     */
+    public synchronized void write(File file) {
+        try {
+            File temporaryFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            DataOutputStream output =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 1 << 16));
+
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(rankings.size());
+
+                for (Map.Entry<List<String>, Ranking> entry : rankings.entrySet()) {
+                    for (String part : entry.getKey()) output.writeUTF(part);
+
+                    Ranking ranking = entry.getValue();
+                    output.writeInt(ranking.depth);
+                    output.writeInt(ranking.size());
+
+                    for (int d = 0; d < ranking.size(); d++) {
+                        output.writeUTF(ranking.documents[d]);
+                        output.writeDouble(ranking.distances[d]);
+                    }
+                }
+            } finally {
+                output.close();
+            }
+
+            if (!temporaryFile.renameTo(file)) {
+                temporaryFile.delete();
+                throw new IOException("cannot rename " + temporaryFile);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write result cache " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The fingerprint of the documents of an index: the MD5 digest of the file it is loaded from, its compiled form if
+     * there is an up-to-date one, and of its delta segments.
+     *
+     * @param indexFile an ARFF (optionally gzip compressed) or compiled index
+     * @return the digest as hexadecimal digits
+     * @throws IOException if a file cannot be read
+     */
+    public static String fingerprint(File indexFile) throws IOException {
+        List<File> files = Lists.newArrayList(indexFile.getName().endsWith(IndexFile.EXTENSION) ||
+                !IndexFile.isCompiled(indexFile) ? indexFile : IndexFile.getCompiledFile(indexFile));
+        files.addAll(SegmentFile.getSegmentFiles(indexFile));
+
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] buffer = new byte[1 << 16];
+
+        for (File file : files) {
+            InputStream input = new FileInputStream(file);
+            int length;
+
+            try {
+                while ((length = input.read(buffer)) >= 0) digest.update(buffer, 0, length);
+            } finally {
+                input.close();
+            }
+        }
+
+        StringBuilder fingerprint = new StringBuilder();
+        for (byte b : digest.digest()) fingerprint.append(String.format("%02x", b & 0xff));
+        return fingerprint.toString();
+    }
+
+    /**
+     * The names and distances of the best documents of a ranking in ranked order.
+     */
+    public static class Ranking {
+        private final int depth;
+        private final String[] documents;
+        private final double[] distances;
+
+        /**
+         * @param depth     the number of documents the ranking was collected with
+         * @param documents the names of the documents
+         * @param distances the distances of the documents
+         */
+        public Ranking(int depth, String[] documents, double[] distances) {
+            this.depth = depth;
+            this.documents = documents;
+            this.distances = distances;
+        }
+
+        /**
+         * @param depth        the number of documents the ranking was collected with
+         * @param similarities the documents in ranked order
+         * @param dictionary   the dictionary of the ids of the documents
+         */
+        public Ranking(int depth, List<DocumentSimilarity> similarities, DocumentDictionary dictionary) {
+            this(depth, new String[similarities.size()], new double[similarities.size()]);
+
+            for (int i = 0; i < similarities.size(); i++) {
+                documents[i] = dictionary.getName(similarities.get(i).getTargetDocument());
+                distances[i] = similarities.get(i).getDistance();
+            }
+        }
+
+        /**
+         * @param index      the name of the index the documents belong to
+         * @param dictionary assigns the ids of the document names
+         * @return the documents in ranked order
+         */
+        public List<DocumentSimilarity> toSimilarities(String index, DocumentDictionary dictionary) {
+            List<DocumentSimilarity> similarities = Lists.newArrayListWithCapacity(documents.length);
+
+            for (int i = 0; i < documents.length; i++) {
+                DocumentSimilarity similarity = new DocumentSimilarity(distances[i], dictionary.getId(documents[i]),
+                        index);
+                similarity.setRank(i + 1);
+                similarities.add(similarity);
+            }
+
+            return similarities;
+        }
+
+        public int size() {
+            return documents.length;
+        }
+
+        private Ranking head(int size) {
+            String[] headDocuments = new String[size];
+            double[] headDistances = new double[size];
+            System.arraycopy(documents, 0, headDocuments, 0, size);
+            System.arraycopy(distances, 0, headDistances, 0, size);
+            return new Ranking(size, headDocuments, headDistances);
+        }
+
+        /**
+         * @return the weight of the ranking in the capacity, at least one so empty rankings are dropped as well
+         */
+        private long weight() {
+            return documents.length + 1;
+        }
+    }
+}
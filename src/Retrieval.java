@@ -1,6 +1,8 @@
 import com.google.common.base.CharMatcher;
+import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.apache.tools.ant.DirectoryScanner;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
@@ -10,12 +12,10 @@ import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.converters.ConverterUtils;
-import weka.filters.Filter;
-import weka.filters.unsupervised.attribute.NumericToBinary;
 
-import java.io.File;
-import java.io.FilenameFilter;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Retrieval {
     @SuppressWarnings({"MismatchedQueryAndUpdateOfCollection"})
@@ -23,459 +23,1640 @@ public class Retrieval {
     private List<String> indicesNames;
     private List<File> indices;
     @SuppressWarnings({"MismatchedQueryAndUpdateOfCollection"})
-    @Argument(multiValued = true, required = true, index = 0, usage = "the names of the query documents",
+    @Argument(multiValued = true, required = false, index = 0, usage = "the names of the query documents",
             metaVar = "QUERY")
     private List<String> queryDocuments;
     @Option(name = "-k", required = false, usage = "the number k of to-be-retrieved documents")
     private int k = 5;
-    @Option(name = "-m", aliases = {"--measure"}, required = false,
-            usage = "the similarity function to be used for similarity retrieval")
-    private SimilarityMeasure similarityMeasure = SimilarityMeasure.L1;
-    private Attribute classAttribute = null;
-    private Attribute documentAttribute = null;
+    @SuppressWarnings({"MismatchedQueryAndUpdateOfCollection"})
+    @Option(name = "-m", aliases = {"--measure"}, multiValued = true, handler = SimilarityMeasuresHandler.class,
+            required = false, usage = "the similarity functions to be used for similarity retrieval, separated by " +
+            "commas (all are computed in one pass)")
+    private List<SimilarityMeasure> similarityMeasures;
+    @Option(name = "-d", aliases = {"--depth"}, required = false,
+            usage = "the number of documents kept per query and index for the statistics (default 5 * k, 0 keeps all " +
+                    "for exact statistics)")
+    private int depth = -1;
+    @Option(name = "-t", aliases = {"--threads"}, required = false,
+            usage = "the number of threads used to load and score the indices (0 uses all processors)")
+    private int threads = 1;
+    @Option(name = "-c", aliases = {"--compile"}, required = false,
+            usage = "compile the indices to a binary form that is used in place of the ARFF files")
+    private boolean compile = false;
+    @Option(name = "--append", required = false,
+            usage = "append the documents of the ARFF file FILE to the index selected with -i as a delta segment",
+            metaVar = "FILE")
+    private File appendFile;
+    @Option(name = "--remove", required = false,
+            usage = "remove the QUERY documents from the selected indices with a delta segment")
+    private boolean remove = false;
+    @Option(name = "--compact", required = false, usage = "merge the delta segments of the selected indices")
+    private boolean compact = false;
+    @Option(name = "-s", aliases = {"--stream"}, required = false,
+            usage = "score the ARFF indices while reading them instead of loading them")
+    private boolean stream = false;
+    @Option(name = "-e", aliases = {"--engine"}, required = false,
+            usage = "how the loaded indices are searched, INVERTED only visits the attributes of the query, VPTREE " +
+                    "prunes documents by the triangle inequality (L1 and L2 only), LSH only ranks the documents " +
+                    "sharing a hash bucket with the query (approximate)")
+    private SearchStrategy searchStrategy = SearchStrategy.SCAN;
+    @Option(name = "--lsh-tables", required = false,
+            usage = "with -e LSH, the number of hash tables, more tables find more of the closest documents")
+    private int hashTables = LocalitySensitiveHash.DEFAULT_TABLES;
+    @Option(name = "--lsh-hashes", required = false,
+            usage = "with -e LSH, the number of hashes per table, more hashes give smaller buckets")
+    private int hashFunctions = LocalitySensitiveHash.DEFAULT_HASHES;
+    @Option(name = "--lsh-width", required = false,
+            usage = "with -e LSH, the bucket width of the L1 and L2 hashes relative to the median distance of the " +
+                    "documents")
+    private double hashWidth = LocalitySensitiveHash.DEFAULT_WIDTH;
+    @Option(name = "--quantize", required = false,
+            usage = "with -e SCAN, scan a FLOAT or 8-bit (BYTE) copy of the values and rank only the documents that " +
+                    "may be among the closest again by their exact values, which gives the same ranking")
+    private Quantization quantization;
+    @Option(name = "--batch", required = false,
+            usage = "with -e SCAN, the number of queries compared to the documents of an index together, 1 compares " +
+                    "them one by one (default 16)")
+    private int batch = 16;
+    @Option(name = "--shards", required = false,
+            usage = "split each index into this many shards of documents, searched by one worker process each " +
+                    "(0 searches the indices in this process)")
+    private int shards = 0;
+    @Option(name = "--shard-timeout", required = false,
+            usage = "with --shards, the seconds a worker may take to load its shard or answer, after which its " +
+                    "documents are left out (default 300)")
+    private int shardTimeout = 300;
+    @Option(name = "--shard-heap", required = false,
+            usage = "with --shards, the maximum heap of each worker process (e.g. 512M)", metaVar = "SIZE")
+    private String shardHeap;
+    @Option(name = "-f", aliases = {"--fuse"}, required = false,
+            usage = "rank the documents of all indices together by their average DISTANCE, average RANK or " +
+                    "reciprocal rank fusion (RRF), reading the rankings of the indices only as far as needed")
+    private FusionMethod fusionMethod;
+    @Option(name = "--recall", required = false,
+            usage = "print the recall@k of the search selected with -e against a scan of the indices")
+    private boolean recall = false;
+    @Option(name = "-r", aliases = {"--server"}, required = false,
+            usage = "keep the indices loaded and answer the requests read line by line from stdin")
+    private boolean server = false;
+    @Option(name = "-p", aliases = {"--port"}, required = false,
+            usage = "with -r, answer the requests of connections to this port of the local host instead of stdin")
+    private int port = 0;
+    @Option(name = "-o", aliases = {"--output"}, required = false,
+            usage = "write the report of each measure to PREFIX_MEASURE.txt instead of stdout", metaVar = "PREFIX")
+    private String outputPrefix;
+    @Option(name = "-g", aliases = {"--graph"}, required = false,
+            usage = "write the k nearest neighbours of every document of each index to PREFIX_INDEX_MEASURE.knn " +
+                    "instead of answering queries", metaVar = "PREFIX")
+    private String graphPrefix;
+    @Option(name = "--metrics", required = false,
+            usage = "write the time and allocated bytes per phase and index, the distances computed and the heap " +
+                    "usage of the run as JSON to FILE (- for stdout)", metaVar = "FILE")
+    private String metricsFile;
+    @Option(name = "--cache", required = false,
+            usage = "keep the rankings of up to SIZE documents to answer the queries asked again without scoring " +
+                    "(default " + ResultCache.DEFAULT_CAPACITY + " with --cache-file, otherwise 0, which keeps none)",
+            metaVar = "SIZE")
+    private int cacheSize = -1;
+    @Option(name = "--cache-file", required = false,
+            usage = "read the cached rankings of earlier runs from FILE and write the cache back to it",
+            metaVar = "FILE")
+    private File cacheFile;
+    private final Metrics metrics = new Metrics();
+    private ResultCache resultCache;
+    // the fingerprints of the indices for the result cache by absolute file
+    private Map<File, String> fingerprints = Maps.newHashMap();
+    // the ids of the document names of all indices of the run
+    private DocumentDictionary dictionary = new DocumentDictionary();
+    private RankAggregator rankAggregator = new RankAggregator(dictionary);
     @SuppressWarnings({"FieldCanBeLocal"})
-    @Option(name = "-q", aliases = {"--query"}, required = false, usage = "if a query should be used")
+    @Option(name = "-q", aliases = {"--query"}, required = false,
+            usage = "rank the documents by the QUERY words, terms of the indices that may contain the wildcards * " +
+                    "and ?, instead of query documents")
     private boolean queryWords = false;
-
+    @Option(name = "--weighted", required = false,
+            usage = "with -q, rank the documents by the sum of their values of the terms of the query, as in the " +
+                    "index file before the normalization by the attribute ranges, instead of the number of words " +
+                    "they match")
+    private boolean weighted = false;
+
+    /**
+     * Ranks the documents of each index by the query words instead of query documents, see {@link TermIndex}, and
+     * prints the ranking of each index and the statistics of the documents. The scores are the negated distances.
+     *
+     * @throws Exception if an index cannot be loaded
+     */
     public void query() throws Exception {
         setupIndices();
 
-        // index -> document -> similarity
-        Map<String, Multimap<String, DocumentSimilarity>> similaritiesByIndex = Maps.newHashMap();
-        // document -> similarity
-        Multimap<String, DocumentSimilarity> similaritiesByDocument = HashMultimap.create();
-
-        // build a table: query / index -> {similarity}
-        Table<String, String, List<DocumentSimilarity>> table = HashBasedTable.create();
+        String query = Joiner.on(' ').join(queryDocuments);
+        String[] words = queryDocuments.toArray(new String[queryDocuments.size()]);
+        // index -> ranked documents
+        Map<String, List<DocumentSimilarity>> indexResults = Maps.newHashMap();
 
         for (File indexFile : indices) {
-            ConverterUtils.DataSource source = new ConverterUtils.DataSource(indexFile.getAbsolutePath());
-            Instances indexInstances = source.getDataSet();
+            SparseIndex index = loadIndex(indexFile, dictionary, metrics);
 
+            Metrics.Phase phase = metrics.start("searcher", index.getName());
+            TermIndex termIndex = new TermIndex(index);
+            phase.stop();
 
-            Instance queryVector = new Instance(indexInstances.numAttributes());
+            System.err.println(String.format("index %s: %d terms, the bitsets take %.1f MB", index.getName(),
+                    termIndex.size(), termIndex.getBytes() / 1e6));
 
-            Enumeration attributes = indexInstances.enumerateAttributes();
-            while (attributes.hasMoreElements()) {
-                Attribute attribute = (Attribute) attributes.nextElement();
-
-                if (classAttribute == null && attribute.name().matches(".*[Cc]lass.*")) {
-                    classAttribute = attribute;
-                    //queryVektor.setValue(attribute, "QUERY");
-                }
+            for (String word : words) {
+                if (termIndex.findAttributes(word).length == 0)
+                    System.err.println("No term of index " + index.getName() + " matches " + word);
+            }
 
-                if (documentAttribute == null && attribute.name().matches(".*[Dd]ocument.*")) {
-                    documentAttribute = attribute;
-                    queryVector.setValue(attribute, "QUERY");
-                }
+            phase = metrics.start("search", index.getName());
+            TopK topK = new TopK(Math.min(getDepth(), index.size()));
+            termIndex.search(words, weighted, topK);
+            indexResults.put(index.getName(), topK.toSimilarities(index));
+            phase.stop();
+        }
 
-                if (documentAttribute != null && classAttribute != null) break;
-            }
+        System.out.println("\n\nquery: " + query);
 
-            if (classAttribute == null) {
-                System.err.println("No class attribute found for index " + indexFile);
-                System.err.println("Aborting");
-                System.exit(1);
-            }
+        System.out.print("rank ");
+        for (File index : indices) {
+            System.out.print(String.format("%-41.41s ", getIndexName(index)));
+        }
 
-            if (documentAttribute == null) {
-                System.err.println("No document attribute found for index " + indexFile);
-                System.err.println("Aborting");
-                System.exit(1);
-            }
+        System.out.println();
 
+        System.out.print("-----+");
+        //noinspection UnusedDeclaration
+        for (File index : indices) {
+            for (int j = 0; j < 41; j++)
+                System.out.print('-');
+            System.out.print('+');
+        }
+        System.out.println();
 
-            //Instance queryVector = new Instance(indexInstances.numAttributes());
+        for (int i = 0; i < k; i++) {
+            System.out.print(String.format("#%3d ", i));
 
-            attributes = indexInstances.enumerateAttributes();
-            while (attributes.hasMoreElements()) {
-                Attribute attribute = (Attribute) attributes.nextElement();
+            for (File index : indices) {
+                List<DocumentSimilarity> documentSimilarities = indexResults.get(getIndexName(index));
 
-                for (String queryWord : queryDocuments) {
-                    if (attribute.name().matches(queryWord)) {
-                        queryVector.setValue(attribute, 1);
-                    } else {
-                        queryVector.setValue(attribute, 0);
-                    }
+                if (i >= documentSimilarities.size()) {
+                    for (int j = 0; j < 42; j++) System.out.print(' ');
+                    continue;
                 }
+
+                DocumentSimilarity similarity = documentSimilarities.get(i);
+                System.out.print(String.format("%-30.30s %10.3f ",
+                        dictionary.getName(similarity.getTargetDocument()), -similarity.getDistance()));
             }
 
-            NumericToBinary numericToBinary = new NumericToBinary();
-            numericToBinary.setInputFormat(indexInstances);
-            Instances newData = Filter.useFilter(indexInstances, numericToBinary);
+            System.out.println();
+        }
+
+        System.out.println(String.format("\n%-40.40s %-7.7s %-15.15s %-15.15s", "document", "#occur", "avg rank",
+                "avg score"));
+
+        for (DocumentStatistics stats : getStatistics(indexResults)) {
+            System.out.println(String.format("%-40.40s %7d %15.3f %15.3f", dictionary.getName(stats.getDocument()),
+                    stats.getNumberOfOccurrences(), stats.getAverageRank(), -stats.getAverageDistance()));
+        }
+    }
 
-            System.out.println("Used Filter NumericToBinary");
+    public void run() throws Exception {
+        if (server) {
+            serve();
+            return;
+        }
 
-            List<Instance> documentVectors = Lists.newLinkedList();
+        if (compile) {
+            compile();
+            return;
+        }
 
+        if (appendFile != null || remove || compact) {
+            update();
+            return;
+        }
 
-            documentVectors.add(queryVector);
+        if (graphPrefix != null) {
+            writeGraphs();
+            return;
+        }
 
+        if (queryWords) {
+            query();
+            return;
+        }
 
-            similarityMeasure.getDistanceFunction().setInstances(indexInstances);
+        setupIndices();
 
-            // document -> similarity
-            Multimap<String, DocumentSimilarity> similaritiesForIndex = HashMultimap.create();
+        SimilarityMeasure[] similarityMeasures = getSimilarityMeasures();
+        if (outputPrefix == null) printProgramStatus(System.out, similarityMeasures);
 
-            // calculate distance to all other documents in the index file
-            Enumeration instances = indexInstances.enumerateInstances();
-            while (instances.hasMoreElements()) {
-                Instance instance = (Instance) instances.nextElement();
-                String instanceName = getInstanceName(instance);
+        // build a table per measure: query / index -> {similarity}
+        List<Table<String, String, List<DocumentSimilarity>>> tables = Lists.newArrayList();
+        for (SimilarityMeasure ignored : similarityMeasures) tables.add(HashBasedTable.<String, String,
+                List<DocumentSimilarity>>create());
 
-                for (Instance queryInstance : documentVectors) {
-                    String queryInstanceName = getInstanceName(queryInstance);
-                    // skip same document
-                    if (instanceName.equals(queryInstanceName))
-                        continue;
+        // the fused ranking per measure: query -> ranking
+        List<Map<String, RankFusion.Result>> fusedResults = Lists.newArrayList();
 
-                    double distance = similarityMeasure.getDistanceFunction().distance(queryInstance, instance);
+        resultCache = createResultCache();
+        Map<File, Set<String>> queries = getUncachedQueries(tables);
+        ExecutorService executor = createExecutor();
 
-                    List<DocumentSimilarity> similarities = table.get(queryInstanceName, indexFile.getName());
+        try {
+            if (stream) {
+                retrieveStreaming(executor, queries, tables);
+            } else if (shards > 0) {
+                retrieveSharded(queries, tables);
+            } else if (fusionMethod != null) {
+                fuse(executor, fusedResults);
+            } else {
+                retrieveLoaded(executor, queries, tables);
+            }
+        } finally {
+            executor.shutdown();
+        }
 
-                    if (similarities == null) {
-                        similarities = Lists.newArrayList();
-                        table.put(queryInstanceName, indexFile.getName(), similarities);
-                    }
+        if (resultCache != null) {
+            cacheRankings(queries, tables);
+            printCacheStatistics();
+            if (cacheFile != null) resultCache.write(cacheFile);
+        }
 
-                    DocumentSimilarity documentSimilarity =
-                            new DocumentSimilarity(distance, instanceName, indexFile.getName());
+        for (int m = 0; m < similarityMeasures.length; m++) {
+            Metrics.Phase phase = metrics.start("report", "");
 
-                    similarities.add(documentSimilarity);
+            if (outputPrefix == null) {
+                if (similarityMeasures.length > 1) System.out.println("\n\nmeasure: " + similarityMeasures[m]);
 
-                    //similaritiesForIndex.put(queryInstanceName, documentSimilarity);
+                if (fusionMethod != null) {
+                    printFusedReport(System.out, fusedResults.get(m));
+                } else {
+                    printReport(System.out, tables.get(m));
                 }
 
-                //trimMatchesToSizeK(similaritiesForIndex);
+                phase.stop();
+                continue;
             }
 
-            for (Map.Entry<String, List<DocumentSimilarity>> stringListEntry : table.column(indexFile.getName())
-                    .entrySet()) {
-                List<DocumentSimilarity> documentSimilarities = stringListEntry.getValue();
-                Collections.sort(documentSimilarities);
+            File outputFile = new File(outputPrefix + "_" + similarityMeasures[m] + ".txt");
+            PrintStream output = new PrintStream(new FileOutputStream(outputFile), false, "UTF-8");
 
-                for (int i = 0, documentSimilaritiesSize = documentSimilarities.size(); i < documentSimilaritiesSize;
-                     i++) {
-                    DocumentSimilarity documentSimilarity = documentSimilarities.get(i);
-                    documentSimilarity.setRank(i + 1);
+            try {
+                printProgramStatus(output, new SimilarityMeasure[]{similarityMeasures[m]});
+
+                if (fusionMethod != null) {
+                    printFusedReport(output, fusedResults.get(m));
+                } else {
+                    printReport(output, tables.get(m));
                 }
+            } finally {
+                output.close();
             }
 
-            //trimMatchesToSizeK(similaritiesForIndex);
-
-            //similaritiesByIndex.put(indexFile.getName(), similaritiesForIndex);
-            //similaritiesByDocument.putAll(similaritiesForIndex);
+            phase.stop();
+            System.out.println("wrote " + outputFile);
         }
+    }
 
-        for (Map.Entry<String, Map<String, List<DocumentSimilarity>>> queryIndexMap : table.rowMap().entrySet()) {
-            String query = queryIndexMap.getKey();
-            Map<String, List<DocumentSimilarity>> indexResults = queryIndexMap.getValue();
-
-            System.out.println("\n\nquery: " + query);
-
-            System.out.print("rank ");
+    /**
+     * Prints the ranking of each index and the document statistics for every query document.
+     *
+     * @param out   the stream to print to
+     * @param table the ranked documents by query and index
+     */
+    private void printReport(PrintStream out, Table<String, String, List<DocumentSimilarity>> table) {
+        // in the order of the command line, whether the rankings were scored or taken from the result cache
+        for (String query : Sets.newLinkedHashSet(queryDocuments)) {
+            Map<String, List<DocumentSimilarity>> indexResults = table.row(query);
+            if (indexResults.isEmpty()) continue;
+
+            out.println("\n\nquery: " + query);
+
+            out.print("rank ");
             for (File index : indices) {
-                System.out.print(String.format("%-41.41s ", index.getName()));
+                out.print(String.format("%-41.41s ", getIndexName(index)));
             }
 
-            System.out.println();
+            out.println();
 
-            System.out.print("-----+");
-            for (int i = 0; i < indices.size(); i++) {
+            out.print("-----+");
+            //noinspection UnusedDeclaration
+            for (File index : indices) {
                 for (int j = 0; j < 41; j++)
-                    System.out.print('-');
-                System.out.print('+');
+                    out.print('-');
+                out.print('+');
             }
-            System.out.println();
-
-            // document -> similarity
-            Multimap<String, DocumentSimilarity> documentToSimilarity = HashMultimap.create();
+            out.println();
 
             for (int i = 0; i < k; i++) {
-                System.out.print(String.format("#%3d ", i));
+                out.print(String.format("#%3d ", i));
 
                 for (File index : indices) {
-                    List<DocumentSimilarity> documentSimilarities = indexResults.get(index.getName());
+                    List<DocumentSimilarity> documentSimilarities = indexResults.get(getIndexName(index));
+
+                    if (documentSimilarities == null) {
+                        System.err.println("No similarities for index " + getIndexName(index));
+                        for (int j = 0; j < 42; j++) out.print(' ');
+                        continue;
+                    }
 
-                    for (DocumentSimilarity documentSimilarity : documentSimilarities) {
-                        documentToSimilarity.put(documentSimilarity.getTargetDocument(), documentSimilarity);
+                    if (i >= documentSimilarities.size()) {
+                        for (int j = 0; j < 42; j++) out.print(' ');
+                        continue;
                     }
 
                     DocumentSimilarity similarity = documentSimilarities.get(i);
-                    System.out.print(String.format("%-30.30s %10.3f ", similarity.getTargetDocument(),
+                    out.print(String.format("%-30.30s %10.6f ", dictionary.getName(similarity.getTargetDocument()),
                             similarity.getDistance()));
                 }
 
-                System.out.println();
+                out.println();
             }
 
-            System.out.println();
-            System.out.println();
-            System.out.println();
-
-            System.out.println(String.format("\n%-40.40s %-7.7s %-15.15s %-15.15s", "document", "#occur", "avg rank",
+            out.println(String.format("\n%-40.40s %-7.7s %-15.15s %-15.15s", "document", "#occur", "avg rank",
                     "avg dist"));
-            List<DocumentStatistics> statistics = Lists.newArrayList();
 
-            for (String document : documentToSimilarity.keySet()) {
-                Collection<DocumentSimilarity> documentSimilarities = documentToSimilarity.get(document);
-                DocumentStatistics stats = new DocumentStatistics(document);
+            Metrics.Phase phase = metrics.start("aggregate", "");
+            List<DocumentStatistics> statistics = getStatistics(indexResults);
+            phase.stop();
+
+            for (DocumentStatistics stats : statistics) {
+                out.println(String.format("%-40.40s %7d %15.3f %15.3f", dictionary.getName(stats.getDocument()),
+                        stats.getNumberOfOccurrences(), stats.getAverageRank(), stats.getAverageDistance()));
+            }
+        }
+    }
+
+    /**
+     * Prints the fused ranking for every query document and how many documents were read from each index for it and
+     * how many distances were computed.
+     *
+     * @param out     the stream to print to
+     * @param results the fused rankings by query
+     */
+    private void printFusedReport(PrintStream out, Map<String, RankFusion.Result> results) {
+        for (Map.Entry<String, RankFusion.Result> queryResult : results.entrySet()) {
+            RankFusion.Result result = queryResult.getValue();
 
-                for (DocumentSimilarity documentSimilarity : documentSimilarities)
-                    stats.addState(documentSimilarity.getRank(), documentSimilarity.getDistance());
+            out.println("\n\nquery: " + queryResult.getKey());
+            out.println("fused by " + fusionMethod + ", documents read and distances computed per index:");
 
-                statistics.add(stats);
+            for (int i = 0; i < indices.size(); i++) {
+                out.println(String.format("\t%-41.41s %s", getIndexName(indices.get(i)), result.getDepths()[i] < 0 ?
+                        "no query document" : result.getDepths()[i] + " of " + result.getSizes()[i] + ", " +
+                        result.getEvaluations()[i] + " distances"));
             }
 
-            Collections.sort(statistics, new Comparator<DocumentStatistics>() {
-                @Override
-                public int compare(DocumentStatistics o1, DocumentStatistics o2) {
-                    int result = Double.compare(o1.getAverageRank(), o2.getAverageRank());
+            out.println(String.format("\n%-4.4s %-40.40s %15.15s", "rank", "document", fusionMethod.getScoreName()));
 
-                    if (result != 0.0) return result;
+            for (DocumentSimilarity similarity : result.getDocuments()) {
+                out.println(String.format("#%3d %-40.40s %15.6f", similarity.getRank() - 1,
+                        dictionary.getName(similarity.getTargetDocument()), similarity.getDistance()));
+            }
+        }
+    }
 
-                    result = Double.compare(o1.getAverageDistance(), o2.getAverageDistance());
+    /**
+     * Sums up the rankings of the indices for a query document: the best 5 * k documents by average rank, followed by
+     * the other documents not ranked by every index.
+     *
+     * @param indexResults the ranked documents by index
+     * @return the statistics of the documents in reported order
+     */
+    List<DocumentStatistics> getStatistics(Map<String, List<DocumentSimilarity>> indexResults) {
+        rankAggregator.clear();
+
+        for (File index : indices) {
+            List<DocumentSimilarity> documentSimilarities = indexResults.get(getIndexName(index));
+            if (documentSimilarities != null) rankAggregator.add(documentSimilarities);
+        }
 
-                    if (result != 0.0) return result;
+        return rankAggregator.getStatistics(k * 5, indices.size());
+    }
 
-                    return o2.getNumberOfOccurrences() - o1.getNumberOfOccurrences();
-                }
-            });
+    /**
+     * Keeps the indices loaded and answers requests until stdin ends, or forever if a port is given.
+     *
+     * @throws Exception if an index cannot be loaded
+     */
+    public void serve() throws Exception {
+        PrintStream output = System.out;
+        // the answers own stdout, progress messages go to stderr
+        if (port == 0) System.setOut(System.err);
 
-            for (DocumentStatistics stats : statistics.subList(0, Math.min(k * 5, statistics.size()))) {
-                System.out.println(String.format("%-40.40s %7d %15.3f %15.3f", stats.getDocument(),
-                        stats.getNumberOfOccurrences(), stats.getAverageRank(), stats.getAverageDistance()));
+        setupIndices();
+
+        ExecutorService executor = createExecutor();
+
+        resultCache = createResultCache();
+
+        try {
+            RetrievalServer retrievalServer = new RetrievalServer(executor, getThreads(), resultCache);
+            retrievalServer.load(indices);
+            System.err.println("loaded " + indices.size() + " indices");
+
+            if (port == 0) {
+                retrievalServer.serve(new InputStreamReader(System.in, "UTF-8"),
+                        new OutputStreamWriter(output, "UTF-8"));
+            } else {
+                retrievalServer.listen(port);
             }
+        } finally {
+            executor.shutdown();
+            if (resultCache != null && cacheFile != null) resultCache.write(cacheFile);
         }
     }
 
-    public void run() throws Exception {
-        if (queryWords) {
-            query();
-            return;
+    /**
+     * Answers the request these options describe with the indices of a server. Without index patterns all indices of
+     * the server are used, otherwise the loaded ones among the matching files.
+     *
+     * @param retrievalServer the server
+     * @return the ranked documents of each index and the statistics of each query document as JSON
+     * @throws Exception if the request is invalid or the scoring failed
+     */
+    String answer(RetrievalServer retrievalServer) throws Exception {
+        if (compile || stream || queryWords || server || graphPrefix != null || metricsFile != null ||
+                fusionMethod != null || shards > 0 || appendFile != null || remove || compact || cacheSize >= 0 ||
+                cacheFile != null)
+            throw new IllegalArgumentException("-c, -s, -q, -r, -g, -f, --shards, --append, --remove, --compact, " +
+                    "--cache, --cache-file and --metrics are not supported in requests");
+        checkSearchStrategy();
+        if (queryDocuments == null || queryDocuments.isEmpty())
+            throw new IllegalArgumentException("Argument \"QUERY\" is required");
+
+        threads = retrievalServer.getThreads();
+        dictionary = retrievalServer.getDictionary();
+        rankAggregator = new RankAggregator(dictionary);
+        // --recall checks the search, so the rankings are not taken from the cache
+        resultCache = recall ? null : retrievalServer.getResultCache();
+        fingerprints = retrievalServer.getFingerprints();
+
+        if (indicesNames == null || indicesNames.isEmpty()) {
+            indices = retrievalServer.getIndexFiles();
+        } else {
+            indices = Lists.newArrayList();
+
+            for (File indexFile : findIndices()) {
+                if (retrievalServer.isLoaded(indexFile)) indices.add(indexFile);
+            }
+
+            if (indices.isEmpty()) throw new IllegalArgumentException("No loaded index matches " + indicesNames);
         }
 
-        setupIndices();
-        printProgramStatus();
+        SimilarityMeasure[] similarityMeasures = getSimilarityMeasures();
+        List<Table<String, String, List<DocumentSimilarity>>> tables = Lists.newArrayList();
+        for (SimilarityMeasure ignored : similarityMeasures) tables.add(HashBasedTable.<String, String,
+                List<DocumentSimilarity>>create());
 
-        // build a table: query / index -> {similarity}
-        Table<String, String, List<DocumentSimilarity>> table = HashBasedTable.create();
+        Map<File, Set<String>> queries = getUncachedQueries(tables);
 
-        for (File indexFile : indices) {
-            ConverterUtils.DataSource source = new ConverterUtils.DataSource(indexFile.getAbsolutePath());
-            Instances indexInstances = source.getDataSet();
+        for (Map.Entry<File, Set<String>> indexQueries : queries.entrySet()) {
+            retrieve(retrievalServer.getExecutor(), retrievalServer.getSearcher(indexQueries.getKey(), this),
+                    indexQueries.getValue(), tables);
+        }
 
-            classAttribute = null;
-            documentAttribute = null;
+        if (resultCache != null) cacheRankings(queries, tables);
 
-            Enumeration attributes = indexInstances.enumerateAttributes();
-            while (attributes.hasMoreElements()) {
-                Attribute attribute = (Attribute) attributes.nextElement();
+        JsonWriter json = new JsonWriter().beginObject();
+        json.name("k").value(k);
 
-                if (classAttribute == null && attribute.name().matches(".*[Cc]lass.*") &&
-                        (attribute.type() == Attribute.STRING || attribute.type() == Attribute.NOMINAL))
-                    classAttribute = attribute;
+        json.name("indices").beginArray();
+        for (File indexFile : indices) json.value(getIndexName(indexFile));
+        json.endArray();
 
-                if (documentAttribute == null && attribute.name().matches(".*[Dd]ocument.*") &&
-                        attribute.type() == Attribute.STRING)
-                    documentAttribute = attribute;
+        json.name("results").beginArray();
 
-                if (documentAttribute != null && classAttribute != null) break;
-            }
+        for (int m = 0; m < similarityMeasures.length; m++) {
+            json.beginObject().name("measure").value(similarityMeasures[m].name()).name("queries");
+            writeQueries(json, tables.get(m));
+            json.endObject();
+        }
+
+        json.endArray();
+
+        if (resultCache != null) {
+            json.name("cache").beginObject().name("hits").value(resultCache.getHits())
+                    .name("misses").value(resultCache.getMisses()).name("rankings").value(resultCache.size())
+                    .name("documents").value(resultCache.getDocuments()).endObject();
+        }
+
+        return json.endObject().toString();
+    }
+
+    /**
+     * Writes the rankings and statistics of every query document as a JSON array.
+     */
+    private void writeQueries(JsonWriter json, Table<String, String, List<DocumentSimilarity>> table) {
+        json.beginArray();
+
+        for (String query : Sets.newLinkedHashSet(queryDocuments)) {
+            Map<String, List<DocumentSimilarity>> indexResults = table.row(query);
+            if (indexResults.isEmpty()) continue;
+
+            json.beginObject().name("query").value(query).name("rankings").beginObject();
+
+            for (File indexFile : indices) {
+                List<DocumentSimilarity> documentSimilarities = indexResults.get(getIndexName(indexFile));
+                if (documentSimilarities == null) continue;
+
+                json.name(getIndexName(indexFile)).beginArray();
 
-            if (classAttribute == null) {
-                System.err.println("No class attribute found for index " + indexFile);
-                System.err.println("Aborting");
-                System.exit(1);
+                for (DocumentSimilarity similarity :
+                        documentSimilarities.subList(0, Math.min(k, documentSimilarities.size()))) {
+                    json.beginObject().name("rank").value(similarity.getRank())
+                            .name("document").value(dictionary.getName(similarity.getTargetDocument()))
+                            .name("distance").value(similarity.getDistance()).endObject();
+                }
+
+                json.endArray();
             }
 
-            if (documentAttribute == null) {
-                System.err.println("No document attribute found for index " + indexFile);
-                System.err.println("Aborting");
-                System.exit(1);
+            json.endObject().name("statistics").beginArray();
+
+            for (DocumentStatistics stats : getStatistics(indexResults)) {
+                json.beginObject().name("document").value(dictionary.getName(stats.getDocument()))
+                        .name("occurrences").value(stats.getNumberOfOccurrences())
+                        .name("averageRank").value(stats.getAverageRank())
+                        .name("averageDistance").value(stats.getAverageDistance()).endObject();
             }
 
-            System.err.println("index " + indexFile.getName());
-            System.err.println("    class: " + classAttribute.name());
-            System.err.println("    document: " + documentAttribute.name());
+            json.endArray().endObject();
+        }
+
+        json.endArray();
+    }
 
-            List<Instance> documentVectors = Lists.newLinkedList();
+    /**
+     * @throws IllegalArgumentException if the indices cannot be searched by one of the measures the way selected
+     */
+    private void checkSearchStrategy() {
+        if (searchStrategy == SearchStrategy.LSH && (hashTables < 1 || hashFunctions < 1 || !(hashWidth > 0)))
+            throw new IllegalArgumentException("--lsh-tables, --lsh-hashes and --lsh-width must be positive");
+        if (searchStrategy == SearchStrategy.LSH && fusionMethod != null)
+            throw new IllegalArgumentException("-f needs complete rankings, which -e LSH does not give");
+        if (quantization != null && searchStrategy != SearchStrategy.SCAN)
+            throw new IllegalArgumentException("--quantize only works with -e SCAN");
+        if (batch < 1)
+            throw new IllegalArgumentException("--batch must be positive");
+        if (shards < 0 || shardTimeout < 1)
+            throw new IllegalArgumentException("--shards must not be negative and --shard-timeout must be positive");
+        if (shards > 0 && (searchStrategy != SearchStrategy.SCAN || quantization != null))
+            throw new IllegalArgumentException("--shards only works with -e SCAN and without --quantize");
+
+        for (SimilarityMeasure similarityMeasure : getSimilarityMeasures()) {
+            if (!searchStrategy.supports(similarityMeasure))
+                throw new IllegalArgumentException("-e " + searchStrategy + " does not support the measure " +
+                        similarityMeasure);
+        }
+    }
 
-            Enumeration instances = indexInstances.enumerateInstances();
-            while (instances.hasMoreElements()) {
-                Instance instance = (Instance) instances.nextElement();
+    /**
+     * Loads the indices and ranks their documents for every query document.
+     *
+     * @param executor the executor to load and score with
+     * @param queries  the query documents to rank by index
+     * @param tables   receive the ranked documents by query and index, one table per measure
+     * @throws Exception if an index cannot be loaded
+     */
+    private void retrieveLoaded(ExecutorService executor, Map<File, Set<String>> queries,
+                                List<Table<String, String, List<DocumentSimilarity>>> tables) throws Exception {
+        // up to one index per thread is loaded while the others are scored
+        Iterator<File> indexFiles = queries.keySet().iterator();
+        Queue<Future<NeighbourSearch>> loadingIndices = Lists.newLinkedList();
+        Queue<Set<String>> loadingQueries = Lists.newLinkedList();
+
+        while (loadingIndices.size() < getThreads() && indexFiles.hasNext()) {
+            File indexFile = indexFiles.next();
+            loadingIndices.add(executor.submit(createIndexLoader(indexFile)));
+            loadingQueries.add(queries.get(indexFile));
+        }
 
-                String document = getInstanceName(instance);
+        while (!loadingIndices.isEmpty()) {
+            NeighbourSearch searcher = getResult(loadingIndices.poll());
+            retrieve(executor, searcher, loadingQueries.poll(), tables);
+            printEvaluations(searcher);
 
-                if (!queryDocuments.contains(document)) continue;
+            metrics.count("evaluations", searcher.getIndex().getName(), searcher.getEvaluations());
+            if (searcher instanceof VantagePointTree)
+                metrics.count("buildEvaluations", searcher.getIndex().getName(),
+                        ((VantagePointTree) searcher).getBuildEvaluations());
 
-                documentVectors.add(instance);
+            if (indexFiles.hasNext()) {
+                File indexFile = indexFiles.next();
+                loadingIndices.add(executor.submit(createIndexLoader(indexFile)));
+                loadingQueries.add(queries.get(indexFile));
             }
+        }
+    }
 
-            similarityMeasure.getDistanceFunction().setInstances(indexInstances);
+    /**
+     * Loads all indices at once and fuses their rankings for every query document, one fusion per measure. The
+     * queries are fused in parallel.
+     *
+     * @param executor     the executor to load the indices and fuse with
+     * @param fusedResults receive the fused ranking by query, one map per measure
+     * @throws Exception if an index cannot be loaded
+     */
+    private void fuse(ExecutorService executor, List<Map<String, RankFusion.Result>> fusedResults)
+            throws Exception {
+        List<Future<SparseIndex>> loadingIndices = Lists.newArrayList();
+
+        for (final File indexFile : indices) {
+            loadingIndices.add(executor.submit(new Callable<SparseIndex>() {
+                @Override
+                public SparseIndex call() throws Exception {
+                    SparseIndex index = loadIndex(indexFile, dictionary, metrics);
+                    metrics.count("documents", index.getName(), index.size());
+                    return index;
+                }
+            }));
+        }
 
-            // calculate distance to all other documents in the index file
-            instances = indexInstances.enumerateInstances();
-            while (instances.hasMoreElements()) {
-                Instance instance = (Instance) instances.nextElement();
-                String instanceName = getInstanceName(instance);
+        List<SparseIndex> loadedIndices = Lists.newArrayList();
+        for (Future<SparseIndex> index : loadingIndices) loadedIndices.add(getResult(index));
 
-                for (Instance queryInstance : documentVectors) {
-                    String queryInstanceName = getInstanceName(queryInstance);
-                    // skip same document
-                    if (instanceName.equals(queryInstanceName))
-                        continue;
+        // the vector of each query in each index, in the order of the command line
+        Map<String, SparseVector[]> queries = Maps.newLinkedHashMap();
+        for (String queryDocument : queryDocuments) queries.put(queryDocument, new SparseVector[indices.size()]);
 
-                    double distance = similarityMeasure.getDistanceFunction().distance(queryInstance, instance);
+        for (int i = 0; i < loadedIndices.size(); i++) {
+            for (Map.Entry<String, SparseVector> query :
+                    getQueryVectors(loadedIndices.get(i), queryDocuments).entrySet())
+                queries.get(query.getKey())[i] = query.getValue();
+        }
 
-                    List<DocumentSimilarity> similarities = table.get(queryInstanceName, indexFile.getName());
+        // the search structures of all measures are built first, as an index may read its values from its compiled
+        // file afterwards
+        SimilarityMeasure[] similarityMeasures = getSimilarityMeasures();
+        List<List<NeighbourSearch>> measureSearchers = Lists.newArrayList();
+        for (SimilarityMeasure ignored : similarityMeasures)
+            measureSearchers.add(Lists.<NeighbourSearch>newArrayList());
 
-                    if (similarities == null) {
-                        similarities = Lists.newArrayList();
-                        table.put(queryInstanceName, indexFile.getName(), similarities);
-                    }
+        for (int i = 0; i < loadedIndices.size(); i++) {
+            SparseIndex index = loadedIndices.get(i);
+            Metrics.Phase phase = metrics.start("searcher", index.getName());
 
-                    DocumentSimilarity documentSimilarity =
-                            new DocumentSimilarity(distance, instanceName, indexFile.getName());
+            for (int m = 0; m < similarityMeasures.length; m++)
+                measureSearchers.get(m).add(createSearcher(index, new SimilarityMeasure[]{similarityMeasures[m]}));
 
-                    similarities.add(documentSimilarity);
-                }
+            if (quantization != null) mapValues(indices.get(i), index);
+            phase.stop();
+        }
+
+        for (int m = 0; m < similarityMeasures.length; m++) {
+            SimilarityMeasure similarityMeasure = similarityMeasures[m];
+            List<NeighbourSearch> searchers = measureSearchers.get(m);
+
+            final RankFusion fusion = new RankFusion(fusionMethod, similarityMeasure, searchers, k);
+            List<Callable<RankFusion.Result>> tasks = Lists.newArrayList();
+
+            for (final Map.Entry<String, SparseVector[]> query : queries.entrySet()) {
+                tasks.add(new Callable<RankFusion.Result>() {
+                    @Override
+                    public RankFusion.Result call() {
+                        Metrics.Phase phase = metrics.start("fuse", "");
+                        RankFusion.Result result = fusion.fuse(dictionary.find(query.getKey()), query.getValue());
+                        phase.stop();
+                        return result;
+                    }
+                });
             }
 
-            for (Map.Entry<String, List<DocumentSimilarity>> stringListEntry : table.column(indexFile.getName())
-                    .entrySet()) {
-                List<DocumentSimilarity> documentSimilarities = stringListEntry.getValue();
-                Collections.sort(documentSimilarities);
+            Iterator<Future<RankFusion.Result>> results = executor.invokeAll(tasks).iterator();
+            Map<String, RankFusion.Result> measureResults = Maps.newLinkedHashMap();
 
-                for (int i = 0, documentSimilaritiesSize = documentSimilarities.size(); i < documentSimilaritiesSize;
-                     i++) {
-                    DocumentSimilarity documentSimilarity = documentSimilarities.get(i);
-                    documentSimilarity.setRank(i + 1);
+            for (String query : queries.keySet()) {
+                RankFusion.Result result = getResult(results.next());
+                measureResults.put(query, result);
+
+                for (int i = 0; i < searchers.size(); i++) {
+                    metrics.count("documentsRead", searchers.get(i).getIndex().getName(),
+                            Math.max(0, result.getDepths()[i]));
+                    metrics.count("evaluations", searchers.get(i).getIndex().getName(), result.getEvaluations()[i]);
                 }
             }
+
+            fusedResults.add(measureResults);
+        }
+    }
+
+    /**
+     * Prints how many distances the search structures that skip documents computed.
+     */
+    private static void printEvaluations(NeighbourSearch searcher) {
+        long comparisons;
+        String build = "";
+
+        if (searcher instanceof VantagePointTree) {
+            VantagePointTree tree = (VantagePointTree) searcher;
+            comparisons = tree.getComparisons();
+            build = ", " + tree.getBuildEvaluations() + " to build the trees";
+        } else if (searcher instanceof LocalitySensitiveHash) {
+            comparisons = ((LocalitySensitiveHash) searcher).getComparisons();
+        } else if (searcher instanceof BatchedScan) {
+            comparisons = ((BatchedScan) searcher).getComparisons();
+        } else if (searcher instanceof QuantizedScan) {
+            QuantizedScan scan = (QuantizedScan) searcher;
+            comparisons = scan.getComparisons();
+            double[] values = searcher.getIndex().getValues();
+            System.err.println(String.format("index %s: the %s values take %.1f MB with the error bounds, the exact " +
+                    "values %s", searcher.getIndex().getName(), scan.getQuantization(), scan.getBytes() / 1e6,
+                    values == null ? "are read from the compiled file" : String.format("%.1f MB", 8.0 * values.length /
+                    1e6)));
+        } else {
+            return;
         }
 
-        for (Map.Entry<String, Map<String, List<DocumentSimilarity>>> queryIndexMap : table.rowMap().entrySet()) {
-            String query = queryIndexMap.getKey();
-            Map<String, List<DocumentSimilarity>> indexResults = queryIndexMap.getValue();
+        long evaluations = searcher.getEvaluations();
+        System.err.println(String.format("index %s: computed %d of %d distances (%.1f%% avoided)%s",
+                searcher.getIndex().getName(), evaluations, comparisons,
+                comparisons == 0 ? 0 : 100.0 * (comparisons - evaluations) / comparisons, build));
+    }
+
+    /**
+     * Prints the share of the k closest documents of a scan the selected search found for the queries of an index.
+     * Documents as close as the k-th one of the scan count as found, as the order of equally close documents is
+     * arbitrary. The share of the ranks holding the same document as in the scan is printed as well.
+     */
+    private void printRecall(SparseIndex index, Map<String, TopK[]> results, Map<String, TopK[]> exactResults) {
+        SimilarityMeasure[] similarityMeasures = getSimilarityMeasures();
 
-            System.out.println("\n\nquery: " + query);
+        for (int m = 0; m < similarityMeasures.length; m++) {
+            long found = 0, expected = 0, agreeing = 0;
 
-            System.out.print("rank ");
-            for (File index : indices) {
-                System.out.print(String.format("%-41.41s ", index.getName()));
+            for (Map.Entry<String, TopK[]> result : results.entrySet()) {
+                TopK topK = result.getValue()[m];
+                TopK exact = exactResults.get(result.getKey())[m];
+                int size = Math.min(k, exact.size());
+                if (size == 0) continue;
+
+                double limit = exact.getDistance(size - 1);
+
+                for (int i = 0; i < Math.min(size, topK.size()); i++) {
+                    if (topK.getDistance(i) <= limit) found++;
+                    if (topK.getDocument(i) == exact.getDocument(i)) agreeing++;
+                }
+
+                expected += size;
             }
 
-            System.out.println();
+            System.err.println(String.format("index %s: recall@%d of %s %.3f (%d of %d documents), %.3f of the " +
+                    "ranks agree", index.getName(), k, similarityMeasures[m],
+                    expected == 0 ? 1 : (double) found / expected, found, expected,
+                    expected == 0 ? 1 : (double) agreeing / expected));
+        }
+    }
 
-            System.out.print("-----+");
-            //noinspection UnusedDeclaration
-            for (File index : indices) {
-                for (int j = 0; j < 41; j++)
-                    System.out.print('-');
-                System.out.print('+');
+    /**
+     * Ranks the documents of an index for query documents.
+     *
+     * @param executor the executor to score with
+     * @param searcher the search structure of the index
+     * @param queries  the names of the query documents
+     * @param tables   receive the ranked documents by query and index, one table per measure
+     * @throws Exception if the scoring failed
+     */
+    private void retrieve(ExecutorService executor, NeighbourSearch searcher, Collection<String> queries,
+                          List<Table<String, String, List<DocumentSimilarity>>> tables) throws Exception {
+        SparseIndex index = searcher.getIndex();
+
+        // calculate distance to all other documents in the index file
+        Map<String, SparseVector> queryVectors = getQueryVectors(index, queries);
+        Map<String, TopK[]> results = retrieve(executor, searcher, queryVectors);
+        metrics.count("queries", index.getName(), queryVectors.size());
+
+        if (recall && !(searcher instanceof LinearScan)) {
+            Metrics.Phase phase = metrics.start("recall", index.getName());
+            Map<String, TopK[]> exactResults = retrieve(executor, new LinearScan(index, getSimilarityMeasures()),
+                    queryVectors);
+            phase.stop();
+
+            printRecall(index, results, exactResults);
+        }
+
+        Metrics.Phase phase = metrics.start("rank", index.getName());
+
+        for (Map.Entry<String, TopK[]> result : results.entrySet()) {
+            for (int m = 0; m < tables.size(); m++) {
+                TopK topK = result.getValue()[m];
+                if (topK.size() > 0) tables.get(m).put(result.getKey(), index.getName(), topK.toSimilarities(index));
             }
-            System.out.println();
+        }
 
-            // document -> similarity
-            Multimap<String, DocumentSimilarity> documentToSimilarity = HashMultimap.create();
+        phase.stop();
+    }
 
-            for (int i = 0; i < k; i++) {
-                System.out.print(String.format("#%3d ", i));
+    /**
+     * Ranks the documents of the indices for every query document while reading the indices, one index per thread.
+     * Compiled indices are loaded, as they are mapped into memory anyway, and so are indices with delta segments, whose
+     * ranges are only known once the segments are applied.
+     *
+     * @param executor the executor to read the indices with
+     * @param queries  the query documents to rank by index
+     * @param tables   receive the ranked documents by query and index, one table per measure
+     * @throws Exception if an index cannot be read
+     */
+    private void retrieveStreaming(ExecutorService executor, final Map<File, Set<String>> queries,
+                                   final List<Table<String, String, List<DocumentSimilarity>>> tables)
+            throws Exception {
+        List<Future<List<Map<String, List<DocumentSimilarity>>>>> results = Lists.newArrayList();
+
+        for (final File indexFile : queries.keySet()) {
+            results.add(executor.submit(new Callable<List<Map<String, List<DocumentSimilarity>>>>() {
+                @Override
+                public List<Map<String, List<DocumentSimilarity>>> call() throws Exception {
+                    if (isStreamed(indexFile)) {
+                        Metrics.Phase phase = metrics.start("stream", indexFile.getName());
+                        StreamingRetrieval retrieval = new StreamingRetrieval(indexFile, indexFile.getName(),
+                                dictionary, getSimilarityMeasures(), getDepth());
+                        List<Map<String, List<DocumentSimilarity>>> similarities =
+                                retrieval.retrieve(queries.get(indexFile));
+                        phase.stop();
+
+                        metrics.count("evaluations", indexFile.getName(), retrieval.getEvaluations());
+                        return similarities;
+                    }
 
-                for (File index : indices) {
-                    List<DocumentSimilarity> documentSimilarities = indexResults.get(index.getName());
+                    List<Table<String, String, List<DocumentSimilarity>>> indexTables = Lists.newArrayList();
+                    List<Map<String, List<DocumentSimilarity>>> similarities = Lists.newArrayList();
 
-                    if (documentSimilarities == null) {
-                        System.err.println("No similarities for index " + index.getName());
-                        for (int j = 0; j < 42; j++) System.out.print(' ');
-                        continue;
+                    for (int m = 0; m < tables.size(); m++) {
+                        indexTables.add(HashBasedTable.<String, String, List<DocumentSimilarity>>create());
+                        similarities.add(indexTables.get(m).column(getIndexName(indexFile)));
                     }
 
-                    for (DocumentSimilarity documentSimilarity : documentSimilarities) {
-                        documentToSimilarity.put(documentSimilarity.getTargetDocument(), documentSimilarity);
+                    NeighbourSearch searcher = createIndexLoader(indexFile).call();
+                    retrieve(MoreExecutors.sameThreadExecutor(), searcher, queries.get(indexFile), indexTables);
+                    metrics.count("evaluations", searcher.getIndex().getName(), searcher.getEvaluations());
+                    return similarities;
+                }
+            }));
+        }
+
+        for (Future<List<Map<String, List<DocumentSimilarity>>>> result : results) {
+            List<Map<String, List<DocumentSimilarity>>> measureSimilarities = getResult(result);
+
+            for (int m = 0; m < tables.size(); m++) {
+                for (Map.Entry<String, List<DocumentSimilarity>> similarities :
+                        measureSimilarities.get(m).entrySet()) {
+                    List<DocumentSimilarity> documentSimilarities = similarities.getValue();
+                    tables.get(m).put(similarities.getKey(), documentSimilarities.get(0).getIndex(),
+                            documentSimilarities);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ranks the documents of the indices for every query document by splitting each index into shards searched by
+     * worker processes, one index after the other. An index that lost shards is removed from the queries, as its
+     * rankings miss their documents and are not to be cached.
+     *
+     * @param queries the query documents to rank by index
+     * @param tables  receive the ranked documents by query and index, one table per measure
+     * @throws Exception if an index cannot be searched by any of its shards
+     */
+    private void retrieveSharded(Map<File, Set<String>> queries,
+                                 List<Table<String, String, List<DocumentSimilarity>>> tables) throws Exception {
+        List<String> workerOptions = Lists.newArrayList();
+        if (shardHeap != null) workerOptions.add("-Xmx" + shardHeap);
+
+        for (Iterator<File> indexFiles = queries.keySet().iterator(); indexFiles.hasNext(); ) {
+            File indexFile = indexFiles.next();
+            String name = getIndexName(indexFile);
+            ShardedSearch search = new ShardedSearch(indexFile, name, shards, 1000L * shardTimeout, workerOptions);
+
+            try {
+                Metrics.Phase phase = metrics.start("shards", name);
+                search.start();
+                phase.stop();
+                metrics.count("documents", name, search.size());
+
+                phase = metrics.start("search", name);
+                Map<String, SparseVector> queryVectors = search.getVectors(queries.get(indexFile));
+                Map<String, TopK[]> results = search.search(queryVectors, getSimilarityMeasures(), getDepth(), batch);
+                phase.stop();
+                metrics.count("queries", name, queryVectors.size());
+
+                phase = metrics.start("rank", name);
+                Map<Integer, Integer> documentIds = search.getDocumentIds(dictionary);
+
+                for (Map.Entry<String, TopK[]> result : results.entrySet()) {
+                    for (int m = 0; m < tables.size(); m++) {
+                        TopK topK = result.getValue()[m];
+                        if (topK.size() > 0)
+                            tables.get(m).put(result.getKey(), name, topK.toSimilarities(name, documentIds));
                     }
+                }
 
-                    DocumentSimilarity similarity = documentSimilarities.get(i);
-                    System.out.print(String.format("%-30.30s %10.6f ", similarity.getTargetDocument(),
-                            similarity.getDistance()));
+                phase.stop();
+                if (!search.isComplete()) indexFiles.remove();
+            } finally {
+                search.close();
+            }
+        }
+    }
+
+    /**
+     * @param index         the index
+     * @param documentNames the names of the query documents
+     * @return the vectors of the query documents found in the index by name
+     */
+    private Map<String, SparseVector> getQueryVectors(SparseIndex index, Collection<String> documentNames) {
+        Map<String, SparseVector> documentVectors = Maps.newLinkedHashMap();
+        Set<String> queries = Sets.newHashSet(documentNames);
+
+        for (int document = 0; document < index.size(); document++) {
+            if (!queries.contains(index.getDocument(document))) continue;
+
+            documentVectors.put(index.getDocument(document), index.vector(document));
+        }
+
+        return documentVectors;
+    }
+
+    /**
+     * @return the result cache of --cache and --cache-file, read from the cache file, null if there is none
+     */
+    private ResultCache createResultCache() {
+        int capacity = cacheSize >= 0 ? cacheSize : cacheFile != null ? ResultCache.DEFAULT_CAPACITY : 0;
+        if (capacity == 0) return null;
+
+        ResultCache cache = new ResultCache(capacity);
+        if (cacheFile != null) cache.read(cacheFile);
+        return cache;
+    }
+
+    /**
+     * Takes the rankings of the query documents from the result cache, if there is one.
+     *
+     * @param tables receive the cached ranked documents by query and index, one table per measure
+     * @return the query documents still to rank by index, without the indices all rankings were cached for
+     * @throws IOException if the fingerprint of an index cannot be computed
+     */
+    private Map<File, Set<String>> getUncachedQueries(List<Table<String, String, List<DocumentSimilarity>>> tables)
+            throws IOException {
+        Map<File, Set<String>> queries = Maps.newLinkedHashMap();
+
+        for (File indexFile : indices) {
+            Set<String> indexQueries = Sets.newLinkedHashSet(queryDocuments);
+
+            if (resultCache != null) {
+                String fingerprint = getFingerprint(indexFile);
+                String options = getResultOptions(indexFile);
+
+                for (Iterator<String> query = indexQueries.iterator(); query.hasNext(); ) {
+                    if (getCachedRankings(fingerprint, options, getIndexName(indexFile), query.next(), tables))
+                        query.remove();
                 }
+            }
+
+            if (!indexQueries.isEmpty()) queries.put(indexFile, indexQueries);
+        }
+
+        return queries;
+    }
+
+    /**
+     * @return whether the rankings of the query document were cached for all measures
+     */
+    private boolean getCachedRankings(String fingerprint, String options, String index, String query,
+                                      List<Table<String, String, List<DocumentSimilarity>>> tables) {
+        SimilarityMeasure[] similarityMeasures = getSimilarityMeasures();
+        List<List<String>> keys = Lists.newArrayList();
+        for (SimilarityMeasure similarityMeasure : similarityMeasures)
+            keys.add(ResultCache.getKey(fingerprint, options, similarityMeasure, query));
+
+        ResultCache.Ranking[] rankings = resultCache.get(keys, getDepth());
+        if (rankings == null) return false;
+
+        for (int m = 0; m < similarityMeasures.length; m++) {
+            if (rankings[m].size() > 0) tables.get(m).put(query, index, rankings[m].toSimilarities(index, dictionary));
+        }
+
+        return true;
+    }
 
-                System.out.println();
+    /**
+     * Adds the rankings of the query documents to the result cache, an empty one for an index without the query
+     * document.
+     *
+     * @param queries the query documents ranked by index
+     * @param tables  the ranked documents by query and index, one table per measure
+     * @throws IOException if the fingerprint of an index cannot be computed
+     */
+    private void cacheRankings(Map<File, Set<String>> queries,
+                               List<Table<String, String, List<DocumentSimilarity>>> tables) throws IOException {
+        SimilarityMeasure[] similarityMeasures = getSimilarityMeasures();
+
+        for (Map.Entry<File, Set<String>> indexQueries : queries.entrySet()) {
+            String fingerprint = getFingerprint(indexQueries.getKey());
+            String options = getResultOptions(indexQueries.getKey());
+            String index = getIndexName(indexQueries.getKey());
+
+            for (String query : indexQueries.getValue()) {
+                for (int m = 0; m < similarityMeasures.length; m++) {
+                    List<DocumentSimilarity> similarities = tables.get(m).get(query, index);
+                    if (similarities == null) similarities = Collections.emptyList();
+
+                    resultCache.put(ResultCache.getKey(fingerprint, options, similarityMeasures[m], query),
+                            new ResultCache.Ranking(getDepth(), similarities, dictionary));
+                }
             }
+        }
+    }
 
-            System.out.println(String.format("\n%-40.40s %-7.7s %-15.15s %-15.15s", "document", "#occur", "avg rank",
-                    "avg dist"));
-            List<DocumentStatistics> statistics = Lists.newArrayList();
+    private void printCacheStatistics() {
+        System.err.println(String.format("result cache: %d hits, %d misses, %d rankings of %d documents kept",
+                resultCache.getHits(), resultCache.getMisses(), resultCache.size(), resultCache.getDocuments()));
+        metrics.count("cacheHits", "", resultCache.getHits());
+        metrics.count("cacheMisses", "", resultCache.getMisses());
+    }
 
-            for (String document : documentToSimilarity.keySet()) {
-                Collection<DocumentSimilarity> documentSimilarities = documentToSimilarity.get(document);
-                DocumentStatistics stats = new DocumentStatistics(document);
+    /**
+     * @param indexFile an index
+     * @return the fingerprint of the index, computed on first use
+     * @throws IOException if the index cannot be read
+     */
+    private String getFingerprint(File indexFile) throws IOException {
+        String fingerprint = fingerprints.get(indexFile.getAbsoluteFile());
+
+        if (fingerprint == null) {
+            Metrics.Phase phase = metrics.start("fingerprint", getIndexName(indexFile));
+            fingerprint = ResultCache.fingerprint(indexFile);
+            phase.stop();
+            fingerprints.put(indexFile.getAbsoluteFile(), fingerprint);
+        }
+
+        return fingerprint;
+    }
+
+    /**
+     * @param indexFile an index
+     * @return the options the rankings of the index depend on besides the index and the measure: every search gives
+     *         the ranking of a scan, except the approximate LSH, which is not used for streamed indices
+     */
+    private String getResultOptions(File indexFile) {
+        if (searchStrategy == SearchStrategy.LSH && !(stream && isStreamed(indexFile)))
+            return Joiner.on(' ').join(searchStrategy, hashTables, hashFunctions, hashWidth);
+
+        return SearchStrategy.SCAN.name();
+    }
 
-                for (DocumentSimilarity documentSimilarity : documentSimilarities)
-                    stats.addState(documentSimilarity.getRank(), documentSimilarity.getDistance());
+    /**
+     * @param indexFile an index
+     * @return whether -s scores the index while reading it, which it does for ARFF indices without delta segments
+     */
+    private static boolean isStreamed(File indexFile) {
+        return !indexFile.getName().endsWith(IndexFile.EXTENSION) && SegmentFile.getSegmentFiles(indexFile).isEmpty();
+    }
 
-                statistics.add(stats);
+    /**
+     * Loads an index, detects its class and document attributes and sets up the search structure for it.
+     *
+     * @param indexFile the index file
+     * @return a task loading the index
+     */
+    private Callable<NeighbourSearch> createIndexLoader(final File indexFile) {
+        return new Callable<NeighbourSearch>() {
+            @Override
+            public NeighbourSearch call() throws Exception {
+                SparseIndex index = loadIndex(indexFile, dictionary, metrics);
+                metrics.count("documents", index.getName(), index.size());
+
+                Metrics.Phase phase = metrics.start("searcher", index.getName());
+                NeighbourSearch searcher = createSearcher(index);
+                if (quantization != null) mapValues(indexFile, index);
+                phase.stop();
+
+                return searcher;
             }
+        };
+    }
 
-            Collections.sort(statistics, new Comparator<DocumentStatistics>() {
-                @Override
-                public int compare(DocumentStatistics o1, DocumentStatistics o2) {
-                    int result = Double.compare(o1.getAverageRank(), o2.getAverageRank());
+    /**
+     * With --quantize only the quantized values are scanned, so once the search structures exist the index reads its
+     * exact values from its compiled file to rank the candidates again instead of holding them on the heap. An index
+     * without up-to-date compiled file or with delta segments keeps them.
+     *
+     * @param indexFile the file the index was loaded from
+     * @param index     the index
+     * @throws IOException if the compiled file cannot be mapped
+     */
+    private static void mapValues(File indexFile, SparseIndex index) throws IOException {
+        if (!SegmentFile.getSegmentFiles(indexFile).isEmpty()) return;
+
+        if (indexFile.getName().endsWith(IndexFile.EXTENSION)) {
+            index.mapValues(IndexFile.mapValues(indexFile));
+        } else if (IndexFile.isCompiled(indexFile)) {
+            index.mapValues(IndexFile.mapValues(IndexFile.getCompiledFile(indexFile)));
+        }
+    }
+
+    /**
+     * @param index the index
+     * @return the search structure selected with -e for the index
+     */
+    NeighbourSearch createSearcher(SparseIndex index) {
+        return createSearcher(index, getSimilarityMeasures());
+    }
+
+    /**
+     * @param index              the index
+     * @param similarityMeasures the measures to rank by
+     * @return the search structure selected with -e for the index
+     */
+    private NeighbourSearch createSearcher(SparseIndex index, SimilarityMeasure[] similarityMeasures) {
+        if (searchStrategy == SearchStrategy.LSH)
+            return new LocalitySensitiveHash(index, similarityMeasures, hashTables, hashFunctions, hashWidth);
+        if (quantization != null)
+            return new QuantizedScan(index, similarityMeasures, quantization);
+        // with every document collected, all would be ranked again after the block pass
+        if (searchStrategy == SearchStrategy.SCAN && batch > 1 && getDepth() < index.size())
+            return new BatchedScan(index, similarityMeasures);
+
+        return searchStrategy.create(index, similarityMeasures);
+    }
+
+    /**
+     * @return the options the search structures created by {@link #createSearcher(SparseIndex)} depend on
+     */
+    List<Object> getSearcherOptions() {
+        List<Object> options = Lists.<Object>newArrayList(Arrays.asList(getSimilarityMeasures()), searchStrategy);
+        if (searchStrategy == SearchStrategy.LSH) options.addAll(Arrays.asList(hashTables, hashFunctions, hashWidth));
+        if (quantization != null) options.add(quantization);
+        if (searchStrategy == SearchStrategy.SCAN && quantization == null) options.add(batch > 1);
+        return options;
+    }
 
-                    if (result != 0.0) return result;
+    /**
+     * Loads an index from its compiled form if there is an up-to-date one, otherwise from the ARFF file.
+     *
+     * @param indexFile the index file
+     * @return the index
+     * @throws Exception if the index cannot be loaded
+     */
+    static SparseIndex loadIndex(File indexFile) throws Exception {
+        return loadIndex(indexFile, new DocumentDictionary(), new Metrics());
+    }
+
+    /**
+     * @param indexFile  the index file
+     * @param dictionary assigns the ids of the document names, shared by the indices of a run
+     * @param metrics    receive the phases of loading the index
+     * @return the index
+     * @throws Exception if the index cannot be loaded
+     * @see #loadIndex(File)
+     */
+    static SparseIndex loadIndex(File indexFile, DocumentDictionary dictionary, Metrics metrics) throws Exception {
+        String name = getIndexName(indexFile);
+        SparseIndex.Builder builder;
+
+        if (indexFile.getName().endsWith(IndexFile.EXTENSION) || IndexFile.isCompiled(indexFile)) {
+            Metrics.Phase phase = metrics.start("map", name);
+            builder = IndexFile.read(indexFile.getName().endsWith(IndexFile.EXTENSION) ? indexFile :
+                    IndexFile.getCompiledFile(indexFile), name);
+            phase.stop();
+        } else {
+            builder = readArff(indexFile, metrics);
+        }
+
+        if (!SegmentFile.getSegmentFiles(indexFile).isEmpty()) {
+            Metrics.Phase phase = metrics.start("segments", name);
+            builder = SegmentFile.apply(indexFile, builder);
+            phase.stop();
+        }
+
+        Metrics.Phase phase = metrics.start("build", name);
+        SparseIndex index = builder.build(dictionary);
+        phase.stop();
+
+        return index;
+    }
+
+    /**
+     * @param indexFile an ARFF or compiled index file
+     * @return the name of the index, which is the name of the ARFF file
+     */
+    static String getIndexName(File indexFile) {
+        return indexFile.getName().endsWith(IndexFile.EXTENSION) ? IndexFile.getIndexName(indexFile) :
+                indexFile.getName();
+    }
+
+    /**
+     * Writes the compiled form of every selected ARFF index next to it.
+     *
+     * @throws Exception if an index cannot be read or written
+     */
+    public void compile() throws Exception {
+        setupIndices();
+
+        for (File indexFile : indices) {
+            if (indexFile.getName().endsWith(IndexFile.EXTENSION)) continue;
+
+            File compiledFile = IndexFile.getCompiledFile(indexFile);
+            SparseIndex.Builder builder = readArff(indexFile, metrics);
+
+            Metrics.Phase phase = metrics.start("write", indexFile.getName());
+            IndexFile.write(builder, compiledFile);
+            phase.stop();
+
+            System.out.println("compiled " + indexFile + " to " + compiledFile);
+        }
+    }
+
+    /**
+     * Writes a delta segment with the documents of --append and the removals of --remove next to each selected index,
+     * and merges the segments of an index with --compact or when it has more than {@link SegmentFile#MAX_SEGMENTS}.
+     *
+     * @throws Exception if an index or a segment cannot be read or written
+     */
+    public void update() throws Exception {
+        setupIndices();
 
-                    result = Double.compare(o1.getAverageDistance(), o2.getAverageDistance());
+        if (appendFile != null && indices.size() != 1) {
+            System.err.println("--append needs exactly one index, selected with -i");
+            System.exit(1);
+        }
+
+        for (File indexFile : indices) {
+            if (appendFile != null || remove) {
+                SparseIndex.Builder rows = SegmentFile.readHeader(indexFile);
+
+                if (appendFile != null) {
+                    SparseIndex.Builder index = rows;
+                    ArffReader reader = ArffReader.open(appendFile);
 
-                    if (result != 0.0) return result;
+                    try {
+                        rows = reader.readRows(appendFile.getName());
+                    } finally {
+                        reader.close();
+                    }
 
-                    return o2.getNumberOfOccurrences() - o1.getNumberOfOccurrences();
+                    SegmentFile.checkAttributes(index, rows);
                 }
-            });
 
-            for (DocumentStatistics stats : statistics.subList(0, Math.min(k * 5, statistics.size()))) {
-                System.out.println(String.format("%-40.40s %7d %15.3f %15.3f", stats.getDocument(),
-                        stats.getNumberOfOccurrences(), stats.getAverageRank(), stats.getAverageDistance()));
+                List<String> removed = remove ? queryDocuments : Collections.<String>emptyList();
+                File segmentFile = SegmentFile.append(indexFile, rows, removed);
+                System.out.println("wrote " + segmentFile + " adding " + rows.size() + " and removing " +
+                        removed.size() + " documents");
+            }
+
+            if (compact || SegmentFile.getSegmentFiles(indexFile).size() > SegmentFile.MAX_SEGMENTS) {
+                int merged = SegmentFile.compact(indexFile);
+                if (merged > 0) System.out.println("merged " + merged + " segments of " + indexFile);
             }
+        }
+    }
 
-            for (DocumentStatistics stats : statistics.subList(Math.min(k * 5, statistics.size()), statistics.size())) {
-                if (stats.getNumberOfOccurrences() < indices.size()) {
-                    System.out.println(String.format("%-40.40s %7d %15.3f %15.3f", stats.getDocument(),
-                            stats.getNumberOfOccurrences(), stats.getAverageRank(), stats.getAverageDistance()));
+    /**
+     * Writes the k nearest neighbour graph of every selected index for each measure.
+     *
+     * @throws Exception if an index cannot be read or a graph cannot be written
+     */
+    public void writeGraphs() throws Exception {
+        setupIndices();
+
+        SimilarityMeasure[] similarityMeasures = getSimilarityMeasures();
+        ExecutorService executor = createExecutor();
+
+        try {
+            for (File indexFile : indices) {
+                SparseIndex index = loadIndex(indexFile, dictionary, metrics);
+                metrics.count("documents", index.getName(), index.size());
+
+                Metrics.Phase phase = metrics.start("graph", index.getName());
+                KnnGraph graph = new KnnGraph(index, similarityMeasures, k);
+                graph.compute(executor);
+                phase.stop();
+
+                metrics.count("evaluations", index.getName(), graph.getEvaluations());
+
+                for (int m = 0; m < similarityMeasures.length; m++) {
+                    File graphFile = new File(graphPrefix + "_" + index.getName() + "_" + similarityMeasures[m] +
+                            KnnGraph.EXTENSION);
+                    phase = metrics.start("write", index.getName());
+                    graph.write(m, graphFile);
+                    phase.stop();
+
+                    System.out.println("wrote " + graphFile);
                 }
             }
+        } finally {
+            executor.shutdown();
         }
     }
 
-    private void trimMatchesToSizeK(Multimap<String, DocumentSimilarity> similarities) {
-        for (String queryDocument : queryDocuments) {
-            Collection<DocumentSimilarity> similarityCollection = similarities.get(queryDocument);
+    /**
+     * Reads an ARFF index with weka and detects its class and document attributes. The ranges are taken from the
+     * statistics sidecar of the index, which is written if it is missing or stale.
+     *
+     * @param indexFile the index file
+     * @return the rows of the index
+     * @throws Exception if the index cannot be read
+     */
+    static SparseIndex.Builder readArff(File indexFile) throws Exception {
+        return readArff(indexFile, new Metrics());
+    }
 
-            if (similarityCollection.size() <= k) return;
+    /**
+     * @param indexFile the index file
+     * @param metrics   receive the phases of reading the index
+     * @return the rows of the index
+     * @throws Exception if the index cannot be read
+     * @see #readArff(File)
+     */
+    static SparseIndex.Builder readArff(File indexFile, Metrics metrics) throws Exception {
+        Metrics.Phase phase = metrics.start("parse", indexFile.getName());
+        // weka parses the file while it is read and decompressed ahead on another thread
+        InputStream input = PrefetchingInputStream.open(indexFile);
+        Instances indexInstances;
 
-            List<DocumentSimilarity> similarityList = Lists.newArrayList(similarityCollection);
+        try {
+            indexInstances = new ConverterUtils.DataSource(input).getDataSet();
+        } finally {
+            input.close();
+        }
+
+        phase.stop();
+
+        Attribute classAttribute = null;
+        Attribute documentAttribute = null;
+
+        Enumeration attributes = indexInstances.enumerateAttributes();
+        while (attributes.hasMoreElements()) {
+            Attribute attribute = (Attribute) attributes.nextElement();
+
+            if (classAttribute == null && attribute.name().matches(".*[Cc]lass.*") &&
+                    (attribute.type() == Attribute.STRING || attribute.type() == Attribute.NOMINAL))
+                classAttribute = attribute;
+
+            if (documentAttribute == null && attribute.name().matches(".*[Dd]ocument.*") &&
+                    attribute.type() == Attribute.STRING)
+                documentAttribute = attribute;
+
+            if (documentAttribute != null && classAttribute != null) break;
+        }
+
+        if (classAttribute == null) {
+            System.err.println("No class attribute found for index " + indexFile);
+            System.err.println("Aborting");
+            System.exit(1);
+        }
+
+        if (documentAttribute == null) {
+            System.err.println("No document attribute found for index " + indexFile);
+            System.err.println("Aborting");
+            System.exit(1);
+        }
+
+        System.err.println("index " + indexFile.getName() + "\n" +
+                "    class: " + classAttribute.name() + "\n" +
+                "    document: " + documentAttribute.name());
+
+        phase = metrics.start("convert", indexFile.getName());
+        SparseIndex.Builder builder = toBuilder(indexFile.getName(), indexInstances,
+                getInstanceNames(indexInstances, classAttribute, documentAttribute));
+        phase.stop();
+
+        phase = metrics.start("ranges", indexFile.getName());
+        AttributeStatistics statistics = StatisticsFile.read(indexFile, builder.getKinds());
+
+        if (statistics == null || statistics.getNumDocuments() != builder.size()) {
+            statistics = builder.computeStatistics();
+            StatisticsFile.save(indexFile, statistics);
+        }
+
+        phase.stop();
+        return builder.setRanges(statistics.getRanges());
+    }
+
+    private static SparseIndex.Builder toBuilder(String name, Instances instances, String[] documents) {
+        int numAttributes = instances.numAttributes();
+        String[] attributeNames = new String[numAttributes];
+        byte[] kinds = new byte[numAttributes];
+        List<String[]> nominalLabels = Lists.newArrayList();
+
+        for (int i = 0; i < numAttributes; i++) {
+            Attribute attribute = instances.attribute(i);
+            attributeNames[i] = attribute.name();
+
+            if (i == instances.classIndex()) {
+                kinds[i] = SparseIndex.IGNORED;
+            } else if (attribute.type() == Attribute.NUMERIC) {
+                kinds[i] = SparseIndex.NUMERIC;
+            } else if (attribute.type() == Attribute.NOMINAL) {
+                kinds[i] = SparseIndex.NOMINAL;
+
+                String[] labels = new String[attribute.numValues()];
+                for (int j = 0; j < labels.length; j++) labels[j] = attribute.value(j);
+                nominalLabels.add(labels);
+            } else {
+                kinds[i] = SparseIndex.IGNORED;
+            }
+        }
+
+        SparseIndex.Builder builder = new SparseIndex.Builder(name, attributeNames, kinds,
+                nominalLabels.toArray(new String[nominalLabels.size()][]));
+        int[] rowAttributes = new int[numAttributes];
+        double[] rowValues = new double[numAttributes];
+
+        for (int i = 0; i < instances.numInstances(); i++) {
+            int size = toRow(instances.instance(i), rowAttributes, rowValues);
+            builder.addDocument(documents[i], rowAttributes, rowValues, size);
+        }
+
+        return builder;
+    }
+
+    private static int toRow(Instance instance, int[] rowAttributes, double[] rowValues) {
+        for (int p = 0; p < instance.numValues(); p++) {
+            rowAttributes[p] = instance.index(p);
+            rowValues[p] = instance.valueSparse(p);
+        }
+
+        return instance.numValues();
+    }
 
-            Collections.sort(similarityList, new Comparator<DocumentSimilarity>() {
-                public int compare(DocumentSimilarity s1, DocumentSimilarity s2) {
-                    return Double.compare(s1.getDistance(), s2.getDistance());
+    /**
+     * Collects the documents of the index closest to each query. The documents of the index are split into one chunk
+     * per thread, the chunks are merged in a fixed order so the ranking does not depend on the number of threads. A
+     * {@link BatchedScan} compares blocks of {@code --batch} queries to a chunk at once.
+     *
+     * @param executor the executor to score the chunks with
+     * @param searcher the search structure of the index
+     * @param queries  the vectors of the queries by name, a document with the same name as the query is skipped
+     * @return the best {@link #getDepth()} documents of each query, one collector per measure
+     * @throws Exception if the scoring failed
+     */
+    private Map<String, TopK[]> retrieve(ExecutorService executor, NeighbourSearch searcher,
+                                         Map<String, SparseVector> queries) throws Exception {
+        SparseIndex index = searcher.getIndex();
+        int numMeasures = getSimilarityMeasures().length;
+        int chunks = Math.max(1, Math.min(getThreads(), index.size()));
+        int chunkSize = (index.size() + chunks - 1) / chunks;
+        int blockSize = searcher instanceof BatchedScan ? batch : 1;
+        List<String> queryNames = Lists.newArrayList(queries.keySet());
+        List<Callable<TopK[][]>> tasks = Lists.newArrayList();
+
+        for (int first = 0; first < queryNames.size(); first += blockSize) {
+            int size = Math.min(blockSize, queryNames.size() - first);
+            SparseVector[] blockQueries = new SparseVector[size];
+            int[] queryIds = new int[size];
+
+            for (int q = 0; q < size; q++) {
+                blockQueries[q] = queries.get(queryNames.get(first + q));
+                queryIds[q] = index.getDictionary().find(queryNames.get(first + q));
+            }
+
+            for (int from = 0; from < index.size(); from += chunkSize)
+                tasks.add(createRetrievalTask(searcher, queryIds, blockQueries, from,
+                        Math.min(from + chunkSize, index.size())));
+        }
+
+        Iterator<Future<TopK[][]>> chunkResults = executor.invokeAll(tasks).iterator();
+        Map<String, TopK[]> results = Maps.newLinkedHashMap();
+
+        for (int first = 0; first < queryNames.size(); first += blockSize) {
+            TopK[][] topKs = new TopK[Math.min(blockSize, queryNames.size() - first)][numMeasures];
+
+            for (TopK[] queryTopKs : topKs) {
+                for (int m = 0; m < numMeasures; m++) queryTopKs[m] = new TopK(Math.min(getDepth(), index.size()));
+            }
+
+            for (int from = 0; from < index.size(); from += chunkSize) {
+                TopK[][] chunkTopKs = getResult(chunkResults.next());
+
+                for (int q = 0; q < topKs.length; q++) {
+                    for (int m = 0; m < numMeasures; m++) topKs[q][m].addAll(chunkTopKs[q][m]);
                 }
-            });
+            }
 
-            similarities.replaceValues(queryDocument, similarityList.subList(0, Math.min(k, similarityList.size())));
+            for (int q = 0; q < topKs.length; q++) results.put(queryNames.get(first + q), topKs[q]);
         }
+
+        return results;
     }
 
-    private String getInstanceName(Instance instance) {
+    /**
+     * Collects the best {@link #getDepth()} documents of a range of the index closest to each query of a block for
+     * each measure.
+     */
+    private Callable<TopK[][]> createRetrievalTask(final NeighbourSearch searcher, final int[] queryIds,
+                                                   final SparseVector[] queries, final int from, final int to) {
+        return new Callable<TopK[][]>() {
+            @Override
+            public TopK[][] call() {
+                Metrics.Phase phase = metrics.start("search", searcher.getIndex().getName());
+                TopK[][] topKs = new TopK[queries.length][getSimilarityMeasures().length];
+
+                for (TopK[] queryTopKs : topKs) {
+                    for (int m = 0; m < queryTopKs.length; m++)
+                        queryTopKs[m] = new TopK(Math.min(getDepth(), to - from));
+                }
+
+                if (queries.length == 1) {
+                    searcher.search(queries[0], queryIds[0], from, to, topKs[0]);
+                } else {
+                    ((BatchedScan) searcher).search(queries, queryIds, from, to, topKs);
+                }
+
+                phase.stop();
+                return topKs;
+            }
+        };
+    }
+
+    static <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    private ExecutorService createExecutor() {
+        return getThreads() == 1 ? MoreExecutors.sameThreadExecutor() : Executors.newFixedThreadPool(getThreads());
+    }
+
+    /**
+     * @return the measures to rank by, L1 if none are given
+     */
+    private SimilarityMeasure[] getSimilarityMeasures() {
+        if (similarityMeasures == null || similarityMeasures.isEmpty())
+            return new SimilarityMeasure[]{SimilarityMeasure.L1};
+
+        Set<SimilarityMeasure> measures = Sets.newLinkedHashSet(similarityMeasures);
+        return measures.toArray(new SimilarityMeasure[measures.size()]);
+    }
+
+    /**
+     * @return the number of threads used for loading and scoring
+     */
+    private int getThreads() {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the number of documents kept per query and index
+     */
+    private int getDepth() {
+        if (depth < 0) return Math.max(k, k * 5);
+        if (depth == 0) return Integer.MAX_VALUE;
+
+        return Math.max(k, depth);
+    }
+
+    private static String getInstanceName(Instance instance, Attribute classAttribute, Attribute documentAttribute) {
         return instance.toString(classAttribute) + "/" + instance.toString(documentAttribute);
     }
 
-    private void setupIndices() {
+    private static String[] getInstanceNames(Instances instances, Attribute classAttribute,
+                                             Attribute documentAttribute) {
+        String[] names = new String[instances.numInstances()];
+
+        for (int i = 0; i < names.length; i++)
+            names[i] = getInstanceName(instances.instance(i), classAttribute, documentAttribute);
+
+        return names;
+    }
+
+    /**
+     * @return the dictionary the indices of the run are loaded with
+     */
+    DocumentDictionary getDictionary() {
+        return dictionary;
+    }
+
+    void setupIndices() {
+        indices = findIndices();
+
+        if (indices.size() == 0) {
+            System.err.println("No .arff or " + IndexFile.EXTENSION +
+                    " files found in current directory, or no .arff files specified");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the index files matching the index patterns, all indices of the working directory if there are none
+     */
+    private List<File> findIndices() {
         String workingDirectory = System.getProperty("user.dir");
         File file = new File(workingDirectory);
+        List<File> indices;
 
         if (indicesNames == null || indicesNames.size() == 0) {
             indices = Arrays.asList(file.listFiles(new FilenameFilter() {
                 public boolean accept(File dir, String name) {
+                    if (name.endsWith(IndexFile.EXTENSION))
+                        return !IndexFile.getSourceFile(new File(dir, name)).isFile();
+
                     return name.endsWith(".arff") || name.endsWith(".arff.gz");
                 }
             }));
@@ -501,30 +1682,36 @@ public class Retrieval {
                 directoryScanner.scan();
                 String[] fileNames = directoryScanner.getIncludedFiles();
 
+                Set<String> includedFiles = Sets.newHashSet(fileNames);
+
                 for (String fileName : fileNames) {
-                    if (!fileName.endsWith(".arff") && !fileName.endsWith(".arrf.gz")) continue;
+                    // a compiled index is used in place of its ARFF index
+                    if (fileName.endsWith(IndexFile.EXTENSION)) {
+                        if (!includedFiles.contains(IndexFile.getSourceFile(new File(fileName)).getPath()))
+                            indices.add(new File(fileName));
+                        continue;
+                    }
+
+                    if (!fileName.endsWith(".arff") && !fileName.endsWith(".arff.gz")) continue;
 
                     indices.add(new File(fileName));
                 }
             }
         }
 
-        if (indices.size() == 0) {
-            System.err.println("No .arff files found in current directory, or no .arff files specified");
-            System.exit(1);
-        }
+        return indices;
     }
 
-    private void printProgramStatus() {
-        System.out.println(String.format("k                 : %d", k));
-        System.out.println(String.format("Similarity Measure: %s", similarityMeasure));
-        System.out.println("Used inidices:");
+    private void printProgramStatus(PrintStream out, SimilarityMeasure[] similarityMeasures) {
+        out.println(String.format("k                 : %d", k));
+        out.println(String.format("Similarity Measure: %s", Joiner.on(", ").join(similarityMeasures)));
+        out.println("Used inidices:");
         for (File indexFile : indices) {
-            System.out.println("\t" + indexFile.getName());
+            out.println("\t" + indexFile.getName());
         }
-        System.out.println("Document query:");
+        out.println("Document query:");
         for (String queryDocument : queryDocuments) {
-            System.out.println("\t" + queryDocument);
+            out.println("\t" + queryDocument);
         }
     }
 
@@ -535,6 +1722,47 @@ public class Retrieval {
 
         try {
             parser.parseArgument(args);
+
+            if (!retrieval.compile && !retrieval.server && retrieval.graphPrefix == null &&
+                    ((retrieval.appendFile == null && !retrieval.compact) || retrieval.remove) &&
+                    (retrieval.queryDocuments == null || retrieval.queryDocuments.isEmpty()))
+                throw new CmdLineException(parser, "Argument \"QUERY\" is required");
+
+            if (retrieval.weighted && !retrieval.queryWords)
+                throw new CmdLineException(parser, "--weighted can only be used with -q");
+
+            if (retrieval.metricsFile != null && (retrieval.server || retrieval.queryWords))
+                throw new CmdLineException(parser, "--metrics cannot be used with -r or -q");
+
+            if (retrieval.fusionMethod != null && (retrieval.stream || retrieval.compile || retrieval.server ||
+                    retrieval.queryWords || retrieval.graphPrefix != null))
+                throw new CmdLineException(parser, "-f cannot be used with -s, -c, -r, -q or -g");
+
+            if ((retrieval.appendFile != null || retrieval.remove || retrieval.compact) && (retrieval.stream ||
+                    retrieval.compile || retrieval.server || retrieval.queryWords || retrieval.graphPrefix != null ||
+                    retrieval.fusionMethod != null || retrieval.shards > 0))
+                throw new CmdLineException(parser, "--append, --remove and --compact cannot be used with " +
+                        "-s, -c, -r, -q, -g, -f or --shards");
+
+            if (retrieval.appendFile != null && retrieval.appendFile.getName().endsWith(IndexFile.EXTENSION))
+                throw new CmdLineException(parser, "--append needs an ARFF file");
+
+            if ((retrieval.cacheSize >= 0 || retrieval.cacheFile != null) && (retrieval.compile ||
+                    retrieval.queryWords || retrieval.graphPrefix != null || retrieval.fusionMethod != null ||
+                    retrieval.recall || retrieval.appendFile != null || retrieval.remove || retrieval.compact))
+                throw new CmdLineException(parser, "--cache and --cache-file cannot be used with " +
+                        "-c, -q, -g, -f, --recall, --append, --remove or --compact");
+
+            if (retrieval.shards > 0 && (retrieval.stream || retrieval.compile || retrieval.server ||
+                    retrieval.queryWords || retrieval.graphPrefix != null || retrieval.fusionMethod != null ||
+                    retrieval.recall))
+                throw new CmdLineException(parser, "--shards cannot be used with -s, -c, -r, -q, -g, -f or --recall");
+
+            try {
+                retrieval.checkSearchStrategy();
+            } catch (IllegalArgumentException e) {
+                throw new CmdLineException(parser, e.getMessage());
+            }
         } catch (CmdLineException e) {
             System.err.println(e.getMessage());
             System.err.println("java Retrieval [options...] arguments...");
@@ -545,6 +1773,7 @@ public class Retrieval {
         }
 
         retrieval.run();
+        if (retrieval.metricsFile != null) retrieval.metrics.write(new File(retrieval.metricsFile));
     }
 
 }
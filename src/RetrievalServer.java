@@ -0,0 +1,206 @@
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps indices loaded and answers retrieval requests on them. Every request is one line holding the options and
+ * query documents of a {@link Retrieval} command line, the answer is one line of JSON with the ranking of each index
+ * and the statistics of each query document. The requests share the result cache of the server, if it has one, whose
+ * rankings are keyed by the fingerprints of the indices as they were loaded.
+ */
+public class RetrievalServer {
+    private final ExecutorService executor;
+    private final int threads;
+    private final DocumentDictionary dictionary = new DocumentDictionary();
+    private final Map<File, SparseIndex> indices = Maps.newLinkedHashMap();
+    private final ResultCache resultCache;
+    private final Map<File, String> fingerprints = Maps.newHashMap();
+    // search structures by index file, measures and strategy
+    private final Map<List<Object>, NeighbourSearch> searchers = Maps.newHashMap();
+
+    /**
+     * @param executor    the executor to load and score with
+     * @param threads     the number of threads of the executor
+     * @param resultCache the rankings cached for the requests, null to score every request
+     */
+    public RetrievalServer(ExecutorService executor, int threads, ResultCache resultCache) {
+        this.executor = executor;
+        this.threads = threads;
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Loads the indices, one per thread at a time, with one dictionary for all of them.
+     *
+     * @param indexFiles the index files
+     * @throws Exception if an index cannot be loaded
+     */
+    public void load(List<File> indexFiles) throws Exception {
+        List<Future<SparseIndex>> loadedIndices = Lists.newArrayList();
+        List<Future<String>> indexFingerprints = Lists.newArrayList();
+
+        for (final File indexFile : indexFiles) {
+            if (resultCache != null) {
+                indexFingerprints.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return ResultCache.fingerprint(indexFile);
+                    }
+                }));
+            }
+
+            loadedIndices.add(executor.submit(new Callable<SparseIndex>() {
+                @Override
+                public SparseIndex call() throws Exception {
+                    return Retrieval.loadIndex(indexFile, dictionary, new Metrics());
+                }
+            }));
+        }
+
+        for (int i = 0; i < indexFiles.size(); i++) {
+            indices.put(indexFiles.get(i).getAbsoluteFile(), Retrieval.getResult(loadedIndices.get(i)));
+            if (resultCache != null)
+                fingerprints.put(indexFiles.get(i).getAbsoluteFile(), Retrieval.getResult(indexFingerprints.get(i)));
+        }
+    }
+
+    public List<File> getIndexFiles() {
+        return Lists.newArrayList(indices.keySet());
+    }
+
+    public boolean isLoaded(File indexFile) {
+        return indices.containsKey(indexFile.getAbsoluteFile());
+    }
+
+    public DocumentDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @return the fingerprints of the loaded indices by absolute file, if the server has a result cache
+     */
+    public Map<File, String> getFingerprints() {
+        return fingerprints;
+    }
+
+    /**
+     * @param indexFile a loaded index
+     * @param request   the request selecting the measures and the way to search the index
+     * @return the search structure, created on first use
+     */
+    public synchronized NeighbourSearch getSearcher(File indexFile, Retrieval request) {
+        List<Object> key = Arrays.<Object>asList(indexFile.getAbsoluteFile(), request.getSearcherOptions());
+        NeighbourSearch searcher = searchers.get(key);
+
+        if (searcher == null) {
+            searcher = request.createSearcher(indices.get(indexFile.getAbsoluteFile()));
+            searchers.put(key, searcher);
+        }
+
+        return searcher;
+    }
+
+    /**
+     * Answers requests until the input ends.
+     *
+     * @param input  the requests, one per line
+     * @param output receives the answers, one per line
+     * @throws IOException if reading or writing fails
+     */
+    public void serve(Reader input, Writer output) throws IOException {
+        BufferedReader reader = new BufferedReader(input);
+        PrintWriter writer = new PrintWriter(output);
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            if (CharMatcher.WHITESPACE.matchesAllOf(line)) continue;
+
+            writer.println(answer(line));
+            writer.flush();
+        }
+    }
+
+    /**
+     * Answers the requests of every connection to the port of the local host, one thread per connection.
+     *
+     * @param port the port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    public void listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        System.err.println("listening on " + serverSocket.getLocalSocketAddress());
+
+        while (true) {
+            final Socket socket = serverSocket.accept();
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(new InputStreamReader(socket.getInputStream(), "UTF-8"),
+                                new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                    } catch (IOException e) {
+                        System.err.println("connection " + socket.getRemoteSocketAddress() + " failed: " + e);
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }, "connection " + socket.getRemoteSocketAddress()).start();
+        }
+    }
+
+    /**
+     * @param line a request
+     * @return the answer as JSON, an object with an "error" member if the request failed
+     */
+    private String answer(String line) {
+        Retrieval request = new Retrieval();
+        CmdLineParser parser = new CmdLineParser(request);
+
+        try {
+            parser.parseArgument(Iterables.toArray(
+                    Splitter.on(CharMatcher.WHITESPACE).omitEmptyStrings().split(line), String.class));
+            return request.answer(this);
+        } catch (CmdLineException e) {
+            return error(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(e.getMessage());
+        } catch (Exception e) {
+            return error(e.toString());
+        }
+    }
+
+    private static String error(String message) {
+        return new JsonWriter().beginObject().name("error").value(message).endObject().toString();
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * The ways an index can be searched, all but LSH giving the same ranking.
+ */
+public enum SearchStrategy {
+    /**
+     * compares the query to every document
+     */
+    SCAN {
+        @Override
+        public NeighbourSearch create(SparseIndex index, SimilarityMeasure[] similarityMeasures) {
+            return new LinearScan(index, similarityMeasures);
+        }
+    },
+    /**
+     * visits only the postings of the attributes of the query
+     */
+    INVERTED {
+        @Override
+        public NeighbourSearch create(SparseIndex index, SimilarityMeasure[] similarityMeasures) {
+            return new InvertedIndex(index, similarityMeasures);
+        }
+    },
+    /**
+     * prunes documents by the triangle inequality, only for measures that are metrics
+     */
+    VPTREE {
+        @Override
+        public NeighbourSearch create(SparseIndex index, SimilarityMeasure[] similarityMeasures) {
+            return new VantagePointTree(index, similarityMeasures);
+        }
+
+        @Override
+        public boolean supports(SimilarityMeasure similarityMeasure) {
+            return similarityMeasure.isMetric();
+        }
+    },
+    /**
+     * only ranks the documents sharing a hash bucket with the query, which may miss some of the closest documents
+     */
+    LSH {
+        @Override
+        public NeighbourSearch create(SparseIndex index, SimilarityMeasure[] similarityMeasures) {
+            return new LocalitySensitiveHash(index, similarityMeasures, LocalitySensitiveHash.DEFAULT_TABLES,
+                    LocalitySensitiveHash.DEFAULT_HASHES, LocalitySensitiveHash.DEFAULT_WIDTH);
+        }
+    };
+
+    /**
+     * @param index              the index
+     * @param similarityMeasures the measures to rank by
+     * @return the search structure for the index
+     */
+    public abstract NeighbourSearch create(SparseIndex index, SimilarityMeasure[] similarityMeasures);
+
+    /**
+     * @param similarityMeasure a measure
+     * @return if indices can be searched by the measure this way
+     */
+    public boolean supports(SimilarityMeasure similarityMeasure) {
+        return true;
+    }
+}
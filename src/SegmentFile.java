@@ -0,0 +1,314 @@
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The delta segments of an index: append-only files next to it holding documents added to the index and the names of
+ * documents removed from it, so an index can grow without being regenerated. The segments of {@code news.arff} are
+ * {@code news.arff.1.delta}, {@code news.arff.2.delta} and so on, applied in this order on top of the index (or its
+ * compiled form) when it is loaded: the documents a segment removes, or adds again, are dropped from the documents so
+ * far, and the documents it adds are appended. The ranges are then computed from the raw values of the remaining
+ * documents, so the index is the same as one regenerated with the changes.
+ * <p/>
+ * Layout (big-endian): the magic number and version, the number of attributes, the number of removed names and the
+ * names, the number of documents, values and nominal attributes, the document names, and the offsets, attributes, raw
+ * values and nominal values of the rows like in an {@link IndexFile}. Strings are written with
+ * {@link DataOutput#writeUTF(String)}.
+ */
+public class SegmentFile {
+    public static final String EXTENSION = ".delta";
+    // appending to an index with more segments merges them
+    public static final int MAX_SEGMENTS = 8;
+
+    private static final int MAGIC = 0x53444C54;
+    private static final int VERSION = 1;
+
+    private SegmentFile() {
+    }
+
+    /**
+     * @param indexFile an ARFF or compiled index
+     * @return the segments of the index in the order they were written
+     */
+    public static List<File> getSegmentFiles(File indexFile) {
+        final String prefix = getSourceFile(indexFile).getName() + ".";
+        File[] files = getSourceFile(indexFile).getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return getNumber(name, prefix) >= 0;
+            }
+        });
+
+        if (files == null) return Lists.newArrayList();
+
+        List<File> segmentFiles = Lists.newArrayList(files);
+        Collections.sort(segmentFiles, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return getNumber(first.getName(), prefix) - getNumber(second.getName(), prefix);
+            }
+        });
+
+        return segmentFiles;
+    }
+
+    /**
+     * Writes a new segment of an index.
+     *
+     * @param indexFile an ARFF or compiled index
+     * @param rows      the documents to add, over the attributes of the index
+     * @param removed   the names of the documents to remove
+     * @return the segment
+     * @throws IOException if the segment cannot be written
+     */
+    public static File append(File indexFile, SparseIndex.Builder rows, Collection<String> removed)
+            throws IOException {
+        List<File> segmentFiles = getSegmentFiles(indexFile);
+        String prefix = getSourceFile(indexFile).getName() + ".";
+        int number = segmentFiles.isEmpty() ? 1 :
+                getNumber(segmentFiles.get(segmentFiles.size() - 1).getName(), prefix) + 1;
+
+        File segmentFile = new File(getSourceFile(indexFile).getAbsoluteFile().getParentFile(),
+                prefix + number + EXTENSION);
+        write(segmentFile, rows, removed);
+        return segmentFile;
+    }
+
+    /**
+     * Applies the segments of an index to its rows.
+     *
+     * @param indexFile an ARFF or compiled index
+     * @param builder   the rows of the index
+     * @return the builder, with the ranges of the remaining documents if the index has segments
+     * @throws IOException if a segment cannot be read
+     */
+    public static SparseIndex.Builder apply(File indexFile, SparseIndex.Builder builder) throws IOException {
+        List<File> segmentFiles = getSegmentFiles(indexFile);
+        if (segmentFiles.isEmpty()) return builder;
+
+        for (File segmentFile : segmentFiles) {
+            Set<String> removed = Sets.newHashSet();
+            SparseIndex.Builder rows = read(segmentFile, builder, removed);
+
+            // a document added again replaces the one added before
+            removed.addAll(rows.getDocuments());
+            builder.removeDocuments(removed);
+            for (int document = 0; document < rows.size(); document++) builder.addDocument(rows, document);
+        }
+
+        return builder.setRanges(builder.computeStatistics().getRanges());
+    }
+
+    /**
+     * Merges the segments of an index. A compiled index without ARFF file is written again with its segments applied,
+     * as it is the only copy of the index. The segments of an ARFF index are merged into one, as the ARFF file is not
+     * written by this program: the documents added and removed again are dropped.
+     *
+     * @param indexFile an ARFF or compiled index
+     * @return the number of segments that were merged
+     * @throws IOException if a segment or the index cannot be read or written
+     */
+    public static int compact(File indexFile) throws IOException {
+        List<File> segmentFiles = getSegmentFiles(indexFile);
+        File directory = indexFile.getAbsoluteFile().getParentFile();
+
+        if (indexFile.getName().endsWith(IndexFile.EXTENSION) && !getSourceFile(indexFile).isFile()) {
+            if (segmentFiles.isEmpty()) return 0;
+
+            SparseIndex.Builder builder = apply(indexFile,
+                    IndexFile.read(indexFile, IndexFile.getIndexName(indexFile)));
+            File temporaryFile = File.createTempFile(indexFile.getName(), ".tmp", directory);
+
+            try {
+                IndexFile.write(builder, temporaryFile);
+            } catch (IOException e) {
+                temporaryFile.delete();
+                throw e;
+            }
+
+            if (!temporaryFile.renameTo(indexFile)) {
+                temporaryFile.delete();
+                throw new IOException("cannot rename " + temporaryFile);
+            }
+
+            for (File segmentFile : segmentFiles) segmentFile.delete();
+            return segmentFiles.size();
+        }
+
+        if (segmentFiles.size() < 2) return 0;
+
+        SparseIndex.Builder rows = readHeader(indexFile);
+        Set<String> removed = Sets.newLinkedHashSet();
+
+        for (File segmentFile : segmentFiles) {
+            Set<String> segmentRemoved = Sets.newHashSet();
+            SparseIndex.Builder segmentRows = read(segmentFile, rows, segmentRemoved);
+
+            segmentRemoved.addAll(segmentRows.getDocuments());
+            rows.removeDocuments(segmentRemoved);
+            removed.addAll(segmentRemoved);
+            for (int document = 0; document < segmentRows.size(); document++) rows.addDocument(segmentRows, document);
+        }
+
+        // the merged segment replaces the last one first: it removes every document the others add and adds the
+        // remaining ones again, so the index stays the same if the others are not deleted after it
+        write(segmentFiles.get(segmentFiles.size() - 1), rows, removed);
+        for (File segmentFile : segmentFiles.subList(0, segmentFiles.size() - 1)) segmentFile.delete();
+
+        return segmentFiles.size();
+    }
+
+    /**
+     * @param indexFile an ARFF or compiled index
+     * @return a builder over the attributes of the index without documents
+     * @throws IOException if the index cannot be read
+     */
+    public static SparseIndex.Builder readHeader(File indexFile) throws IOException {
+        File sourceFile = getSourceFile(indexFile);
+
+        if (!sourceFile.isFile()) {
+            SparseIndex.Builder index = IndexFile.read(indexFile, IndexFile.getIndexName(indexFile));
+            return new SparseIndex.Builder(index.getName(), index.getAttributeNames(), index.getKinds(),
+                    index.getNominalLabels());
+        }
+
+        ArffReader reader = ArffReader.open(sourceFile);
+
+        try {
+            return reader.createBuilder(sourceFile.getName());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param index the rows of an index
+     * @param rows  rows to add to the index
+     * @throws IOException if the rows have other attributes than the index
+     */
+    public static void checkAttributes(SparseIndex.Builder index, SparseIndex.Builder rows) throws IOException {
+        if (!Arrays.equals(index.getAttributeNames(), rows.getAttributeNames()) ||
+                !Arrays.equals(index.getKinds(), rows.getKinds()) ||
+                !Arrays.deepEquals(index.getNominalLabels(), rows.getNominalLabels()))
+            throw new IOException("The attributes of " + rows.getName() + " differ from those of index " +
+                    index.getName());
+    }
+
+    /**
+     * Writes to a temporary file first, so a segment is never read partially.
+     */
+    private static void write(File segmentFile, SparseIndex.Builder rows, Collection<String> removed)
+            throws IOException {
+        File temporaryFile = File.createTempFile(segmentFile.getName(), ".tmp", segmentFile.getParentFile());
+        DataOutputStream output =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 1 << 16));
+
+        try {
+            int numDocuments = rows.size();
+            int numNominal = rows.getNominalLabels().length;
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(rows.getKinds().length);
+
+            output.writeInt(removed.size());
+            for (String document : removed) output.writeUTF(document);
+
+            output.writeInt(numDocuments);
+            output.writeInt(rows.getNumValues());
+            output.writeInt(numNominal);
+            for (String document : rows.getDocuments()) output.writeUTF(document);
+
+            int[] offsets = rows.getOffsets();
+            for (int i = 0; i <= numDocuments; i++) output.writeInt(offsets[i]);
+
+            int[] attributes = rows.getAttributes();
+            for (int i = 0; i < rows.getNumValues(); i++) output.writeInt(attributes[i]);
+
+            double[] values = rows.getValues();
+            for (int i = 0; i < rows.getNumValues(); i++) output.writeDouble(values[i]);
+
+            int[] nominals = rows.getNominals();
+            for (int i = 0; i < numDocuments * numNominal; i++) output.writeInt(nominals[i]);
+        } finally {
+            output.close();
+        }
+
+        if (!temporaryFile.renameTo(segmentFile)) {
+            temporaryFile.delete();
+            throw new IOException("cannot rename " + temporaryFile);
+        }
+    }
+
+    /**
+     * @param segmentFile a segment
+     * @param index       a builder over the attributes of the index of the segment
+     * @param removed     receives the names of the documents the segment removes
+     * @return the documents the segment adds
+     * @throws IOException if the segment cannot be read or does not belong to the index
+     */
+    private static SparseIndex.Builder read(File segmentFile, SparseIndex.Builder index, Set<String> removed)
+            throws IOException {
+        DataInputStream input =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile), 1 << 16));
+
+        try {
+            if (input.readInt() != MAGIC) throw new IOException(segmentFile + " is no delta segment");
+            if (input.readInt() != VERSION) throw new IOException(segmentFile + " has an unsupported version");
+            if (input.readInt() != index.getKinds().length)
+                throw new IOException(segmentFile + " does not match the attributes of index " + index.getName());
+
+            for (int i = input.readInt(); i > 0; i--) removed.add(input.readUTF());
+
+            int numDocuments = input.readInt();
+            int numValues = input.readInt();
+            int numNominal = input.readInt();
+
+            if (numNominal != index.getNominalLabels().length)
+                throw new IOException(segmentFile + " does not match the attributes of index " + index.getName());
+
+            String[] documents = new String[numDocuments];
+            for (int i = 0; i < numDocuments; i++) documents[i] = input.readUTF();
+
+            int[] offsets = new int[numDocuments + 1];
+            for (int i = 0; i < offsets.length; i++) offsets[i] = input.readInt();
+
+            int[] attributes = new int[numValues];
+            for (int i = 0; i < numValues; i++) attributes[i] = input.readInt();
+
+            double[] values = new double[numValues];
+            for (int i = 0; i < numValues; i++) values[i] = input.readDouble();
+
+            int[] nominals = new int[numDocuments * numNominal];
+            for (int i = 0; i < nominals.length; i++) nominals[i] = input.readInt();
+
+            return new SparseIndex.Builder(index.getName(), index.getAttributeNames(), index.getKinds(),
+                    index.getNominalLabels()).setRows(offsets, attributes, values, nominals, documents);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return the ARFF file an index is read from, or would be compiled from
+     */
+    private static File getSourceFile(File indexFile) {
+        return indexFile.getName().endsWith(IndexFile.EXTENSION) ? IndexFile.getSourceFile(indexFile) : indexFile;
+    }
+
+    /**
+     * @return the number of the segment with the file name, -1 if it is no segment of the index with the prefix
+     */
+    private static int getNumber(String name, String prefix) {
+        if (!name.startsWith(prefix) || !name.endsWith(EXTENSION)) return -1;
+
+        String number = name.substring(prefix.length(), name.length() - EXTENSION.length());
+        return number.matches("\\d{1,9}") ? Integer.parseInt(number) : -1;
+    }
+}
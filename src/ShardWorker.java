@@ -0,0 +1,325 @@
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A worker process holding one shard of an index: a contiguous range of its documents, normalized with the ranges of
+ * the whole index so the distances are the same as in a single process. It is started by a {@link ShardedSearch},
+ * prints the port it listens on and the number of documents of the shard as one line to stdout, answers the requests
+ * of one connection and exits when the connection or its stdin is closed.
+ * <p/>
+ * The protocol is binary (big-endian), each request starting with its type:
+ * <ul>
+ * <li>{@link #VECTORS}: the number of names and the names. The answer is the number of documents of the shard with
+ * one of the names, and for each its name and vector, in the order of the shard.</li>
+ * <li>{@link #SEARCH}: the measures, the depth, the batch size, and the number of queries with the name and vector of
+ * each. The answer is for each query and measure the number of documents collected, and for each in ranked order its
+ * position in the shard, its distance and its name. A document with the name of the query is skipped.</li>
+ * </ul>
+ * Strings are written with {@link DataOutput#writeUTF(String)}, a vector as its attributes, values and nominal values,
+ * each an array preceded by its length. An error is answered with {@link #ERROR} and its message instead.
+ */
+public class ShardWorker {
+    public static final byte VECTORS = 1;
+    public static final byte SEARCH = 2;
+    public static final byte OK = 0;
+    public static final byte ERROR = -1;
+
+    private final SparseIndex index;
+    // search structures by measures
+    private final Map<List<SimilarityMeasure>, BatchedScan> searchers = Maps.newHashMap();
+
+    public ShardWorker(SparseIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @param numDocuments the number of documents of the index
+     * @param shard        a shard, the number of shards for the end of the last one
+     * @param numShards    the number of shards
+     * @return the position of the first document of the shard in the index
+     */
+    public static int getFirstDocument(int numDocuments, int shard, int numShards) {
+        return (int) ((long) shard * numDocuments / numShards);
+    }
+
+    /**
+     * Reads the rows of a shard of an index, from its compiled form if there is an up-to-date one. The ranges are
+     * those of the whole index, for an ARFF index they are taken from its {@link StatisticsFile}, which is written
+     * first if it is missing. An index with delta segments is read completely, as its ranges are only known once the
+     * segments are applied.
+     *
+     * @param indexFile an ARFF (optionally gzip compressed) or compiled index
+     * @param shard     the shard
+     * @param numShards the number of shards
+     * @return the rows of the shard
+     * @throws IOException if the index cannot be read
+     */
+    public static SparseIndex.Builder readShard(File indexFile, int shard, int numShards) throws IOException {
+        String name = Retrieval.getIndexName(indexFile);
+
+        if (!SegmentFile.getSegmentFiles(indexFile).isEmpty()) {
+            SparseIndex.Builder rows;
+
+            if (indexFile.getName().endsWith(IndexFile.EXTENSION) || IndexFile.isCompiled(indexFile)) {
+                rows = IndexFile.read(indexFile.getName().endsWith(IndexFile.EXTENSION) ? indexFile :
+                        IndexFile.getCompiledFile(indexFile), name);
+            } else {
+                ArffReader reader = ArffReader.open(indexFile);
+
+                try {
+                    rows = reader.readRows(name);
+                } finally {
+                    reader.close();
+                }
+            }
+
+            rows = SegmentFile.apply(indexFile, rows);
+            SparseIndex.Builder builder = new SparseIndex.Builder(name, rows.getAttributeNames(), rows.getKinds(),
+                    rows.getNominalLabels());
+            int end = getFirstDocument(rows.size(), shard + 1, numShards);
+
+            for (int document = getFirstDocument(rows.size(), shard, numShards); document < end; document++)
+                builder.addDocument(rows, document);
+
+            return builder.setRanges(rows.getRanges());
+        }
+
+        if (indexFile.getName().endsWith(IndexFile.EXTENSION) || IndexFile.isCompiled(indexFile)) {
+            return IndexFile.read(indexFile.getName().endsWith(IndexFile.EXTENSION) ? indexFile :
+                    IndexFile.getCompiledFile(indexFile), name, shard, numShards);
+        }
+
+        ArffReader reader = ArffReader.open(indexFile);
+
+        try {
+            int classAttribute = reader.findClassAttribute();
+            int documentAttribute = reader.findDocumentAttribute();
+
+            if (classAttribute < 0) throw new IOException("No class attribute found for index " + indexFile);
+            if (documentAttribute < 0) throw new IOException("No document attribute found for index " + indexFile);
+
+            SparseIndex.Builder builder = reader.createBuilder(name);
+            AttributeStatistics statistics = StatisticsFile.read(indexFile, builder.getKinds());
+            int[] rowAttributes = new int[reader.numAttributes()];
+            double[] rowValues = new double[reader.numAttributes()];
+            int size;
+
+            if (statistics == null) {
+                statistics = new AttributeStatistics(builder.getKinds());
+                while ((size = reader.readRow(rowAttributes, rowValues)) >= 0)
+                    statistics.addRow(rowAttributes, rowValues, size);
+
+                StatisticsFile.save(indexFile, statistics);
+                reader.close();
+                reader = ArffReader.open(indexFile);
+            }
+
+            int first = getFirstDocument(statistics.getNumDocuments(), shard, numShards);
+            int end = getFirstDocument(statistics.getNumDocuments(), shard + 1, numShards);
+
+            for (int document = 0; document < end && (size = reader.readRow(rowAttributes, rowValues)) >= 0;
+                 document++) {
+                if (document >= first)
+                    builder.addDocument(reader.getDocumentName(classAttribute, documentAttribute), rowAttributes,
+                            rowValues, size);
+            }
+
+            return builder.setRanges(statistics.getRanges());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Answers the requests of a connection until it is closed.
+     *
+     * @param input  the requests
+     * @param output receives the answers
+     * @throws IOException if reading or writing fails
+     */
+    public void serve(DataInputStream input, DataOutputStream output) throws IOException {
+        while (true) {
+            int type = input.read();
+            if (type < 0) return;
+
+            try {
+                if (type == VECTORS) {
+                    answerVectors(input, output);
+                } else if (type == SEARCH) {
+                    answerSearch(input, output);
+                } else {
+                    throw new IOException("Unknown request " + type);
+                }
+            } catch (RuntimeException e) {
+                output.writeByte(ERROR);
+                output.writeUTF(e.toString());
+            }
+
+            output.flush();
+        }
+    }
+
+    private void answerVectors(DataInputStream input, DataOutputStream output) throws IOException {
+        List<String> names = Lists.newArrayList();
+        for (int i = input.readInt(); i > 0; i--) names.add(input.readUTF());
+
+        List<Integer> documents = Lists.newArrayList();
+
+        for (int document = 0; document < index.size(); document++) {
+            if (names.contains(index.getDocument(document))) documents.add(document);
+        }
+
+        output.writeByte(OK);
+        output.writeInt(documents.size());
+
+        for (int document : documents) {
+            output.writeUTF(index.getDocument(document));
+            writeVector(output, index.vector(document));
+        }
+    }
+
+    private void answerSearch(DataInputStream input, DataOutputStream output) throws IOException {
+        SimilarityMeasure[] similarityMeasures = new SimilarityMeasure[input.readInt()];
+        for (int m = 0; m < similarityMeasures.length; m++)
+            similarityMeasures[m] = SimilarityMeasure.valueOf(input.readUTF());
+
+        int depth = input.readInt();
+        int batch = input.readInt();
+        SparseVector[] queries = new SparseVector[input.readInt()];
+        int[] queryIds = new int[queries.length];
+
+        for (int q = 0; q < queries.length; q++) {
+            queryIds[q] = index.getDictionary().find(input.readUTF());
+            queries[q] = readVector(input);
+        }
+
+        BatchedScan searcher = getSearcher(similarityMeasures);
+        TopK[][] topKs = new TopK[queries.length][similarityMeasures.length];
+
+        for (TopK[] queryTopKs : topKs) {
+            for (int m = 0; m < queryTopKs.length; m++) queryTopKs[m] = new TopK(Math.min(depth, index.size()));
+        }
+
+        for (int first = 0; first < queries.length; first += batch) {
+            int size = Math.min(batch, queries.length - first);
+
+            if (size == 1) {
+                searcher.search(queries[first], queryIds[first], 0, index.size(), topKs[first]);
+                continue;
+            }
+
+            SparseVector[] blockQueries = new SparseVector[size];
+            int[] blockIds = new int[size];
+            TopK[][] blockTopKs = new TopK[size][];
+            System.arraycopy(queries, first, blockQueries, 0, size);
+            System.arraycopy(queryIds, first, blockIds, 0, size);
+            System.arraycopy(topKs, first, blockTopKs, 0, size);
+
+            searcher.search(blockQueries, blockIds, 0, index.size(), blockTopKs);
+        }
+
+        output.writeByte(OK);
+
+        for (TopK[] queryTopKs : topKs) {
+            for (TopK topK : queryTopKs) {
+                topK.sort();
+                output.writeInt(topK.size());
+
+                for (int i = 0; i < topK.size(); i++) {
+                    output.writeInt(topK.getDocument(i));
+                    output.writeDouble(topK.getDistance(i));
+                    output.writeUTF(index.getDocument(topK.getDocument(i)));
+                }
+            }
+        }
+    }
+
+    private synchronized BatchedScan getSearcher(SimilarityMeasure[] similarityMeasures) {
+        List<SimilarityMeasure> key = Lists.newArrayList(similarityMeasures);
+        BatchedScan searcher = searchers.get(key);
+
+        if (searcher == null) {
+            searcher = new BatchedScan(index, similarityMeasures);
+            searchers.put(key, searcher);
+        }
+
+        return searcher;
+    }
+
+    static void writeVector(DataOutputStream output, SparseVector vector) throws IOException {
+        output.writeInt(vector.size());
+        for (int attribute : vector.getAttributes()) output.writeInt(attribute);
+        for (double value : vector.getValues()) output.writeDouble(value);
+
+        output.writeInt(vector.getNominals().length);
+        for (int nominal : vector.getNominals()) output.writeInt(nominal);
+    }
+
+    static SparseVector readVector(DataInputStream input) throws IOException {
+        int[] attributes = new int[input.readInt()];
+        double[] values = new double[attributes.length];
+        for (int p = 0; p < attributes.length; p++) attributes[p] = input.readInt();
+        for (int p = 0; p < values.length; p++) values[p] = input.readDouble();
+
+        int[] nominals = new int[input.readInt()];
+        for (int i = 0; i < nominals.length; i++) nominals[i] = input.readInt();
+
+        return new SparseVector(attributes, values, nominals);
+    }
+
+    /**
+     * Loads a shard and answers the requests of one connection to an ephemeral port of the local host.
+     *
+     * @param args the index file, the shard and the number of shards
+     * @throws Exception if the shard cannot be loaded or the connection fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("java ShardWorker INDEX SHARD SHARDS");
+            System.exit(1);
+        }
+
+        SparseIndex index = readShard(new File(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]))
+                .build();
+        ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName(null));
+
+        // the worker ends with the process that started it, which holds its stdin
+        Thread watchdog = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (System.in.read() >= 0) {
+                        // nothing is sent on stdin
+                    }
+                } catch (IOException ignored) {
+                }
+
+                System.exit(0);
+            }
+        }, "stdin");
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        System.out.println(serverSocket.getLocalPort() + " " + index.size());
+        System.out.flush();
+
+        Socket socket = serverSocket.accept();
+        serverSocket.close();
+
+        try {
+            new ShardWorker(index).serve(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                    new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+        } finally {
+            socket.close();
+        }
+
+        System.exit(0);
+    }
+}
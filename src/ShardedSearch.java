@@ -0,0 +1,395 @@
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Searches an index split into shards of consecutive documents, each held by a {@link ShardWorker} process on the
+ * local host. Every request is sent to all shards at once and their answers are merged: a document is numbered by
+ * its position in its shard plus the documents of the shards before it, which is its position in the index, so the
+ * merged collectors break ties like those of a single process and give the same ranking.
+ * <p/>
+ * A shard that fails, or does not answer within the timeout, is stopped and left out of the following requests with
+ * a warning on stderr, so the results miss its documents instead of the search failing.
+ */
+public class ShardedSearch {
+    private final File indexFile;
+    private final String name;
+    private final long timeout;
+    private final List<String> workerOptions;
+    private final List<Shard> shards = Lists.newArrayList();
+    private final ExecutorService executor;
+    // the names of the documents of the results not yet numbered by getDocumentIds, by position in the index
+    private final Map<Integer, String> documentNames = Maps.newHashMap();
+    private int numDocuments;
+
+    /**
+     * @param indexFile     the index, ARFF (optionally gzip compressed) or compiled
+     * @param name          the name of the index
+     * @param numShards     the number of shards and worker processes
+     * @param timeout       the milliseconds a worker may take to load its shard or answer a request
+     * @param workerOptions the options of the JVMs of the workers, e.g. their maximum heap
+     */
+    public ShardedSearch(File indexFile, String name, int numShards, long timeout, List<String> workerOptions) {
+        this.indexFile = indexFile;
+        this.name = name;
+        this.timeout = timeout;
+        this.workerOptions = workerOptions;
+
+        for (int shard = 0; shard < numShards; shard++) shards.add(new Shard(shard));
+        // a thread blocked on a hung worker must not keep the JVM alive
+        executor = Executors.newFixedThreadPool(numShards, new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("shard %d").build());
+    }
+
+    /**
+     * Starts the workers and waits until they have loaded their shards.
+     *
+     * @throws IOException if no shard could be loaded
+     */
+    public void start() throws IOException {
+        List<Callable<Void>> tasks = Lists.newArrayList();
+
+        for (final Shard shard : shards) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    shard.start();
+                    return null;
+                }
+            });
+        }
+
+        scatter(tasks);
+
+        for (Shard shard : shards) {
+            shard.first = numDocuments;
+            numDocuments += shard.size;
+        }
+
+        if (getLiveShards().isEmpty()) throw new IOException("No shard of index " + name + " could be loaded");
+    }
+
+    /**
+     * @param documents the names of documents
+     * @return the vectors of the documents found in the index by name, in the order of the index
+     * @throws IOException if all shards failed
+     */
+    public Map<String, SparseVector> getVectors(final Collection<String> documents) throws IOException {
+        List<Callable<Map<String, SparseVector>>> tasks = Lists.newArrayList();
+
+        for (final Shard shard : getLiveShards()) {
+            tasks.add(new Callable<Map<String, SparseVector>>() {
+                @Override
+                public Map<String, SparseVector> call() throws IOException {
+                    return shard.getVectors(documents);
+                }
+            });
+        }
+
+        Map<String, SparseVector> vectors = Maps.newLinkedHashMap();
+        for (Map<String, SparseVector> shardVectors : scatter(tasks)) vectors.putAll(shardVectors);
+        return vectors;
+    }
+
+    /**
+     * @param queries            the vectors of the queries by name, a document with the same name as the query is
+     *                           skipped
+     * @param similarityMeasures the measures to rank by
+     * @param depth              the number of documents to keep per query and measure
+     * @param batch              the number of queries a worker compares to its documents together
+     * @return the best documents of each query, one collector per measure, see {@link #getDocumentIds}
+     * @throws IOException if all shards failed
+     */
+    public Map<String, TopK[]> search(final Map<String, SparseVector> queries,
+                                      final SimilarityMeasure[] similarityMeasures, final int depth, final int batch)
+            throws IOException {
+        List<Shard> liveShards = getLiveShards();
+        List<Callable<TopK[][]>> tasks = Lists.newArrayList();
+        // the names of all documents the shards sent, most of them drop out of the merged collectors
+        final Map<Integer, String> names = Maps.newHashMap();
+
+        for (final Shard shard : liveShards) {
+            tasks.add(new Callable<TopK[][]>() {
+                @Override
+                public TopK[][] call() throws IOException {
+                    return shard.search(queries, similarityMeasures, depth, batch, names);
+                }
+            });
+        }
+
+        List<TopK[][]> shardResults = scatter(tasks);
+        int size = 0;
+        for (Shard shard : getLiveShards()) size += shard.size;
+
+        Map<String, TopK[]> results = Maps.newLinkedHashMap();
+        int q = 0;
+
+        for (String query : queries.keySet()) {
+            TopK[] topKs = new TopK[similarityMeasures.length];
+
+            for (int m = 0; m < topKs.length; m++) {
+                topKs[m] = new TopK(Math.min(depth, size));
+                for (TopK[][] shardTopKs : shardResults) topKs[m].addAll(shardTopKs[q][m]);
+
+                synchronized (documentNames) {
+                    for (int i = 0; i < topKs[m].size(); i++) {
+                        int document = topKs[m].getDocument(i);
+                        documentNames.put(document, names.get(document));
+                    }
+                }
+            }
+
+            results.put(query, topKs);
+            q++;
+        }
+
+        return results;
+    }
+
+    /**
+     * Numbers the documents of the results since the last call, whose names are not kept afterwards.
+     *
+     * @param dictionary assigns the ids of the document names
+     * @return the ids of the documents of the results by position in the index
+     */
+    public Map<Integer, Integer> getDocumentIds(DocumentDictionary dictionary) {
+        Map<Integer, Integer> documentIds = Maps.newHashMap();
+
+        synchronized (documentNames) {
+            for (Map.Entry<Integer, String> document : documentNames.entrySet())
+                documentIds.put(document.getKey(), dictionary.getId(document.getValue()));
+            documentNames.clear();
+        }
+
+        return documentIds;
+    }
+
+    /**
+     * @return the number of documents of the shards that were loaded
+     */
+    public int size() {
+        return numDocuments;
+    }
+
+    /**
+     * @return whether no shard failed so far
+     */
+    public boolean isComplete() {
+        return getLiveShards().size() == shards.size();
+    }
+
+    /**
+     * Stops the workers.
+     */
+    public void close() {
+        for (Shard shard : shards) shard.stop();
+        executor.shutdownNow();
+    }
+
+    private List<Shard> getLiveShards() {
+        List<Shard> liveShards = Lists.newArrayList();
+
+        for (Shard shard : shards) {
+            if (!shard.failed) liveShards.add(shard);
+        }
+
+        return liveShards;
+    }
+
+    /**
+     * Runs one task per live shard and waits for each until the timeout.
+     *
+     * @param tasks the tasks in the order of the live shards
+     * @return the results of the shards that did not fail, in the same order
+     * @throws IOException if all shards failed
+     */
+    private <T> List<T> scatter(List<Callable<T>> tasks) throws IOException {
+        List<Shard> liveShards = getLiveShards();
+        List<Future<T>> futures = Lists.newArrayList();
+        for (Callable<T> task : tasks) futures.add(executor.submit(task));
+
+        long deadline = System.currentTimeMillis() + timeout;
+        List<T> results = Lists.newArrayList();
+
+        for (int i = 0; i < futures.size(); i++) {
+            Shard shard = liveShards.get(i);
+
+            try {
+                results.add(futures.get(i).get(Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                shard.fail("no answer within " + timeout + " ms");
+            } catch (ExecutionException e) {
+                shard.fail(String.valueOf(e.getCause().getMessage()));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for shard " + shard);
+            }
+        }
+
+        if (getLiveShards().isEmpty()) throw new IOException("All shards of index " + name + " failed");
+        return results;
+    }
+
+    /**
+     * A worker process and its connection.
+     */
+    private class Shard {
+        private final int shard;
+        private Process process;
+        private Socket socket;
+        private DataInputStream input;
+        private DataOutputStream output;
+        private volatile boolean failed;
+        // the position of the first document of the shard in the index, and the number of documents
+        private int first;
+        private int size;
+
+        Shard(int shard) {
+            this.shard = shard;
+        }
+
+        void start() throws IOException {
+            List<String> command = Lists.newArrayList(new File(System.getProperty("java.home"), "bin/java").getPath());
+            command.addAll(workerOptions);
+            command.addAll(Lists.newArrayList("-cp", System.getProperty("java.class.path"), "ShardWorker",
+                    indexFile.getPath(), String.valueOf(shard), String.valueOf(shards.size())));
+
+            process = new ProcessBuilder(command).start();
+            pumpErrors(process.getErrorStream());
+
+            // other output, such as the errors of the JVM, is passed on until the line with the port
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            String line;
+
+            while ((line = reader.readLine()) != null && !line.matches("\\d+ \\d+"))
+                System.err.println(this + ": " + line);
+
+            if (line == null) throw new IOException("the worker exited while loading the shard");
+
+            String[] fields = line.split(" ");
+            size = Integer.parseInt(fields[1]);
+            socket = new Socket(InetAddress.getByName(null), Integer.parseInt(fields[0]));
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        Map<String, SparseVector> getVectors(Collection<String> documents) throws IOException {
+            output.writeByte(ShardWorker.VECTORS);
+            output.writeInt(documents.size());
+            for (String document : documents) output.writeUTF(document);
+            output.flush();
+
+            readStatus();
+            Map<String, SparseVector> vectors = Maps.newLinkedHashMap();
+
+            for (int i = input.readInt(); i > 0; i--) {
+                String document = input.readUTF();
+                vectors.put(document, ShardWorker.readVector(input));
+            }
+
+            return vectors;
+        }
+
+        TopK[][] search(Map<String, SparseVector> queries, SimilarityMeasure[] similarityMeasures, int depth,
+                        int batch, Map<Integer, String> names) throws IOException {
+            output.writeByte(ShardWorker.SEARCH);
+            output.writeInt(similarityMeasures.length);
+            for (SimilarityMeasure similarityMeasure : similarityMeasures) output.writeUTF(similarityMeasure.name());
+
+            output.writeInt(depth);
+            output.writeInt(batch);
+            output.writeInt(queries.size());
+
+            for (Map.Entry<String, SparseVector> query : queries.entrySet()) {
+                output.writeUTF(query.getKey());
+                ShardWorker.writeVector(output, query.getValue());
+            }
+
+            output.flush();
+            readStatus();
+
+            TopK[][] topKs = new TopK[queries.size()][similarityMeasures.length];
+            Map<Integer, String> shardNames = Maps.newHashMap();
+
+            for (TopK[] queryTopKs : topKs) {
+                for (int m = 0; m < queryTopKs.length; m++) {
+                    queryTopKs[m] = new TopK(input.readInt());
+
+                    for (int i = 0; i < queryTopKs[m].capacity(); i++) {
+                        int document = first + input.readInt();
+                        queryTopKs[m].offer(document, input.readDouble());
+                        shardNames.put(document, input.readUTF());
+                    }
+                }
+            }
+
+            synchronized (names) {
+                names.putAll(shardNames);
+            }
+
+            return topKs;
+        }
+
+        private void readStatus() throws IOException {
+            if (input.readByte() != ShardWorker.OK) throw new IOException(input.readUTF());
+        }
+
+        /**
+         * Copies the messages of the worker to stderr, marked with the shard.
+         */
+        private void pumpErrors(final InputStream errors) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(errors, "UTF-8"));
+                        String line;
+                        while ((line = reader.readLine()) != null) System.err.println(Shard.this + ": " + line);
+                    } catch (IOException ignored) {
+                        // the worker was stopped
+                    }
+                }
+            }, toString() + " stderr");
+
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void fail(String reason) {
+            System.err.println("Warning: " + this + " failed (" + reason + "), its documents are left out");
+            failed = true;
+            stop();
+        }
+
+        /**
+         * Closes the connection, which ends the worker, and kills it in case it hangs.
+         */
+        void stop() {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ignored) {
+            }
+
+            if (process != null) process.destroy();
+        }
+
+        @Override
+        public String toString() {
+            return "shard " + (shard + 1) + "/" + shards.size() + " of " + name;
+        }
+    }
+}
@@ -1,21 +1,378 @@
-import weka.core.DistanceFunction;
-import weka.core.EuclideanDistance;
-import weka.core.ManhattanDistance;
-
 /**
-* @author patrick
-*/
+ * The distance measures available for retrieval. Each measure merges the sparse vector of a query with the stored
+ * vector of a document, giving the same distance weka's {@code ManhattanDistance} (L1) and {@code EuclideanDistance}
+ * (L2) compute on the normalized instances. COSINE is one minus the cosine of the angle between the normalized
+ * numeric values, nominal attributes do not take part in it.
+ * <p/>
+ * For the search structures that only visit the attributes a query and a document share, every measure is also
+ * split into the norms of both vectors (see {@link #contribution(double)}) and a sum over the shared attributes (see
+ * {@link #correction(double, double)}), which {@link #score(double, double, double, int)} combines.
+ *
+ * @author patrick
+ */
 public enum SimilarityMeasure {
-    L1(new ManhattanDistance()),
-    L2(new EuclideanDistance());
+    L1 {
+        @Override
+        public double distance(int[] firstAttributes, double[] firstValues, int firstFrom, int firstTo,
+                               int[] secondAttributes, double[] secondValues, int secondFrom, int secondTo,
+                               int mismatches) {
+            int p = firstFrom, q = secondFrom;
+            double distance = mismatches;
+
+            while (p < firstTo && q < secondTo) {
+                int firstAttribute = firstAttributes[p];
+                int secondAttribute = secondAttributes[q];
+
+                if (firstAttribute == secondAttribute) {
+                    distance += Math.abs(firstValues[p++] - secondValues[q++]);
+                } else if (firstAttribute < secondAttribute) {
+                    distance += Math.abs(firstValues[p++]);
+                } else {
+                    distance += Math.abs(secondValues[q++]);
+                }
+            }
+
+            while (p < firstTo) distance += Math.abs(firstValues[p++]);
+            while (q < secondTo) distance += Math.abs(secondValues[q++]);
+
+            return distance;
+        }
+
+        @Override
+        public double distance(double absoluteSum, double squaredSum, double dotProduct, double firstSquares,
+                               double secondSquares) {
+            return absoluteSum;
+        }
+
+        @Override
+        public double contribution(double value) {
+            return Math.abs(value);
+        }
+
+        @Override
+        public double correction(double queryValue, double value) {
+            return Math.abs(queryValue - value) - Math.abs(queryValue) - Math.abs(value);
+        }
+
+        @Override
+        public double score(double queryNorm, double documentNorm, double correction, int mismatches) {
+            return queryNorm + documentNorm + correction + mismatches;
+        }
+    },
+    L2 {
+        @Override
+        public double distance(int[] firstAttributes, double[] firstValues, int firstFrom, int firstTo,
+                               int[] secondAttributes, double[] secondValues, int secondFrom, int secondTo,
+                               int mismatches) {
+            int p = firstFrom, q = secondFrom;
+            double distance = mismatches;
+            double difference;
+
+            while (p < firstTo && q < secondTo) {
+                int firstAttribute = firstAttributes[p];
+                int secondAttribute = secondAttributes[q];
+
+                if (firstAttribute == secondAttribute) {
+                    difference = firstValues[p++] - secondValues[q++];
+                } else if (firstAttribute < secondAttribute) {
+                    difference = firstValues[p++];
+                } else {
+                    difference = secondValues[q++];
+                }
+
+                distance += difference * difference;
+            }
+
+            while (p < firstTo) {
+                difference = firstValues[p++];
+                distance += difference * difference;
+            }
+
+            while (q < secondTo) {
+                difference = secondValues[q++];
+                distance += difference * difference;
+            }
+
+            return Math.sqrt(distance);
+        }
+
+        @Override
+        public double distance(double absoluteSum, double squaredSum, double dotProduct, double firstSquares,
+                               double secondSquares) {
+            return Math.sqrt(squaredSum);
+        }
+
+        @Override
+        public double contribution(double value) {
+            return value * value;
+        }
+
+        @Override
+        public double correction(double queryValue, double value) {
+            return -2 * queryValue * value;
+        }
+
+        /**
+         * @return the squared distance as {@code ||a||^2 + ||b||^2 - 2ab}
+         */
+        @Override
+        public double score(double queryNorm, double documentNorm, double correction, int mismatches) {
+            return queryNorm + documentNorm + correction + mismatches;
+        }
+    },
+    COSINE {
+        @Override
+        public double distance(int[] firstAttributes, double[] firstValues, int firstFrom, int firstTo,
+                               int[] secondAttributes, double[] secondValues, int secondFrom, int secondTo,
+                               int mismatches) {
+            double firstSquares = 0;
+            double secondSquares = 0;
+
+            for (int p = firstFrom; p < firstTo; p++) firstSquares += firstValues[p] * firstValues[p];
+            for (int q = secondFrom; q < secondTo; q++) secondSquares += secondValues[q] * secondValues[q];
+
+            return cosineDistance(dotProduct(firstAttributes, firstValues, firstFrom, firstTo, secondAttributes,
+                    secondValues, secondFrom, secondTo), firstSquares, secondSquares);
+        }
+
+        /**
+         * Uses the norms computed when the index was built, so only the attributes query and document share are
+         * multiplied.
+         */
+        @Override
+        public double distance(SparseVector query, SparseIndex index, int document) {
+            if (index.getValues() == null) {
+                SparseVector row = index.vector(document);
+                return cosineDistance(dotProduct(query.getAttributes(), query.getValues(), 0, query.size(),
+                        row.getAttributes(), row.getValues(), 0, row.size()), query.getSquaredNorm(),
+                        index.getNorms(this)[document]);
+            }
+
+            int[] offsets = index.getOffsets();
+
+            return cosineDistance(dotProduct(query.getAttributes(), query.getValues(), 0, query.size(),
+                    index.getAttributes(), index.getValues(), offsets[document], offsets[document + 1]),
+                    query.getSquaredNorm(), index.getNorms(this)[document]);
+        }
+
+        @Override
+        public double distance(double absoluteSum, double squaredSum, double dotProduct, double firstSquares,
+                               double secondSquares) {
+            return cosineDistance(dotProduct, firstSquares, secondSquares);
+        }
+
+        @Override
+        public double contribution(double value) {
+            return value * value;
+        }
+
+        @Override
+        public double correction(double queryValue, double value) {
+            return queryValue * value;
+        }
+
+        @Override
+        public double score(double queryNorm, double documentNorm, double correction, int mismatches) {
+            return cosineDistance(correction, queryNorm, documentNorm);
+        }
 
-    private DistanceFunction distanceFunction;
+        @Override
+        public boolean isMetric() {
+            return false;
+        }
+    };
 
-    SimilarityMeasure(DistanceFunction distanceFunction) {
-        this.distanceFunction = distanceFunction;
+    /**
+     * @return if the distance satisfies the triangle inequality
+     */
+    public boolean isMetric() {
+        return true;
     }
 
-    public DistanceFunction getDistanceFunction() {
-        return distanceFunction;
+    /**
+     * @param query    the vector of the query, normalized by the ranges of the index
+     * @param index    the index
+     * @param document the document of the index to compare the query to
+     * @return the distance between query and document
+     */
+    public double distance(SparseVector query, SparseIndex index, int document) {
+        if (index.getValues() == null) {
+            // the values are read from the compiled file of the index
+            SparseVector row = index.vector(document);
+            return distance(query.getAttributes(), query.getValues(), 0, query.size(), row.getAttributes(),
+                    row.getValues(), 0, row.size(), index.nominalMismatches(query, document));
+        }
+
+        int[] offsets = index.getOffsets();
+
+        return distance(query.getAttributes(), query.getValues(), 0, query.size(), index.getAttributes(),
+                index.getValues(), offsets[document], offsets[document + 1], index.nominalMismatches(query, document));
+    }
+
+    /**
+     * Computes the distances of several measures between the query and a document of the index.
+     *
+     * @param similarityMeasures the measures
+     * @param query              the vector of the query, normalized by the ranges of the index
+     * @param index              the index
+     * @param document           the document of the index to compare the query to
+     * @param distances          receives the distance of each measure
+     */
+    public static void distances(SimilarityMeasure[] similarityMeasures, SparseVector query, SparseIndex index,
+                                 int document, double[] distances) {
+        if (similarityMeasures.length == 1) {
+            distances[0] = similarityMeasures[0].distance(query, index, document);
+            return;
+        }
+
+        if (index.getValues() == null) {
+            SparseVector row = index.vector(document);
+            distances(similarityMeasures, query.getAttributes(), query.getValues(), 0, query.size(),
+                    row.getAttributes(), row.getValues(), 0, row.size(), index.nominalMismatches(query, document),
+                    distances);
+            return;
+        }
+
+        int[] offsets = index.getOffsets();
+
+        distances(similarityMeasures, query.getAttributes(), query.getValues(), 0, query.size(), index.getAttributes(),
+                index.getValues(), offsets[document], offsets[document + 1], index.nominalMismatches(query, document),
+                distances);
+    }
+
+    /**
+     * Computes the distances of several measures in a single merge of two normalized sparse vectors. Every distance
+     * equals the one {@link #distance(int[], double[], int, int, int[], double[], int, int, int)} gives for its
+     * measure.
+     *
+     * @param similarityMeasures the measures
+     * @param distances          receives the distance of each measure
+     * @see #distance(int[], double[], int, int, int[], double[], int, int, int)
+     */
+    public static void distances(SimilarityMeasure[] similarityMeasures, int[] firstAttributes, double[] firstValues,
+                                 int firstFrom, int firstTo, int[] secondAttributes, double[] secondValues,
+                                 int secondFrom, int secondTo, int mismatches, double[] distances) {
+        if (similarityMeasures.length == 1) {
+            distances[0] = similarityMeasures[0].distance(firstAttributes, firstValues, firstFrom, firstTo,
+                    secondAttributes, secondValues, secondFrom, secondTo, mismatches);
+            return;
+        }
+
+        int p = firstFrom, q = secondFrom;
+        double absoluteSum = mismatches;
+        double squaredSum = mismatches;
+        double dotProduct = 0;
+        double firstSquares = 0;
+        double secondSquares = 0;
+        double difference;
+
+        while (p < firstTo || q < secondTo) {
+            if (q >= secondTo || (p < firstTo && firstAttributes[p] < secondAttributes[q])) {
+                difference = firstValues[p++];
+                firstSquares += difference * difference;
+            } else if (p >= firstTo || secondAttributes[q] < firstAttributes[p]) {
+                difference = secondValues[q++];
+                secondSquares += difference * difference;
+            } else {
+                double firstValue = firstValues[p++];
+                double secondValue = secondValues[q++];
+
+                difference = firstValue - secondValue;
+                dotProduct += firstValue * secondValue;
+                firstSquares += firstValue * firstValue;
+                secondSquares += secondValue * secondValue;
+            }
+
+            absoluteSum += Math.abs(difference);
+            squaredSum += difference * difference;
+        }
+
+        for (int i = 0; i < similarityMeasures.length; i++)
+            distances[i] = similarityMeasures[i].distance(absoluteSum, squaredSum, dotProduct, firstSquares,
+                    secondSquares);
+    }
+
+    /**
+     * Merges two normalized sparse vectors, each given as a range of an attribute and a value array.
+     *
+     * @param firstAttributes  the attributes of the first vector, in ascending order
+     * @param firstValues      the values of the first vector
+     * @param firstFrom        the start of the first vector
+     * @param firstTo          the end of the first vector (exclusive)
+     * @param secondAttributes the attributes of the second vector, in ascending order
+     * @param secondValues     the values of the second vector
+     * @param secondFrom       the start of the second vector
+     * @param secondTo         the end of the second vector (exclusive)
+     * @param mismatches       the number of nominal attributes the vectors differ in
+     * @return the distance between the vectors
+     */
+    public abstract double distance(int[] firstAttributes, double[] firstValues, int firstFrom, int firstTo,
+                                    int[] secondAttributes, double[] secondValues, int secondFrom, int secondTo,
+                                    int mismatches);
+
+    /**
+     * @param absoluteSum   the sum of the absolute differences of all numeric attributes and the nominal mismatches
+     * @param squaredSum    the sum of the squared differences of all numeric attributes and the nominal mismatches
+     * @param dotProduct    the dot product of the numeric values
+     * @param firstSquares  the sum of the squared numeric values of the first vector
+     * @param secondSquares the sum of the squared numeric values of the second vector
+     * @return the distance
+     */
+    public abstract double distance(double absoluteSum, double squaredSum, double dotProduct, double firstSquares,
+                                    double secondSquares);
+
+    /**
+     * @param value a normalized value
+     * @return what the value adds to the norm of a vector, see {@link SparseIndex#getNorms(SimilarityMeasure)}
+     */
+    public abstract double contribution(double value);
+
+    /**
+     * @param queryValue the value of an attribute in the query
+     * @param value      the value of the same attribute in a document
+     * @return what the attribute adds to the sum over the attributes query and document share
+     */
+    public abstract double correction(double queryValue, double value);
+
+    /**
+     * @param queryNorm    the norm of the query
+     * @param documentNorm the norm of the document
+     * @param correction   the sum of the corrections of the shared attributes
+     * @param mismatches   the number of nominal attributes query and document differ in
+     * @return a value ordering the documents like their distances, up to rounding errors in the order of the norms
+     */
+    public abstract double score(double queryNorm, double documentNorm, double correction, int mismatches);
+
+    /**
+     * Sums the products of the attributes both vectors contain.
+     */
+    private static double dotProduct(int[] firstAttributes, double[] firstValues, int firstFrom, int firstTo,
+                                     int[] secondAttributes, double[] secondValues, int secondFrom, int secondTo) {
+        int p = firstFrom, q = secondFrom;
+        double dotProduct = 0;
+
+        while (p < firstTo && q < secondTo) {
+            int firstAttribute = firstAttributes[p];
+            int secondAttribute = secondAttributes[q];
+
+            if (firstAttribute == secondAttribute) {
+                dotProduct += firstValues[p++] * secondValues[q++];
+            } else if (firstAttribute < secondAttribute) {
+                p++;
+            } else {
+                q++;
+            }
+        }
+
+        return dotProduct;
+    }
+
+    /**
+     * @return one minus the cosine, 1 if one of the vectors is empty
+     */
+    private static double cosineDistance(double dotProduct, double firstSquares, double secondSquares) {
+        if (firstSquares == 0 || secondSquares == 0) return 1;
+
+        return 1 - dotProduct / Math.sqrt(firstSquares * secondSquares);
     }
 }
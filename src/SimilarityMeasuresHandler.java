@@ -0,0 +1,38 @@
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.OptionDef;
+import org.kohsuke.args4j.spi.OptionHandler;
+import org.kohsuke.args4j.spi.Parameters;
+import org.kohsuke.args4j.spi.Setter;
+
+/**
+ * Parses a comma separated list of similarity measures like "L1,L2" into a multi-valued option.
+ */
+public class SimilarityMeasuresHandler extends OptionHandler<SimilarityMeasure> {
+    public SimilarityMeasuresHandler(CmdLineParser parser, OptionDef option,
+                                     Setter<? super SimilarityMeasure> setter) {
+        super(parser, option, setter);
+    }
+
+    @Override
+    public int parseArguments(Parameters params) throws CmdLineException {
+        String measures = params.getParameter(0);
+
+        for (String measure : Splitter.on(CharMatcher.is(',')).omitEmptyStrings().trimResults().split(measures)) {
+            try {
+                setter.addValue(SimilarityMeasure.valueOf(measure.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new CmdLineException(owner, "\"" + measure + "\" is not a valid value for \"" + option + "\"");
+            }
+        }
+
+        return 1;
+    }
+
+    @Override
+    public String getDefaultMetaVariable() {
+        return "MEASURE[,MEASURE...]";
+    }
+}
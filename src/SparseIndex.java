@@ -0,0 +1,559 @@
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index held in compressed sparse row form: the numeric values of all documents are stored in one pair of
+ * attribute/value arrays, the values of document {@code i} being found between {@code offsets[i]} and
+ * {@code offsets[i + 1]}.
+ * <p/>
+ * Numeric values are stored divided by the value range of their attribute, which is the normalization weka's
+ * {@code ManhattanDistance} and {@code EuclideanDistance} apply, so the distance kernels in {@link SimilarityMeasure}
+ * can work on the stored values directly. Nominal attributes are kept as value indices and compared for equality,
+ * all other attributes (and the class attribute, if one is set) do not take part in distances. Missing numeric values
+ * are treated as 0.
+ */
+public class SparseIndex {
+    public static final byte NUMERIC = 0;
+    public static final byte NOMINAL = 1;
+    public static final byte IGNORED = 2;
+
+    private final String name;
+    private final String[] attributeNames;
+    private final byte[] kinds;
+    private final String[][] nominalLabels;
+    private final DocumentDictionary dictionary;
+    // the id of each document in the dictionary
+    private final int[] documents;
+    private final double[] ranges;
+    private final int[] offsets;
+    private final int[] attributes;
+    private double[] values;
+    // the values once they are read from the compiled file of the index, see mapValues(MappedValues)
+    private MappedValues mappedValues;
+    private final int[] nominalAttributes;
+    private final int[] nominals;
+    private final Map<SimilarityMeasure, double[]> norms = Maps.newEnumMap(SimilarityMeasure.class);
+
+    private SparseIndex(Builder builder, DocumentDictionary dictionary, double[] ranges, int[] offsets,
+                        int[] attributes, double[] values) {
+        this.name = builder.name;
+        this.attributeNames = builder.attributeNames;
+        this.kinds = builder.kinds;
+        this.nominalLabels = builder.nominalLabels;
+        this.dictionary = dictionary;
+        this.documents = dictionary.getIds(builder.documents);
+        this.ranges = ranges;
+        this.offsets = offsets;
+        this.attributes = attributes;
+        this.values = values;
+        this.nominalAttributes = builder.nominalAttributes;
+        this.nominals = Arrays.copyOf(builder.nominals, builder.documents.size() * builder.nominalAttributes.length);
+
+        for (SimilarityMeasure similarityMeasure : SimilarityMeasure.values())
+            norms.put(similarityMeasure, computeNorms(similarityMeasure));
+    }
+
+    /**
+     * Normalizes a vector that is not part of the index with the ranges of this index.
+     *
+     * @param rowAttributes the attributes of the values, in ascending order
+     * @param rowValues     the raw values, nominal values given by their index and missing values as NaN
+     * @param size          the number of values
+     * @return the sparse vector
+     */
+    public SparseVector toVector(int[] rowAttributes, double[] rowValues, int size) {
+        int[] vectorAttributes = new int[size];
+        double[] vectorValues = new double[size];
+        int[] vectorNominals = new int[nominalAttributes.length];
+        int vectorSize = normalize(rowAttributes, rowValues, size, vectorAttributes, vectorValues, vectorNominals);
+
+        return new SparseVector(Arrays.copyOf(vectorAttributes, vectorSize), Arrays.copyOf(vectorValues, vectorSize),
+                vectorNominals);
+    }
+
+    /**
+     * Normalizes a row that is not part of the index with the ranges of this index into the given arrays.
+     *
+     * @param rowAttributes    the attributes of the values, in ascending order
+     * @param rowValues        the raw values, nominal values given by their index and missing values as NaN
+     * @param size             the number of values
+     * @param vectorAttributes receives the attributes of the normalized numeric values
+     * @param vectorValues     receives the normalized numeric values
+     * @param vectorNominals   receives the nominal values, one per nominal attribute
+     * @return the number of normalized numeric values
+     */
+    public int normalize(int[] rowAttributes, double[] rowValues, int size, int[] vectorAttributes,
+                         double[] vectorValues, int[] vectorNominals) {
+        return normalize(rowAttributes, rowValues, size, vectorAttributes, vectorValues, vectorNominals, 0);
+    }
+
+    /**
+     * @param nominalsFrom the position of the first nominal value in vectorNominals
+     * @see #normalize(int[], double[], int, int[], double[], int[])
+     */
+    public int normalize(int[] rowAttributes, double[] rowValues, int size, int[] vectorAttributes,
+                         double[] vectorValues, int[] vectorNominals, int nominalsFrom) {
+        int vectorSize = 0;
+
+        Arrays.fill(vectorNominals, nominalsFrom, nominalsFrom + nominalAttributes.length, 0);
+
+        for (int p = 0; p < size; p++) {
+            int attribute = rowAttributes[p];
+            double value = rowValues[p];
+
+            if (kinds[attribute] == NOMINAL) {
+                vectorNominals[nominalsFrom + Arrays.binarySearch(nominalAttributes, attribute)] =
+                        Double.isNaN(value) ? -1 : (int) value;
+                continue;
+            }
+
+            if (kinds[attribute] != NUMERIC || ranges[attribute] == 0 || Double.isNaN(value) || value == 0) continue;
+
+            vectorAttributes[vectorSize] = attribute;
+            vectorValues[vectorSize] = value / ranges[attribute];
+            vectorSize++;
+        }
+
+        return vectorSize;
+    }
+
+    /**
+     * @param document the document
+     * @return a copy of the vector of the document
+     */
+    public SparseVector vector(int document) {
+        int from = offsets[document];
+        int to = offsets[document + 1];
+        int numNominal = nominalAttributes.length;
+
+        return new SparseVector(Arrays.copyOfRange(attributes, from, to),
+                values != null ? Arrays.copyOfRange(values, from, to) : mappedValues.read(document, to - from),
+                Arrays.copyOfRange(nominals, document * numNominal, (document + 1) * numNominal));
+    }
+
+    /**
+     * Releases the values held on the heap, from now on they are read from the compiled file of the index. Only
+     * {@link #vector(int)} and the distances of {@link SimilarityMeasure} that take the index read them then, the
+     * search structures reading {@link #getValues()} cannot be built any more. The norms are kept.
+     *
+     * @param mappedValues the values of the compiled file, which must hold the rows of this index
+     */
+    public void mapValues(MappedValues mappedValues) {
+        this.mappedValues = mappedValues;
+        values = null;
+    }
+
+    /**
+     * @param vector   a vector of this index
+     * @param document the document to compare to
+     * @return the number of nominal attributes the vector and the document differ in
+     */
+    public int nominalMismatches(SparseVector vector, int document) {
+        int numNominal = nominalAttributes.length;
+        return nominalMismatches(vector.getNominals(), 0, nominals, document * numNominal, numNominal);
+    }
+
+    /**
+     * @param first      the nominal values of the first vector, -1 for missing values
+     * @param firstFrom  the position of the first value of the first vector
+     * @param second     the nominal values of the second vector
+     * @param secondFrom the position of the first value of the second vector
+     * @param numNominal the number of nominal attributes
+     * @return the number of nominal attributes the vectors differ in, a missing value never being equal
+     */
+    public static int nominalMismatches(int[] first, int firstFrom, int[] second, int secondFrom, int numNominal) {
+        int mismatches = 0;
+
+        for (int i = 0; i < numNominal; i++) {
+            int value = first[firstFrom + i];
+            if (value < 0 || value != second[secondFrom + i]) mismatches++;
+        }
+
+        return mismatches;
+    }
+
+    /**
+     * @param similarityMeasure a measure
+     * @return the norm of each document under the measure, computed when the index is built
+     * @see SimilarityMeasure#contribution(double)
+     */
+    public double[] getNorms(SimilarityMeasure similarityMeasure) {
+        return norms.get(similarityMeasure);
+    }
+
+    private double[] computeNorms(SimilarityMeasure similarityMeasure) {
+        double[] measureNorms = new double[documents.length];
+
+        for (int document = 0; document < documents.length; document++) {
+            for (int p = offsets[document]; p < offsets[document + 1]; p++)
+                measureNorms[document] += similarityMeasure.contribution(values[p]);
+        }
+
+        return measureNorms;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return documents.length;
+    }
+
+    /**
+     * @param document the document
+     * @return the name of the document, looked up in the dictionary
+     */
+    public String getDocument(int document) {
+        return dictionary.getName(documents[document]);
+    }
+
+    /**
+     * @param document the document
+     * @return the id of the name of the document in the dictionary
+     */
+    public int getDocumentId(int document) {
+        return documents[document];
+    }
+
+    public DocumentDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public int getNumAttributes() {
+        return attributeNames.length;
+    }
+
+    public String[] getAttributeNames() {
+        return attributeNames;
+    }
+
+    public byte[] getKinds() {
+        return kinds;
+    }
+
+    public String[][] getNominalLabels() {
+        return nominalLabels;
+    }
+
+    public double[] getRanges() {
+        return ranges;
+    }
+
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    public int[] getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return the normalized values of the rows, null once they are read from the compiled file of the index
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    public int[] getNominalAttributes() {
+        return nominalAttributes;
+    }
+
+    public int[] getNominals() {
+        return nominals;
+    }
+
+    /**
+     * Collects the raw rows of an index and normalizes them into a {@link SparseIndex}. The rows are kept in the same
+     * compressed form as the index, with the values not yet divided by the attribute ranges.
+     */
+    public static class Builder {
+        private final String name;
+        private final String[] attributeNames;
+        private final byte[] kinds;
+        private final String[][] nominalLabels;
+        private final int[] nominalAttributes;
+        private final int[] nominalSlots;
+        private final List<String> documents = Lists.newArrayList();
+        private int[] offsets = new int[1024];
+        private int[] attributes = new int[16 * 1024];
+        private double[] values = new double[16 * 1024];
+        private int[] nominals;
+        private int numValues;
+        private double[] ranges;
+
+        /**
+         * @param name           the name of the index
+         * @param attributeNames the names of all attributes
+         * @param kinds          the kind of each attribute, {@link #NUMERIC}, {@link #NOMINAL} or {@link #IGNORED}
+         * @param nominalLabels  the labels of the values of each nominal attribute, in the order of the attributes
+         */
+        public Builder(String name, String[] attributeNames, byte[] kinds, String[][] nominalLabels) {
+            this.name = name;
+            this.attributeNames = attributeNames;
+            this.kinds = kinds;
+            this.nominalLabels = nominalLabels;
+            this.nominalSlots = new int[kinds.length];
+
+            int numNominal = 0;
+            for (int attribute = 0; attribute < kinds.length; attribute++)
+                nominalSlots[attribute] = kinds[attribute] == NOMINAL ? numNominal++ : -1;
+
+            nominalAttributes = new int[numNominal];
+            for (int attribute = 0; attribute < kinds.length; attribute++) {
+                if (nominalSlots[attribute] >= 0) nominalAttributes[nominalSlots[attribute]] = attribute;
+            }
+
+            nominals = new int[1024 * Math.max(1, numNominal)];
+        }
+
+        /**
+         * Creates a builder over rows that are already in compressed form.
+         *
+         * @param offsets    the offsets of the documents, one more than there are documents
+         * @param attributes the attributes of the numeric values
+         * @param values     the raw numeric values
+         * @param nominals   the nominal values, {@code nominalAttributes.length} per document
+         * @param documents  the document names
+         * @return this builder
+         */
+        public Builder setRows(int[] offsets, int[] attributes, double[] values, int[] nominals, String[] documents) {
+            this.offsets = offsets;
+            this.attributes = attributes;
+            this.values = values;
+            this.nominals = nominals;
+            this.numValues = offsets[documents.length];
+            this.documents.clear();
+            this.documents.addAll(Arrays.asList(documents));
+            return this;
+        }
+
+        /**
+         * Sets the attribute ranges, so they do not have to be computed from the rows.
+         *
+         * @param ranges the range of each attribute
+         * @return this builder
+         */
+        public Builder setRanges(double[] ranges) {
+            this.ranges = ranges;
+            return this;
+        }
+
+        /**
+         * Adds a document.
+         *
+         * @param document      the name of the document
+         * @param rowAttributes the attributes of the values, in ascending order
+         * @param rowValues     the raw values, nominal values given by their index and missing values as NaN
+         * @param size          the number of values
+         */
+        public void addDocument(String document, int[] rowAttributes, double[] rowValues, int size) {
+            int numDocuments = documents.size();
+            int numNominal = nominalAttributes.length;
+
+            ensureCapacity(size);
+
+            // a sparse row does not store nominal values with index 0
+            Arrays.fill(nominals, numDocuments * numNominal, (numDocuments + 1) * numNominal, 0);
+
+            for (int p = 0; p < size; p++) {
+                int attribute = rowAttributes[p];
+                double value = rowValues[p];
+
+                if (kinds[attribute] == NOMINAL) {
+                    nominals[numDocuments * numNominal + nominalSlots[attribute]] =
+                            Double.isNaN(value) ? -1 : (int) value;
+                } else if (kinds[attribute] == NUMERIC && value != 0 && !Double.isNaN(value)) {
+                    attributes[numValues] = attribute;
+                    values[numValues] = value;
+                    numValues++;
+                }
+            }
+
+            documents.add(document);
+            offsets[numDocuments + 1] = numValues;
+        }
+
+        /**
+         * Adds a document of another builder over the same attributes.
+         *
+         * @param rows     the other builder
+         * @param document the document of the other builder
+         */
+        public void addDocument(Builder rows, int document) {
+            int numDocuments = documents.size();
+            int numNominal = nominalAttributes.length;
+            int from = rows.offsets[document];
+            int size = rows.offsets[document + 1] - from;
+
+            ensureCapacity(size);
+            System.arraycopy(rows.attributes, from, attributes, numValues, size);
+            System.arraycopy(rows.values, from, values, numValues, size);
+            System.arraycopy(rows.nominals, document * numNominal, nominals, numDocuments * numNominal, numNominal);
+            numValues += size;
+
+            documents.add(rows.documents.get(document));
+            offsets[numDocuments + 1] = numValues;
+        }
+
+        /**
+         * Removes the documents with one of the names, keeping the order of the others.
+         *
+         * @param names the names of the documents to remove
+         * @return the number of documents removed
+         */
+        public int removeDocuments(Set<String> names) {
+            int numDocuments = documents.size();
+            int numNominal = nominalAttributes.length;
+            int kept = 0;
+            int position = 0;
+
+            for (int document = 0; document < numDocuments; document++) {
+                if (names.contains(documents.get(document))) continue;
+
+                int from = offsets[document];
+                int size = offsets[document + 1] - from;
+
+                System.arraycopy(attributes, from, attributes, position, size);
+                System.arraycopy(values, from, values, position, size);
+                System.arraycopy(nominals, document * numNominal, nominals, kept * numNominal, numNominal);
+                documents.set(kept, documents.get(document));
+
+                offsets[kept] = position;
+                position += size;
+                kept++;
+            }
+
+            offsets[kept] = position;
+            numValues = position;
+            documents.subList(kept, numDocuments).clear();
+            return numDocuments - kept;
+        }
+
+        /**
+         * Grows the arrays to hold one more document with the given number of values.
+         */
+        private void ensureCapacity(int size) {
+            int numDocuments = documents.size();
+            int numNominal = nominalAttributes.length;
+
+            if (numDocuments + 1 >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            if ((numDocuments + 1) * numNominal > nominals.length)
+                nominals = Arrays.copyOf(nominals, Math.max(nominals.length * 2, (numDocuments + 1) * numNominal));
+            if (numValues + size > attributes.length) {
+                int capacity = Math.max(attributes.length * 2, numValues + size);
+                attributes = Arrays.copyOf(attributes, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String[] getAttributeNames() {
+            return attributeNames;
+        }
+
+        public byte[] getKinds() {
+            return kinds;
+        }
+
+        public String[][] getNominalLabels() {
+            return nominalLabels;
+        }
+
+        public int size() {
+            return documents.size();
+        }
+
+        public List<String> getDocuments() {
+            return documents;
+        }
+
+        public int[] getOffsets() {
+            return offsets;
+        }
+
+        public int[] getAttributes() {
+            return attributes;
+        }
+
+        public double[] getValues() {
+            return values;
+        }
+
+        public int getNumValues() {
+            return numValues;
+        }
+
+        public int[] getNominals() {
+            return nominals;
+        }
+
+        /**
+         * @return the range of each attribute over all documents, including the zeros the rows do not store
+         */
+        public double[] getRanges() {
+            if (ranges == null) ranges = computeStatistics().getRanges();
+            return ranges;
+        }
+
+        /**
+         * @return the statistics of the raw rows added so far
+         */
+        public AttributeStatistics computeStatistics() {
+            AttributeStatistics statistics = new AttributeStatistics(kinds);
+            statistics.addRows(attributes, values, 0, numValues, documents.size());
+            return statistics;
+        }
+
+        /**
+         * Normalizes the rows into an index with a dictionary of its own.
+         *
+         * @return the index
+         * @see #build(DocumentDictionary)
+         */
+        public SparseIndex build() {
+            return build(new DocumentDictionary());
+        }
+
+        /**
+         * Normalizes the rows. The builder must not be used afterwards, its arrays are reused by the index.
+         *
+         * @param dictionary assigns the ids of the document names, shared by the indices of a corpus
+         * @return the index
+         */
+        public SparseIndex build(DocumentDictionary dictionary) {
+            double[] ranges = getRanges();
+            int numDocuments = documents.size();
+            int position = 0;
+
+            for (int document = 0; document < numDocuments; document++) {
+                int from = offsets[document];
+                int to = offsets[document + 1];
+                offsets[document] = position;
+
+                for (int p = from; p < to; p++) {
+                    int attribute = attributes[p];
+
+                    // an attribute without range is normalized to 0 for every document
+                    if (ranges[attribute] == 0) continue;
+
+                    attributes[position] = attribute;
+                    values[position] = values[p] / ranges[attribute];
+                    position++;
+                }
+            }
+            offsets[numDocuments] = position;
+
+            return new SparseIndex(this, dictionary, ranges, Arrays.copyOf(offsets, numDocuments + 1),
+                    Arrays.copyOf(attributes, position), Arrays.copyOf(values, position));
+        }
+    }
+}
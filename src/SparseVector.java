@@ -0,0 +1,43 @@
+/**
+ * A single document vector in sparse form: the numeric attributes are kept as sorted attribute indices with their
+ * (normalized) values, the nominal attributes as value indices (-1 for a missing value).
+ */
+public class SparseVector {
+    private final int[] attributes;
+    private final double[] values;
+    private final int[] nominals;
+    private final double squaredNorm;
+
+    public SparseVector(int[] attributes, double[] values, int[] nominals) {
+        this.attributes = attributes;
+        this.values = values;
+        this.nominals = nominals;
+
+        double sum = 0;
+        for (double value : values) sum += value * value;
+        squaredNorm = sum;
+    }
+
+    public int[] getAttributes() {
+        return attributes;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+
+    public int[] getNominals() {
+        return nominals;
+    }
+
+    /**
+     * @return the sum of the squared values
+     */
+    public double getSquaredNorm() {
+        return squaredNorm;
+    }
+
+    public int size() {
+        return attributes.length;
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.*;
+import java.util.zip.CRC32;
+
+/**
+ * A sidecar next to an ARFF index holding its {@link AttributeStatistics}, so the ranges need not be collected from
+ * the rows again. The sidecar is keyed by the length, modification time and CRC32 checksum of the index file: it is
+ * used as is while length and modification time match, after a touch it is used if the checksum still matches, and
+ * it is stale otherwise.
+ * <p/>
+ * Layout (big-endian): the magic number and version, the length, modification time and checksum of the index file,
+ * the number of documents and attributes, and for each attribute its minimum, maximum and document frequency.
+ */
+public class StatisticsFile {
+    public static final String EXTENSION = ".stats";
+
+    private static final int MAGIC = 0x53535441;
+    private static final int VERSION = 1;
+
+    private StatisticsFile() {
+    }
+
+    /**
+     * @param indexFile an ARFF index
+     * @return the sidecar of the index
+     */
+    public static File getStatisticsFile(File indexFile) {
+        return new File(indexFile.getPath() + EXTENSION);
+    }
+
+    /**
+     * Reads the sidecar of an index, refreshing its modification time if only the index was touched.
+     *
+     * @param indexFile an ARFF index
+     * @param kinds     the kind of each attribute of the index
+     * @return the statistics of the index, null if there is no sidecar or it is stale or unreadable
+     */
+    public static AttributeStatistics read(File indexFile, byte[] kinds) {
+        File statisticsFile = getStatisticsFile(indexFile);
+        if (!statisticsFile.isFile()) return null;
+
+        try {
+            DataInputStream input =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(statisticsFile), 1 << 16));
+            AttributeStatistics statistics;
+            long lastModified;
+            long checksum;
+
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) return null;
+                if (input.readLong() != indexFile.length()) return null;
+
+                lastModified = input.readLong();
+                checksum = input.readLong();
+
+                int numDocuments = input.readInt();
+                if (input.readInt() != kinds.length) return null;
+
+                double[] min = new double[kinds.length];
+                double[] max = new double[kinds.length];
+                int[] documentFrequencies = new int[kinds.length];
+
+                for (int attribute = 0; attribute < kinds.length; attribute++) {
+                    min[attribute] = input.readDouble();
+                    max[attribute] = input.readDouble();
+                    documentFrequencies[attribute] = input.readInt();
+                }
+
+                statistics = new AttributeStatistics(kinds, min, max, documentFrequencies, numDocuments);
+            } finally {
+                input.close();
+            }
+
+            if (lastModified == indexFile.lastModified()) return statistics;
+            if (checksum != checksum(indexFile)) return null;
+
+            write(indexFile, statistics, checksum);
+            return statistics;
+        } catch (IOException e) {
+            System.err.println("Ignoring statistics " + statisticsFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the sidecar of an index. The index is still used without it if it cannot be written.
+     *
+     * @param indexFile  an ARFF index
+     * @param statistics the statistics of all rows of the index
+     */
+    public static void save(File indexFile, AttributeStatistics statistics) {
+        try {
+            write(indexFile, statistics, checksum(indexFile));
+        } catch (IOException e) {
+            System.err.println("Could not write statistics " + getStatisticsFile(indexFile) + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes to a temporary file first, so other processes reading the index never see a partial sidecar. The
+     * temporary file is unique, as the workers of {@link ShardedSearch} may write the sidecar of an index at once.
+     */
+    private static void write(File indexFile, AttributeStatistics statistics, long checksum) throws IOException {
+        File statisticsFile = getStatisticsFile(indexFile);
+        File temporaryFile = File.createTempFile(statisticsFile.getName(), ".tmp", statisticsFile.getAbsoluteFile()
+                .getParentFile());
+        DataOutputStream output =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 1 << 16));
+
+        try {
+            double[] min = statistics.getMin();
+            double[] max = statistics.getMax();
+            int[] documentFrequencies = statistics.getDocumentFrequencies();
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(indexFile.length());
+            output.writeLong(indexFile.lastModified());
+            output.writeLong(checksum);
+            output.writeInt(statistics.getNumDocuments());
+            output.writeInt(statistics.getNumAttributes());
+
+            for (int attribute = 0; attribute < statistics.getNumAttributes(); attribute++) {
+                output.writeDouble(min[attribute]);
+                output.writeDouble(max[attribute]);
+                output.writeInt(documentFrequencies[attribute]);
+            }
+        } finally {
+            output.close();
+        }
+
+        if (!temporaryFile.renameTo(statisticsFile)) {
+            temporaryFile.delete();
+            throw new IOException("cannot rename " + temporaryFile);
+        }
+    }
+
+    /**
+     * @return the CRC32 checksum of the bytes of the file as stored, compressed or not
+     */
+    private static long checksum(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        int length;
+
+        try {
+            while ((length = input.read(buffer)) >= 0) crc.update(buffer, 0, length);
+        } finally {
+            input.close();
+        }
+
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,298 @@
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scores an ARFF index while it is read instead of loading it. A first pass only collects the attribute ranges and
+ * the rows of the query documents, stopping as soon as the queries are found if the ranges are known from the
+ * {@link StatisticsFile} of the index. The second pass normalizes each row as it is parsed and offers it to one
+ * {@link TopK} per query and measure, so the memory needed does not grow with the size of the index.
+ * <p/>
+ * The second pass is a pipeline of three threads: the file is read and decompressed by a
+ * {@link PrefetchingInputStream}, parsed and normalized in blocks of rows by a parser thread, and the blocks are
+ * scored by the calling thread as they arrive, each stage handing its output over through a bounded queue.
+ */
+public class StreamingRetrieval {
+    private static final int ROWS_PER_BLOCK = 256;
+    private static final int BLOCKS = 4;
+
+    private final File indexFile;
+    private final String name;
+    private final DocumentDictionary dictionary;
+    private final SimilarityMeasure[] similarityMeasures;
+    private final int depth;
+    private int numDocuments;
+    private long evaluations;
+
+    /**
+     * @param indexFile          the ARFF index, optionally gzip compressed
+     * @param name               the name of the index
+     * @param dictionary         assigns the ids of the query documents and the ranked documents
+     * @param similarityMeasures the measures to rank by
+     * @param depth              the number of documents to keep per query
+     */
+    public StreamingRetrieval(File indexFile, String name, DocumentDictionary dictionary,
+                              SimilarityMeasure[] similarityMeasures, int depth) {
+        this.indexFile = indexFile;
+        this.name = name;
+        this.dictionary = dictionary;
+        this.similarityMeasures = similarityMeasures;
+        this.depth = depth;
+    }
+
+    /**
+     * @param queryDocuments the names of the query documents
+     * @return for each measure the ranked documents of each query document found in the index
+     * @throws IOException if the index cannot be read
+     */
+    public List<Map<String, List<DocumentSimilarity>>> retrieve(Set<String> queryDocuments) throws IOException {
+        SparseIndex queries = readQueries(queryDocuments);
+
+        int numQueries = queries.size();
+        int numNominal = queries.getNominalAttributes().length;
+        int[] queryOffsets = queries.getOffsets();
+        int[] queryAttributes = queries.getAttributes();
+        double[] queryValues = queries.getValues();
+        int[] queryNominals = queries.getNominals();
+
+        int numMeasures = similarityMeasures.length;
+        TopK[][] topKs = new TopK[numQueries][numMeasures];
+
+        for (int query = 0; query < numQueries; query++) {
+            for (int m = 0; m < numMeasures; m++) topKs[query][m] = new TopK(Math.min(depth, numDocuments));
+        }
+
+        // the ids of the query documents by name, so a row is only looked up once to skip its query
+        Map<String, Integer> queryIds = Maps.newHashMap();
+        for (int query = 0; query < numQueries; query++)
+            queryIds.put(queries.getDocument(query), queries.getDocumentId(query));
+
+        // names of the documents that made it into a collector at some point
+        Map<Integer, String> documentNames = Maps.newHashMap();
+
+        ArffReader reader = ArffReader.open(indexFile);
+        BlockingQueue<RowBlock> rowBlocks = new ArrayBlockingQueue<RowBlock>(BLOCKS);
+        ExecutorService parser = Executors.newSingleThreadExecutor();
+        Future<?> parsing = parser.submit(createParser(reader, queries, queryIds, rowBlocks));
+
+        try {
+            double[] distances = new double[numMeasures];
+            int document = 0;
+            RowBlock rowBlock;
+
+            while ((rowBlock = rowBlocks.take()).size > 0) {
+                for (int row = 0; row < rowBlock.size; row++, document++) {
+                    for (int query = 0; query < numQueries; query++) {
+                        // skip same document
+                        if (rowBlock.documentIds[row] == queries.getDocumentId(query))
+                            continue;
+
+                        SimilarityMeasure.distances(similarityMeasures, queryAttributes, queryValues,
+                                queryOffsets[query], queryOffsets[query + 1], rowBlock.attributes, rowBlock.values,
+                                rowBlock.offsets[row], rowBlock.offsets[row + 1],
+                                SparseIndex.nominalMismatches(queryNominals, query * numNominal, rowBlock.nominals,
+                                        row * numNominal, numNominal), distances);
+                        evaluations += numMeasures;
+
+                        for (int m = 0; m < numMeasures; m++) {
+                            if (topKs[query][m].offer(document, distances[m]))
+                                documentNames.put(document, rowBlock.names[row]);
+                        }
+                    }
+                }
+            }
+
+            parsing.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while scoring " + indexFile);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        } finally {
+            parsing.cancel(true);
+            parser.shutdown();
+        }
+
+        // only the documents ranked in the end get an id
+        Map<Integer, Integer> documentIds = Maps.newHashMap();
+
+        for (TopK[] queryTopKs : topKs) {
+            for (TopK topK : queryTopKs) {
+                for (int i = 0; i < topK.size(); i++) {
+                    int document = topK.getDocument(i);
+                    if (!documentIds.containsKey(document))
+                        documentIds.put(document, dictionary.getId(documentNames.get(document)));
+                }
+            }
+        }
+
+        List<Map<String, List<DocumentSimilarity>>> results = Lists.newArrayList();
+
+        for (int m = 0; m < numMeasures; m++) {
+            Map<String, List<DocumentSimilarity>> measureResults = Maps.newLinkedHashMap();
+
+            for (int query = 0; query < numQueries; query++) {
+                if (topKs[query][m].size() > 0)
+                    measureResults.put(queries.getDocument(query), topKs[query][m].toSimilarities(name, documentIds));
+            }
+
+            results.add(measureResults);
+        }
+
+        return results;
+    }
+
+    /**
+     * @return the number of distances computed by {@link #retrieve(Set)}
+     */
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * Parses the rows of the index on its own thread and hands them to the scoring normalized, in blocks of
+     * {@link #ROWS_PER_BLOCK} rows. The end of the index is marked by an empty block, which is also put if the
+     * parsing fails.
+     *
+     * @param reader    the reader of the index, closed at the end
+     * @param queries   the query documents, which give the ranges of the index
+     * @param queryIds  the ids of the query documents by name
+     * @param rowBlocks receives the blocks of rows
+     */
+    private static Callable<Void> createParser(final ArffReader reader, final SparseIndex queries,
+                                               final Map<String, Integer> queryIds,
+                                               final BlockingQueue<RowBlock> rowBlocks) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                int numNominal = queries.getNominalAttributes().length;
+                boolean interrupted = false;
+
+                try {
+                    int classAttribute = reader.findClassAttribute();
+                    int documentAttribute = reader.findDocumentAttribute();
+                    int[] rowAttributes = new int[reader.numAttributes()];
+                    double[] rowValues = new double[reader.numAttributes()];
+                    int[] vectorAttributes = new int[reader.numAttributes()];
+                    double[] vectorValues = new double[reader.numAttributes()];
+                    RowBlock rowBlock = new RowBlock(numNominal);
+                    int size;
+
+                    while ((size = reader.readRow(rowAttributes, rowValues)) >= 0) {
+                        String documentName = reader.getDocumentName(classAttribute, documentAttribute);
+                        Integer queryId = queryIds.get(documentName);
+                        int row = rowBlock.size;
+                        int offset = rowBlock.offsets[row];
+                        int vectorSize = queries.normalize(rowAttributes, rowValues, size, vectorAttributes,
+                                vectorValues, rowBlock.nominals, row * numNominal);
+
+                        if (offset + vectorSize > rowBlock.attributes.length) {
+                            int capacity = Math.max(2 * rowBlock.attributes.length, offset + vectorSize);
+                            rowBlock.attributes = Arrays.copyOf(rowBlock.attributes, capacity);
+                            rowBlock.values = Arrays.copyOf(rowBlock.values, capacity);
+                        }
+
+                        System.arraycopy(vectorAttributes, 0, rowBlock.attributes, offset, vectorSize);
+                        System.arraycopy(vectorValues, 0, rowBlock.values, offset, vectorSize);
+                        rowBlock.names[row] = documentName;
+                        rowBlock.documentIds[row] = queryId == null ? -1 : queryId;
+                        rowBlock.offsets[row + 1] = offset + vectorSize;
+
+                        if (++rowBlock.size == ROWS_PER_BLOCK) {
+                            rowBlocks.put(rowBlock);
+                            rowBlock = new RowBlock(numNominal);
+                        }
+                    }
+
+                    if (rowBlock.size > 0) rowBlocks.put(rowBlock);
+                } catch (InterruptedException e) {
+                    // the scoring stopped
+                    interrupted = true;
+                } finally {
+                    reader.close();
+                    if (!interrupted) rowBlocks.put(new RowBlock(0));
+                }
+
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Reads the rows of the query documents, normalized with the ranges of the whole index.
+     */
+    private SparseIndex readQueries(Set<String> queryDocuments) throws IOException {
+        ArffReader reader = ArffReader.open(indexFile);
+
+        try {
+            int classAttribute = reader.findClassAttribute();
+            int documentAttribute = reader.findDocumentAttribute();
+
+            if (classAttribute < 0) throw new IOException("No class attribute found for index " + indexFile);
+            if (documentAttribute < 0) throw new IOException("No document attribute found for index " + indexFile);
+
+            System.err.println("index " + name + "\n" +
+                    "    class: " + reader.getAttributeNames()[classAttribute] + "\n" +
+                    "    document: " + reader.getAttributeNames()[documentAttribute]);
+
+            SparseIndex.Builder queries = reader.createBuilder(name);
+            AttributeStatistics statistics = StatisticsFile.read(indexFile, queries.getKinds());
+            boolean collect = statistics == null;
+            int[] rowAttributes = new int[reader.numAttributes()];
+            double[] rowValues = new double[reader.numAttributes()];
+            int size;
+
+            if (collect) statistics = new AttributeStatistics(queries.getKinds());
+
+            while ((size = reader.readRow(rowAttributes, rowValues)) >= 0) {
+                if (collect) statistics.addRow(rowAttributes, rowValues, size);
+
+                String documentName = reader.getDocumentName(classAttribute, documentAttribute);
+                if (queryDocuments.contains(documentName) && !queries.getDocuments().contains(documentName))
+                    queries.addDocument(documentName, rowAttributes, rowValues, size);
+
+                if (!collect && queries.size() == queryDocuments.size()) break;
+            }
+
+            if (collect) StatisticsFile.save(indexFile, statistics);
+
+            numDocuments = statistics.getNumDocuments();
+            return queries.setRanges(statistics.getRanges()).build(dictionary);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The normalized rows of consecutive documents of the index.
+     */
+    private static class RowBlock {
+        private final String[] names = new String[ROWS_PER_BLOCK];
+        // the ids of the rows that are query documents, -1 for the others
+        private final int[] documentIds = new int[ROWS_PER_BLOCK];
+        private final int[] offsets = new int[ROWS_PER_BLOCK + 1];
+        private final int[] nominals;
+        private int[] attributes = new int[16 * ROWS_PER_BLOCK];
+        private double[] values = new double[16 * ROWS_PER_BLOCK];
+        private int size;
+
+        RowBlock(int numNominal) {
+            nominals = new int[ROWS_PER_BLOCK * numNominal];
+        }
+    }
+}
@@ -0,0 +1,242 @@
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Answers word queries on an index. Its numeric attributes are terms, named like the attribute without the
+ * {@code "PHRASE "} prefix of the n-gram indices, and the documents in which a term has a value are kept per term as
+ * a {@link CompressedBitset}. A query word selects the terms equal to it, or, with the wildcards {@code *} (any
+ * characters) and {@code ?} (one character), the terms it matches; {@code foo*} is looked up as a range of the sorted
+ * terms. A document matches a word if it contains one of its terms.
+ * <p/>
+ * The documents matching at least one word are ranked by the number of words they match, counted with one bitset per
+ * bit of the count, or by the sum of their values of the terms of the query, the tf-idf weights of the n-gram indices.
+ * These are the raw values of the index file, the index stores them divided by the range of their attribute.
+ * Only the postings of the terms of the query are visited, so the time of a query depends on their sizes, not on the
+ * size of the index.
+ */
+public class TermIndex {
+    public static final String PHRASE_PREFIX = "PHRASE ";
+
+    private final SparseIndex index;
+    // the terms in ascending order and the attribute of each
+    private final String[] terms;
+    private final int[] termAttributes;
+    // the documents with a value by attribute, null for attributes that are no terms
+    private final CompressedBitset[] postings;
+
+    public TermIndex(SparseIndex index) {
+        this.index = index;
+
+        String[] attributeNames = index.getAttributeNames();
+        byte[] kinds = index.getKinds();
+        Integer[] order = new Integer[attributeNames.length];
+        int numTerms = 0;
+
+        for (int attribute = 0; attribute < attributeNames.length; attribute++) {
+            if (kinds[attribute] == SparseIndex.NUMERIC) order[numTerms++] = attribute;
+        }
+
+        terms = new String[numTerms];
+        termAttributes = new int[numTerms];
+        final String[] attributeTerms = new String[attributeNames.length];
+
+        for (int i = 0; i < numTerms; i++) {
+            String name = attributeNames[order[i]];
+            attributeTerms[order[i]] = name.startsWith(PHRASE_PREFIX) ? name.substring(PHRASE_PREFIX.length()) : name;
+        }
+
+        Arrays.sort(order, 0, numTerms, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return attributeTerms[first].compareTo(attributeTerms[second]);
+            }
+        });
+
+        for (int i = 0; i < numTerms; i++) {
+            termAttributes[i] = order[i];
+            terms[i] = attributeTerms[order[i]];
+        }
+
+        // the documents of each attribute, in ascending order as the rows are visited in order
+        int[] offsets = index.getOffsets();
+        int[] attributes = index.getAttributes();
+        double[] values = index.getValues();
+        int[] postingOffsets = new int[attributeNames.length + 1];
+
+        for (int p = 0; p < offsets[index.size()]; p++) {
+            if (values[p] != 0) postingOffsets[attributes[p] + 1]++;
+        }
+
+        for (int attribute = 0; attribute < attributeNames.length; attribute++)
+            postingOffsets[attribute + 1] += postingOffsets[attribute];
+
+        int[] positions = Arrays.copyOf(postingOffsets, attributeNames.length);
+        int[] postingDocuments = new int[postingOffsets[attributeNames.length]];
+
+        for (int document = 0; document < index.size(); document++) {
+            for (int p = offsets[document]; p < offsets[document + 1]; p++) {
+                if (values[p] != 0) postingDocuments[positions[attributes[p]]++] = document;
+            }
+        }
+
+        postings = new CompressedBitset[attributeNames.length];
+
+        for (int attribute : termAttributes) {
+            postings[attribute] = CompressedBitset.of(postingDocuments, postingOffsets[attribute],
+                    postingOffsets[attribute + 1]);
+        }
+    }
+
+    public SparseIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the number of terms
+     */
+    public int size() {
+        return terms.length;
+    }
+
+    /**
+     * @return the bytes the bitsets of the terms take
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (int attribute : termAttributes) bytes += postings[attribute].getBytes();
+        return bytes;
+    }
+
+    /**
+     * @param word a term, or a pattern with the wildcards {@code *} and {@code ?}
+     * @return the attributes of the terms the word selects, in the order of the terms
+     */
+    public int[] findAttributes(String word) {
+        int wildcard = indexOfWildcard(word);
+
+        if (wildcard < 0) {
+            int term = Arrays.binarySearch(terms, word);
+            return term < 0 ? new int[0] : new int[]{termAttributes[term]};
+        }
+
+        // the terms starting with the characters before the first wildcard
+        String prefix = word.substring(0, wildcard);
+        int from = findFirst(prefix);
+        int to = findFirst(prefix + Character.MAX_VALUE);
+        boolean prefixOnly = wildcard == word.length() - 1 && word.charAt(wildcard) == '*';
+        Pattern pattern = prefixOnly ? null : toPattern(word);
+        List<Integer> attributes = Lists.newArrayList();
+
+        for (int term = from; term < to; term++) {
+            if (prefixOnly || pattern.matcher(terms[term]).matches()) attributes.add(termAttributes[term]);
+        }
+
+        int[] result = new int[attributes.size()];
+        for (int i = 0; i < result.length; i++) result[i] = attributes.get(i);
+        return result;
+    }
+
+    /**
+     * @param word a term, or a pattern with wildcards
+     * @return the documents containing one of the terms the word selects
+     */
+    public CompressedBitset getDocuments(String word) {
+        CompressedBitset documents = CompressedBitset.EMPTY;
+        for (int attribute : findAttributes(word)) documents = documents.or(postings[attribute]);
+        return documents;
+    }
+
+    /**
+     * Ranks the documents matching at least one word of a query. Their distance is the negated score, as a
+     * {@link TopK} keeps the documents with the smallest distances.
+     *
+     * @param words    the words of the query
+     * @param weighted whether the documents are ranked by the sum of their raw values of the terms of the query
+     *                 instead of the number of words they match
+     * @param topK     receives the best documents
+     */
+    public void search(String[] words, boolean weighted, TopK topK) {
+        // bit i of the number of words a document matches, added up word by word like binary numbers
+        List<CompressedBitset> counts = Lists.newArrayList();
+        boolean[] queryAttributes = new boolean[postings.length];
+        CompressedBitset candidates = CompressedBitset.EMPTY;
+
+        for (String word : words) {
+            CompressedBitset carry = CompressedBitset.EMPTY;
+
+            for (int attribute : findAttributes(word)) {
+                queryAttributes[attribute] = true;
+                carry = carry.or(postings[attribute]);
+            }
+
+            candidates = candidates.or(carry);
+
+            for (int bit = 0; !carry.isEmpty(); bit++) {
+                if (bit == counts.size()) {
+                    counts.add(carry);
+                    break;
+                }
+
+                CompressedBitset count = counts.get(bit);
+                counts.set(bit, count.xor(carry));
+                carry = count.and(carry);
+            }
+        }
+
+        int[] offsets = index.getOffsets();
+        int[] attributes = index.getAttributes();
+        double[] values = index.getValues();
+        double[] ranges = index.getRanges();
+
+        for (int document : candidates.toArray()) {
+            double score = 0;
+
+            if (weighted) {
+                for (int p = offsets[document]; p < offsets[document + 1]; p++) {
+                    if (queryAttributes[attributes[p]]) score += values[p] * ranges[attributes[p]];
+                }
+            } else {
+                for (int bit = 0; bit < counts.size(); bit++) {
+                    if (counts.get(bit).contains(document)) score += 1 << bit;
+                }
+            }
+
+            topK.offer(document, -score);
+        }
+    }
+
+    private static int indexOfWildcard(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) == '*' || word.charAt(i) == '?') return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the position of the first term not smaller than the string
+     */
+    private int findFirst(String string) {
+        int term = Arrays.binarySearch(terms, string);
+        return term < 0 ? -term - 1 : term;
+    }
+
+    private static Pattern toPattern(String word) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+
+        for (int i = 0; i <= word.length(); i++) {
+            if (i < word.length() && word.charAt(i) != '*' && word.charAt(i) != '?') continue;
+
+            if (i > start) regex.append(Pattern.quote(word.substring(start, i)));
+            if (i < word.length()) regex.append(word.charAt(i) == '*' ? ".*" : ".");
+            start = i + 1;
+        }
+
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
@@ -0,0 +1,171 @@
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the documents closest to a query in a bounded max-heap of primitive distance/document slots, so only the
+ * best {@code capacity} documents are ever kept. Documents with the same distance are ordered by their position in
+ * the index, which is the order a stable sort over all documents gives.
+ */
+public class TopK {
+    private final double[] distances;
+    private final int[] documents;
+    private int size;
+    private boolean sorted;
+
+    public TopK(int capacity) {
+        distances = new double[capacity];
+        documents = new int[capacity];
+    }
+
+    /**
+     * @param document the document
+     * @param distance the distance of the document to the query
+     * @return if the document is among the best documents offered so far
+     */
+    public boolean offer(int document, double distance) {
+        if (size < distances.length) {
+            distances[size] = distance;
+            documents[size] = document;
+            siftUp(size++);
+            return true;
+        }
+
+        if (size == 0 || !isBefore(distance, document, distances[0], documents[0])) return false;
+
+        distances[0] = distance;
+        documents[0] = document;
+        siftDown(0, size);
+        return true;
+    }
+
+    /**
+     * @return the distance a document has to beat to be collected
+     */
+    public double threshold() {
+        return size < distances.length ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    /**
+     * Offers all documents of another collector to this one.
+     *
+     * @param other the other collector
+     */
+    public void addAll(TopK other) {
+        for (int i = 0; i < other.size; i++)
+            offer(other.documents[i], other.distances[i]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return distances.length;
+    }
+
+    /**
+     * Sorts the collected documents by ascending distance, after which {@link #getDocument(int)} and
+     * {@link #getDistance(int)} return the documents by rank. No further documents may be offered afterwards.
+     */
+    public void sort() {
+        if (sorted) return;
+
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+
+        sorted = true;
+    }
+
+    public int getDocument(int i) {
+        sort();
+        return documents[i];
+    }
+
+    public double getDistance(int i) {
+        sort();
+        return distances[i];
+    }
+
+    /**
+     * @param index the index the documents belong to
+     * @return the collected documents in ranked order
+     */
+    public List<DocumentSimilarity> toSimilarities(final SparseIndex index) {
+        return toSimilarities(index.getName(), new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer document) {
+                return index.getDocumentId(document);
+            }
+        });
+    }
+
+    /**
+     * @param index       the name of the index the documents belong to
+     * @param documentIds the dictionary ids of (at least) the collected documents by document number
+     * @return the collected documents in ranked order
+     */
+    public List<DocumentSimilarity> toSimilarities(String index, Map<Integer, Integer> documentIds) {
+        return toSimilarities(index, Functions.forMap(documentIds));
+    }
+
+    private List<DocumentSimilarity> toSimilarities(String index, Function<Integer, Integer> documentIds) {
+        sort();
+        List<DocumentSimilarity> similarities = Lists.newArrayListWithCapacity(size);
+
+        for (int i = 0; i < size; i++) {
+            DocumentSimilarity similarity =
+                    new DocumentSimilarity(distances[i], documentIds.apply(documents[i]), index);
+            similarity.setRank(i + 1);
+            similarities.add(similarity);
+        }
+
+        return similarities;
+    }
+
+    private static boolean isBefore(double distance, int document, double otherDistance, int otherDocument) {
+        int result = Double.compare(distance, otherDistance);
+        return result < 0 || (result == 0 && document < otherDocument);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!isBefore(distances[parent], documents[parent], distances[i], documents[i])) break;
+
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= end) break;
+
+            if (child + 1 < end && isBefore(distances[child], documents[child], distances[child + 1],
+                    documents[child + 1]))
+                child++;
+
+            if (!isBefore(distances[i], documents[i], distances[child], documents[child])) break;
+
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+
+        int document = documents[i];
+        documents[i] = documents[j];
+        documents[j] = document;
+    }
+}
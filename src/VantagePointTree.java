@@ -0,0 +1,228 @@
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers nearest neighbour queries with one vantage point tree per measure, skipping the documents the triangle
+ * inequality rules out. Each inner node splits the documents below it at their median distance to its vantage point;
+ * a query only descends into a half if it can hold a document at most as far away as the current k-th best one, so
+ * the ranking is the same as the one of a scan.
+ * <p/>
+ * The documents are split into blocks of consecutive documents with one tree each, so searching a range of the index
+ * only visits the trees of the blocks it overlaps. As the triangle inequality only holds for metrics, measures that
+ * are none (COSINE) are not supported.
+ */
+public class VantagePointTree implements NeighbourSearch {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int LEAF_SIZE = 16;
+    /**
+     * the relative slack of the bounds for the rounding errors of the distances they are derived from
+     */
+    private static final double EPSILON = 1e-9;
+
+    private final SparseIndex index;
+    private final SimilarityMeasure[] similarityMeasures;
+    // by measure: the documents in tree order, an inner node being stored at the position of its vantage point
+    // followed by the documents inside and outside of its median
+    private final int[][] documents;
+    // by measure and inner node: the largest distance inside and the smallest distance outside of the median
+    private final double[][] innerRadii;
+    private final double[][] outerRadii;
+    private long buildEvaluations;
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong comparisons = new AtomicLong();
+
+    /**
+     * Builds the trees, which takes about {@code n log n} distance computations per measure.
+     *
+     * @throws IllegalArgumentException if one of the measures is no metric
+     */
+    public VantagePointTree(SparseIndex index, SimilarityMeasure[] similarityMeasures) {
+        for (SimilarityMeasure similarityMeasure : similarityMeasures) {
+            if (!similarityMeasure.isMetric())
+                throw new IllegalArgumentException(similarityMeasure + " is no metric and cannot be searched with " +
+                        SearchStrategy.VPTREE);
+        }
+
+        this.index = index;
+        this.similarityMeasures = similarityMeasures;
+
+        int numDocuments = index.size();
+        documents = new int[similarityMeasures.length][numDocuments];
+        innerRadii = new double[similarityMeasures.length][numDocuments];
+        outerRadii = new double[similarityMeasures.length][numDocuments];
+        double[] distances = new double[numDocuments];
+
+        for (int m = 0; m < similarityMeasures.length; m++) {
+            Random random = new Random(0);
+            for (int document = 0; document < numDocuments; document++) documents[m][document] = document;
+
+            for (int from = 0; from < numDocuments; from += BLOCK_SIZE)
+                build(m, from, Math.min(from + BLOCK_SIZE, numDocuments), random, distances);
+        }
+    }
+
+    @Override
+    public SparseIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public void search(SparseVector query, int queryId, int from, int to, TopK[] topKs) {
+        long evaluated = 0;
+
+        for (int m = 0; m < similarityMeasures.length; m++) {
+            for (int block = from / BLOCK_SIZE * BLOCK_SIZE; block < to; block += BLOCK_SIZE)
+                evaluated += search(m, query, queryId, from, to, block, Math.min(block + BLOCK_SIZE, index.size()),
+                        topKs[m]);
+        }
+
+        evaluations.addAndGet(evaluated);
+        comparisons.addAndGet((long) (to - from) * similarityMeasures.length);
+    }
+
+    /**
+     * @return the number of distances computed to build the trees
+     */
+    public long getBuildEvaluations() {
+        return buildEvaluations;
+    }
+
+    @Override
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+
+    /**
+     * @return the number of distances a scan would have computed for the same searches
+     */
+    public long getComparisons() {
+        return comparisons.get();
+    }
+
+    /**
+     * Builds the tree of the documents at the positions {@code [from, to)}.
+     */
+    private void build(int m, int from, int to, Random random, double[] distances) {
+        if (to - from <= LEAF_SIZE) return;
+
+        SimilarityMeasure similarityMeasure = similarityMeasures[m];
+        int[] treeDocuments = documents[m];
+
+        swap(treeDocuments, distances, from, from + random.nextInt(to - from));
+        SparseVector vantagePoint = index.vector(treeDocuments[from]);
+
+        for (int i = from + 1; i < to; i++)
+            distances[i] = similarityMeasure.distance(vantagePoint, index, treeDocuments[i]);
+
+        buildEvaluations += to - from - 1;
+
+        int middle = (from + 1 + to) >>> 1;
+        select(treeDocuments, distances, from + 1, to, middle);
+
+        double innerRadius = Double.NEGATIVE_INFINITY;
+        double outerRadius = Double.POSITIVE_INFINITY;
+        for (int i = from + 1; i < middle; i++) innerRadius = Math.max(innerRadius, distances[i]);
+        for (int i = middle; i < to; i++) outerRadius = Math.min(outerRadius, distances[i]);
+
+        innerRadii[m][from] = innerRadius;
+        outerRadii[m][from] = outerRadius;
+
+        build(m, from + 1, middle, random, distances);
+        build(m, middle, to, random, distances);
+    }
+
+    /**
+     * Searches the tree of the documents at the positions {@code [treeFrom, treeTo)}, offering only the documents of
+     * the range {@code [from, to)}.
+     *
+     * @return the number of distances computed
+     */
+    private long search(int m, SparseVector query, int queryId, int from, int to, int treeFrom, int treeTo,
+                        TopK topK) {
+        SimilarityMeasure similarityMeasure = similarityMeasures[m];
+        int[] treeDocuments = documents[m];
+        long evaluated = 0;
+
+        if (treeTo - treeFrom <= LEAF_SIZE) {
+            for (int i = treeFrom; i < treeTo; i++) {
+                int document = treeDocuments[i];
+                if (document < from || document >= to || index.getDocumentId(document) == queryId) continue;
+
+                topK.offer(document, similarityMeasure.distance(query, index, document));
+                evaluated++;
+            }
+
+            return evaluated;
+        }
+
+        int vantagePoint = treeDocuments[treeFrom];
+        double distance = similarityMeasure.distance(query, index, vantagePoint);
+        evaluated++;
+
+        if (vantagePoint >= from && vantagePoint < to && index.getDocumentId(vantagePoint) != queryId)
+            topK.offer(vantagePoint, distance);
+
+        double innerRadius = innerRadii[m][treeFrom];
+        double outerRadius = outerRadii[m][treeFrom];
+        int middle = (treeFrom + 1 + treeTo) >>> 1;
+
+        // the closer half first, as it is more likely to lower the threshold for the other one
+        if (distance <= (innerRadius + outerRadius) / 2) {
+            if (distance - innerRadius <= bound(topK, distance, innerRadius))
+                evaluated += search(m, query, queryId, from, to, treeFrom + 1, middle, topK);
+            if (outerRadius - distance <= bound(topK, distance, outerRadius))
+                evaluated += search(m, query, queryId, from, to, middle, treeTo, topK);
+        } else {
+            if (outerRadius - distance <= bound(topK, distance, outerRadius))
+                evaluated += search(m, query, queryId, from, to, middle, treeTo, topK);
+            if (distance - innerRadius <= bound(topK, distance, innerRadius))
+                evaluated += search(m, query, queryId, from, to, treeFrom + 1, middle, topK);
+        }
+
+        return evaluated;
+    }
+
+    /**
+     * @return the largest lower bound of the distance of a document that can still be collected
+     */
+    private static double bound(TopK topK, double distance, double radius) {
+        return topK.threshold() + EPSILON * (1 + distance + radius);
+    }
+
+    /**
+     * Partially sorts the positions {@code [from, to)} by distance so that the position {@code k} holds the document
+     * that belongs there, with no larger distance before and no smaller one after it.
+     */
+    private static void select(int[] documents, double[] distances, int from, int to, int k) {
+        int left = from, right = to - 1;
+
+        while (left < right) {
+            double pivot = distances[(left + right) >>> 1];
+            int i = left, j = right;
+
+            while (i <= j) {
+                while (distances[i] < pivot) i++;
+                while (distances[j] > pivot) j--;
+                if (i <= j) swap(documents, distances, i++, j--);
+            }
+
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static void swap(int[] documents, double[] distances, int i, int j) {
+        int document = documents[i];
+        documents[i] = documents[j];
+        documents[j] = document;
+
+        double distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+    }
+}